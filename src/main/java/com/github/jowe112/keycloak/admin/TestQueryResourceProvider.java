@@ -1,6 +1,7 @@
 package com.github.jowe112.keycloak.admin;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.jowe112.keycloak.mapper.*;
 import jakarta.ws.rs.*;
@@ -8,6 +9,8 @@ import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import org.jboss.logging.Logger;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
 import org.keycloak.services.resource.RealmResourceProvider;
 
 import java.util.List;
@@ -16,7 +19,9 @@ import java.util.Map;
 /**
  * JAX-RS resource provider for the Test Query panel.
  * <p>
- * Exposed at: {@code /realms/{realm}/rest-claim-mapper/test-query}
+ * Exposed at: {@code /realms/{realm}/rest-claim-mapper/test-query},
+ * {@code /realms/{realm}/rest-claim-mapper/stats} and
+ * {@code /realms/{realm}/rest-claim-mapper/near-cache/users/{userId}}
  * <p>
  * Allows Keycloak admins to validate endpoint configuration by:
  * <ol>
@@ -31,8 +36,10 @@ public class TestQueryResourceProvider implements RealmResourceProvider {
     private static final Logger LOG = Logger.getLogger(TestQueryResourceProvider.class);
     private static final ObjectMapper JSON = new ObjectMapper();
 
+    private final KeycloakSession session;
+
     public TestQueryResourceProvider(KeycloakSession session) {
-        // session not needed for this stateless resource
+        this.session = session;
     }
 
     @Override
@@ -59,6 +66,7 @@ public class TestQueryResourceProvider implements RealmResourceProvider {
      *   "authValue":   "my-secret-key",
      *   "queryParams": ["username", "email"],
      *   "queryScript": "\"?user=\" + username + \"&mail=\" + email",
+     *   "queryMode":   "script",
      *   "mapping":     "role→user_role,department→user_dept",
      *   "testVars": {
      *     "username": "jdoe",
@@ -96,32 +104,45 @@ public class TestQueryResourceProvider implements RealmResourceProvider {
             List<MappingRule> rules = ConfigParser.parseMappingRules(
                     req.mapping != null ? req.mapping : "");
 
+            // Test variables double as declared params if none were given
+            Map<String, String> testVars = req.testVars != null ? req.testVars : Map.of();
+            List<String> queryParams = req.queryParams != null && !req.queryParams.isEmpty()
+                    ? req.queryParams
+                    : List.copyOf(testVars.keySet());
+
             // Build EndpointConfig (index=1, used only for logging)
             EndpointConfig ep = new EndpointConfig(
                     1,
                     req.url,
                     req.authType != null ? req.authType : "apikey",
                     req.authValue != null ? req.authValue : "",
-                    req.queryParams != null ? req.queryParams : List.of(),
+                    queryParams,
                     req.queryScript != null ? req.queryScript : "\"\"",
+                    ConfigParser.normalizeQueryMode(req.queryMode),
+                    false,
+                    ConfigParser.DEFAULT_MAX_RESPONSE_KB * 1024,
                     rules);
 
             // Evaluate query script
-            Map<String, String> testVars = req.testVars != null ? req.testVars : Map.of();
-            resp.queryString = QueryScriptEvaluator.evaluate(ep.getQueryScript(), testVars);
+            resp.queryString = QueryScriptEvaluator.evaluate(ep.getCompiledQueryScript(), testVars);
+            if (resp.queryString == null) {
+                resp.error = "Query script evaluation failed (see server logs); the endpoint is skipped";
+                return Response.status(Response.Status.OK)
+                        .entity(JSON.writeValueAsString(resp)).build();
+            }
 
             // Live HTTP call
-            String rawJson = RestApiClient.getInstance().fetchJson(ep, resp.queryString);
-            resp.rawResponse = rawJson;
+            JsonNode body = RestApiClient.getInstance().fetchJson(ep, resp.queryString).join();
+            resp.rawResponse = body != null ? body.toString() : null;
 
-            if (rawJson == null) {
+            if (body == null) {
                 resp.error = "REST API call returned no response (check URL, auth, and server logs)";
                 return Response.status(Response.Status.OK)
                         .entity(JSON.writeValueAsString(resp)).build();
             }
 
             // Apply mapping
-            resp.mappedClaims = JsonPathMapper.map(rawJson, rules);
+            resp.mappedClaims = JsonPathMapper.map(body, rules);
 
         } catch (Exception e) {
             LOG.errorf(e, "Test query failed");
@@ -135,6 +156,64 @@ public class TestQueryResourceProvider implements RealmResourceProvider {
         }
     }
 
+    /**
+     * Returns runtime statistics of the mapper's shared, node-local resources.
+     * <p>
+     * Response body (JSON):
+     *
+     * <pre>
+     * {
+     *   "scriptPool":        { "maxPooled": 32, "live": 4, "idle": 3, "inUse": 1, ... },
+     *   "scriptResultCache": { "size": 120, "hits": 5400, "misses": 130, "evictions": 0 },
+     *   "scriptLimits":      { "statementLimitHits": 0, "timeouts": 0, "outputLimitHits": 0 },
+     *   "upstreamCoalescing": { "inFlight": 3, "flights": 52000, "coalesced": 4100 },
+     *   "oauth2Tokens":      { "size": 2, "maxSize": 256, "hits": 51800, "waits": 2, "grants": 30, ... },
+     *   "transientCache":    { "size": 2400, "weight": 410000, "hits": 38000, "misses": 2100, "evictions": 0 },
+     *   "cacheRevalidation": { "inFlight": 2, "staleServed": 14200, "started": 3900, "refreshed": 3880, "failed": 18 },
+     *   "nearCache":         { "users": 5200, "weight": 830000, "hits": 91000, "misses": 5600, ... },
+     *   "cacheWriteBehind":  { "pending": 3, "enqueued": 9100, "coalesced": 420, "flushed": 8677, ... }
+     * }
+     * </pre>
+     */
+    @GET
+    @Path("stats")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response stats() {
+        StatsResponse resp = new StatsResponse();
+        resp.scriptPool = QueryScriptEvaluator.poolStats();
+        resp.scriptResultCache = QueryScriptEvaluator.resultCacheStats();
+        resp.scriptLimits = QueryScriptEvaluator.limitStats();
+        resp.upstreamCoalescing = RestApiClient.getInstance().coalescingStats();
+        resp.oauth2Tokens = RestApiClient.getInstance().tokenStats();
+        resp.transientCache = TransientUserHandler.cacheStats();
+        resp.cacheRevalidation = PersistentUserHandler.revalidationStats();
+        resp.nearCache = PersistentUserHandler.nearCacheStats();
+        resp.cacheWriteBehind = PersistentUserHandler.writeBehindStats();
+        try {
+            return Response.ok(JSON.writeValueAsString(resp)).build();
+        } catch (Exception e) {
+            LOG.errorf(e, "Stats serialization failed");
+            return Response.serverError().entity("{\"error\":\"Serialization failed\"}").build();
+        }
+    }
+
+    /**
+     * Drops the user's in-memory near-cache copies ({@code cache.near}) on all
+     * nodes, so the next token reads the user's cache attributes again. Call
+     * it after deleting those attributes to force a re-fetch.
+     */
+    @DELETE
+    @Path("near-cache/users/{userId}")
+    public Response invalidateNearCache(@PathParam("userId") String userId) {
+        RealmModel realm = session.getContext().getRealm();
+        UserModel user = session.users().getUserById(realm, userId);
+        if (user == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        PersistentUserHandler.invalidateNearCache(session, realm, user);
+        return Response.noContent().build();
+    }
+
     // ── Request / Response DTOs ───────────────────────────────────────────────
 
     public static class TestQueryRequest {
@@ -143,6 +222,7 @@ public class TestQueryResourceProvider implements RealmResourceProvider {
         public String authValue;
         public List<String> queryParams;
         public String queryScript;
+        public String queryMode;
         public String mapping;
         public Map<String, String> testVars;
     }
@@ -154,4 +234,16 @@ public class TestQueryResourceProvider implements RealmResourceProvider {
         public Map<String, Object> mappedClaims;
         public String error;
     }
+
+    public static class StatsResponse {
+        public QueryScriptEvaluator.PoolStats scriptPool;
+        public QueryScriptEvaluator.ResultCacheStats scriptResultCache;
+        public QueryScriptEvaluator.LimitStats scriptLimits;
+        public RestApiClient.CoalescingStats upstreamCoalescing;
+        public RestApiClient.TokenStats oauth2Tokens;
+        public TransientUserHandler.CacheStatsSnapshot transientCache;
+        public CacheRevalidator.Stats cacheRevalidation;
+        public ClaimNearCache.Stats nearCache;
+        public CacheWriteBehind.Stats cacheWriteBehind;
+    }
 }
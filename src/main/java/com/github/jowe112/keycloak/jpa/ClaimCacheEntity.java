@@ -0,0 +1,141 @@
+package com.github.jowe112.keycloak.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+import org.hibernate.annotations.Nationalized;
+
+import java.io.Serializable;
+
+/**
+ * One row of the {@code REST_CLAIM_CACHE} table: everything a mapper caches
+ * for one user, keyed by realm, user and mapper.
+ * <p>
+ * {@link #getClaims()} holds the same JSON document as the compact
+ * {@code UserModel} attribute store. {@link #getExpiresAt()} is the epoch
+ * second after which no endpoint of the row is fresh any more; expired rows
+ * are deleted by {@link ExpiredClaimCachePurgeTask}.
+ */
+@Entity
+@Table(name = "REST_CLAIM_CACHE")
+@IdClass(ClaimCacheEntity.Key.class)
+@NamedQueries({
+        @NamedQuery(name = "deleteExpiredRestClaimCache",
+                query = "delete from ClaimCacheEntity c where c.expiresAt < :now")
+})
+public class ClaimCacheEntity {
+
+    @Id
+    @Column(name = "REALM_ID", length = 36)
+    private String realmId;
+
+    @Id
+    @Column(name = "USER_ID", length = 36)
+    private String userId;
+
+    @Id
+    @Column(name = "MAPPER_ID", length = 36)
+    private String mapperId;
+
+    @Nationalized
+    @Column(name = "CLAIMS")
+    private String claims;
+
+    @Column(name = "EXPIRES_AT")
+    private long expiresAt;
+
+    @Column(name = "UPDATED_AT")
+    private long updatedAt;
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getMapperId() {
+        return mapperId;
+    }
+
+    public void setMapperId(String mapperId) {
+        this.mapperId = mapperId;
+    }
+
+    public String getClaims() {
+        return claims;
+    }
+
+    public void setClaims(String claims) {
+        this.claims = claims;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(long updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    /** Composite primary key. */
+    public static class Key implements Serializable {
+
+        private String realmId;
+        private String userId;
+        private String mapperId;
+
+        public Key() {
+        }
+
+        public Key(String realmId, String userId, String mapperId) {
+            this.realmId = realmId;
+            this.userId = userId;
+            this.mapperId = mapperId;
+        }
+
+        public String getRealmId() {
+            return realmId;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getMapperId() {
+            return mapperId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && realmId.equals(k.realmId) && userId.equals(k.userId)
+                    && mapperId.equals(k.mapperId);
+        }
+
+        @Override
+        public int hashCode() {
+            return (realmId.hashCode() * 31 + userId.hashCode()) * 31 + mapperId.hashCode();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.github.jowe112.keycloak.jpa;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import java.util.List;
+
+/**
+ * Registers {@link ClaimCacheEntity} and its Liquibase changelog with
+ * Keycloak's JPA persistence unit.
+ */
+public class ClaimCacheJpaEntityProvider implements JpaEntityProvider {
+
+    @Override
+    public List<Class<?>> getEntities() {
+        return List.of(ClaimCacheEntity.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/rest-claim-mapper-changelog.xml";
+    }
+
+    @Override
+    public String getFactoryId() {
+        return ClaimCacheJpaEntityProviderFactory.PROVIDER_ID;
+    }
+
+    @Override
+    public void close() {
+        // no-op
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.jowe112.keycloak.jpa;
+
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
+
+import java.time.Duration;
+
+/**
+ * Factory that adds the {@code REST_CLAIM_CACHE} table used by
+ * {@code cache.store=jpa}. Keycloak creates the table from the changelog on
+ * startup.
+ * <p>
+ * Once the database is migrated, expired rows are purged every
+ * {@link #PURGE_INTERVAL} on one node of the cluster.
+ * <p>
+ * Registered via
+ * {@code META-INF/services/org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory}.
+ */
+public class ClaimCacheJpaEntityProviderFactory implements JpaEntityProviderFactory {
+
+    public static final String PROVIDER_ID = "rest-claim-mapper-cache";
+
+    /** Interval of the cluster-wide purge of expired rows. */
+    static final Duration PURGE_INTERVAL = Duration.ofMinutes(15);
+
+    private static final ClaimCacheJpaEntityProvider PROVIDER = new ClaimCacheJpaEntityProvider();
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public JpaEntityProvider create(KeycloakSession session) {
+        return PROVIDER;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        // no-op
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        factory.register(event -> {
+            if (event instanceof PostMigrationEvent) {
+                long interval = PURGE_INTERVAL.toMillis();
+                KeycloakModelUtils.runJobInTransaction(factory, session -> session.getProvider(TimerProvider.class)
+                        .schedule(new ClusterAwareScheduledTaskRunner(factory, new ExpiredClaimCachePurgeTask(),
+                                interval), interval, ExpiredClaimCachePurgeTask.TASK_NAME));
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        // no-op
+    }
+}
@@ -0,0 +1,36 @@
+package com.github.jowe112.keycloak.jpa;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.timer.ScheduledTask;
+
+import java.time.Instant;
+
+/**
+ * Deletes {@code REST_CLAIM_CACHE} rows whose every endpoint has expired.
+ * Scheduled cluster-aware by {@link ClaimCacheJpaEntityProviderFactory}, so
+ * only one node purges per interval.
+ */
+public class ExpiredClaimCachePurgeTask implements ScheduledTask {
+
+    private static final Logger LOG = Logger.getLogger(ExpiredClaimCachePurgeTask.class);
+
+    public static final String TASK_NAME = "rest-claim-mapper-cache-purge";
+
+    @Override
+    public void run(KeycloakSession session) {
+        int deleted = session.getProvider(JpaConnectionProvider.class).getEntityManager()
+                .createNamedQuery("deleteExpiredRestClaimCache")
+                .setParameter("now", Instant.now().getEpochSecond())
+                .executeUpdate();
+        if (deleted > 0) {
+            LOG.debugf("Purged %d expired claim cache rows", deleted);
+        }
+    }
+
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+}
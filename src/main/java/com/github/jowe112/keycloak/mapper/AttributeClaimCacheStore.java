@@ -0,0 +1,106 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link ClaimCacheStore} writing one {@code UserModel} attribute per claim:
+ *
+ * <pre>
+ *   rest_claim_mapper.&lt;mapperId&gt;.&lt;claimName&gt;        — the cached claim value
+ *   rest_claim_mapper.&lt;mapperId&gt;.ep&lt;N&gt;.cached_at     — &lt;epoch seconds&gt;|&lt;configHash&gt;[|&lt;adaptive TTL&gt;]
+ * </pre>
+ */
+final class AttributeClaimCacheStore implements ClaimCacheStore {
+
+    static final AttributeClaimCacheStore INSTANCE = new AttributeClaimCacheStore();
+
+    private AttributeClaimCacheStore() {
+    }
+
+    @Override
+    public boolean usesUserAttributes() {
+        return true;
+    }
+
+    @Override
+    public @NotNull Handle open(@NotNull KeycloakSession session, @NotNull RealmModel realm, @NotNull UserModel user,
+            @NotNull MapperPlan plan) {
+        return new Handle() {
+            @Override
+            public @Nullable Entry get(@NotNull EndpointConfig ep) {
+                List<String> stamp = user.getAttributeStream(plan.cachedAtKey(ep)).toList();
+                if (stamp.isEmpty()) {
+                    return null;
+                }
+                try {
+                    String[] parts = stamp.get(0).split("\\|");
+                    long cachedAt = Long.parseLong(parts[0]);
+                    String hash = parts.length > 1 ? parts[1] : "";
+                    long ttl = parts.length > 2 ? Long.parseLong(parts[2]) : 0;
+                    return new Entry(cachedAt, hash, readClaims(user, plan, ep), ttl);
+                } catch (NumberFormatException e) {
+                    // Corrupt stamp — treat as a miss
+                    return null;
+                }
+            }
+
+            @Override
+            public void put(@NotNull EndpointConfig ep, @NotNull Entry entry) {
+                // JPA requires an active transaction, so this runs on the request thread.
+                // Only values that actually changed are written, saving their UPDATEs;
+                // the stamp below is always written, so the user is still marked for
+                // update and evicted from the cluster user cache once per refresh
+                for (MappingRule rule : ep.getMappingRules()) {
+                    String attrKey = plan.claimKey(rule.getClaimName());
+                    Object value = entry.claims().get(rule.getClaimName());
+                    List<String> current = user.getAttributeStream(attrKey).toList();
+                    if (value == null) {
+                        if (!current.isEmpty()) {
+                            user.removeAttribute(attrKey);
+                        }
+                    } else if (value instanceof List<?> list) {
+                        List<String> values = list.stream().map(Object::toString).toList();
+                        if (!values.equals(current)) {
+                            user.setAttribute(attrKey, values);
+                        }
+                    } else if (!List.of(value.toString()).equals(current)) {
+                        user.setSingleAttribute(attrKey, value.toString());
+                    }
+                }
+                touch(ep, entry.cachedAt(), entry.ttlSeconds());
+            }
+
+            @Override
+            public void touch(@NotNull EndpointConfig ep, long cachedAt, long ttlSeconds) {
+                String stamp = cachedAt + "|" + ep.getConfigHash();
+                user.setSingleAttribute(plan.cachedAtKey(ep), ttlSeconds > 0 ? stamp + "|" + ttlSeconds : stamp);
+            }
+
+            @Override
+            public void flush() {
+                // every put is written immediately
+            }
+        };
+    }
+
+    /** Reads the cached claims of one endpoint from the per-claim attributes. */
+    private static @NotNull Map<String, Object> readClaims(@NotNull UserModel user, @NotNull MapperPlan plan,
+            @NotNull EndpointConfig ep) {
+        Map<String, Object> result = new HashMap<>();
+        for (MappingRule rule : ep.getMappingRules()) {
+            List<String> values = user.getAttributeStream(plan.claimKey(rule.getClaimName())).toList();
+            if (!values.isEmpty()) {
+                result.put(rule.getClaimName(), values.size() == 1 ? values.get(0) : values);
+            }
+        }
+        return result;
+    }
+}
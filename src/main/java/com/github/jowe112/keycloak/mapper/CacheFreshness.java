@@ -0,0 +1,124 @@
+package com.github.jowe112.keycloak.mapper;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Freshness check shared by all claim caches, spreading expirations so users
+ * cached in the same burst do not all expire in the same second.
+ * <p>
+ * Two techniques are combined:
+ * <ul>
+ * <li><strong>TTL jitter</strong> — each user and endpoint gets a fixed
+ * effective TTL between {@code (1 - }{@value #JITTER}{@code ) × ttl} and
+ * {@code ttl}, derived from a hash of the user id, so a burst of logins expires
+ * spread over the last {@value #JITTER} of the TTL instead of all at once.</li>
+ * <li><strong>Probabilistic early expiration</strong> (XFetch) — an entry of
+ * age {@code a} counts as expired once
+ * {@code a - cost × }{@value #BETA}{@code  × ln(random) ≥ effective TTL},
+ * where {@code cost} is the endpoint's observed fetch time. Slow endpoints are
+ * refreshed a little earlier, one request at a time, rather than by every
+ * request that finds the entry expired.</li>
+ * </ul>
+ * Fetch costs are tracked per endpoint configuration as an exponentially
+ * weighted moving average of successful fetches.
+ * <p>
+ * With {@value RestClaimMapper#CFG_CACHE_TTL_ADAPTIVE}, the TTL itself is
+ * chosen per user and endpoint: it starts at the endpoint's configured TTL (the
+ * floor), is multiplied by {@value #ADAPTIVE_GROWTH} by every refresh that
+ * returns unchanged claims, up to
+ * {@value RestClaimMapper#CFG_CACHE_TTL_MAX}, and drops back to the floor on
+ * the first change. The current value is stored with the entry
+ * ({@link ClaimCacheStore.Entry#ttlSeconds()}).
+ */
+final class CacheFreshness {
+
+    /** Fraction of the TTL over which expirations are spread. */
+    static final double JITTER = 0.1;
+
+    /** XFetch aggressiveness; larger values refresh earlier. */
+    static final double BETA = 1.0;
+
+    /** Factor by which an adaptive TTL grows per unchanged refresh. */
+    static final int ADAPTIVE_GROWTH = 2;
+
+    /** Weight of the latest fetch in the moving average. */
+    private static final double COST_ALPHA = 0.2;
+
+    /** Key: endpoint config hash. Value: moving average fetch time in nanoseconds. */
+    private static final Cache<String, AtomicLong> FETCH_COSTS = Caffeine.newBuilder()
+            .maximumSize(1_000)
+            .build();
+
+    private CacheFreshness() {
+    }
+
+    /**
+     * Returns whether an entry of the given endpoint and user, cached
+     * {@code ageSeconds} ago, is still served under a TTL of {@code ttlSeconds}.
+     */
+    static boolean isFresh(long ageSeconds, long ttlSeconds, @NotNull String userId, @NotNull EndpointConfig ep) {
+        long ttl = jitteredTtl(ttlSeconds, userId, ep.getIndex());
+        if (ageSeconds >= ttl) {
+            return false;
+        }
+        double early = fetchCostSeconds(ep) * BETA * -Math.log(1.0 - ThreadLocalRandom.current().nextDouble());
+        return ageSeconds + early < ttl;
+    }
+
+    /** Returns the user's fixed effective TTL, {@code ttlSeconds} shortened by up to {@value #JITTER}. */
+    static long jitteredTtl(long ttlSeconds, @NotNull String userId, int endpointIndex) {
+        if (ttlSeconds <= 1) {
+            return ttlSeconds;
+        }
+        long h = (userId.hashCode() * 31L + endpointIndex) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 29;
+        double fraction = (h >>> 11) * 0x1.0p-53;
+        return ttlSeconds - (long) (ttlSeconds * JITTER * fraction);
+    }
+
+    /** Returns the TTL that applies to {@code cached}, an entry of the endpoint. */
+    static long ttlSeconds(@NotNull MapperPlan plan, @NotNull EndpointConfig ep,
+            @Nullable ClaimCacheStore.Entry cached) {
+        long floor = plan.getTtlSeconds(ep);
+        if (!plan.isAdaptiveTtl() || cached == null || cached.ttlSeconds() <= 0) {
+            return floor;
+        }
+        return Math.max(floor, Math.min(cached.ttlSeconds(), plan.getMaxTtlSeconds()));
+    }
+
+    /**
+     * Returns the {@link ClaimCacheStore.Entry#ttlSeconds()} to store after a
+     * refresh of the endpoint that replaced {@code previous}: {@code 0} unless
+     * the TTL is adaptive, the floor after a change, the grown TTL otherwise.
+     */
+    static long nextTtlSeconds(@NotNull MapperPlan plan, @NotNull EndpointConfig ep,
+            @Nullable ClaimCacheStore.Entry previous, boolean changed) {
+        if (!plan.isAdaptiveTtl()) {
+            return 0;
+        }
+        long floor = plan.getTtlSeconds(ep);
+        if (changed || previous == null) {
+            return floor;
+        }
+        long grown = ttlSeconds(plan, ep, previous) * ADAPTIVE_GROWTH;
+        return Math.max(floor, Math.min(grown, plan.getMaxTtlSeconds()));
+    }
+
+    /** Records the duration of a successful fetch of the endpoint. */
+    static void recordFetch(@NotNull EndpointConfig ep, long nanos) {
+        AtomicLong average = FETCH_COSTS.get(ep.getConfigHash(), hash -> new AtomicLong(nanos));
+        average.getAndUpdate(current -> (long) (current + COST_ALPHA * (nanos - current)));
+    }
+
+    /** Returns the endpoint's average fetch time in seconds, {@code 0} if never fetched. */
+    static double fetchCostSeconds(@NotNull EndpointConfig ep) {
+        AtomicLong average = FETCH_COSTS.getIfPresent(ep.getConfigHash());
+        return average != null ? average.get() / 1e9 : 0;
+    }
+}
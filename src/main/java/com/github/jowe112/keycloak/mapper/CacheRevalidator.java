@@ -0,0 +1,131 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background refresh of stale cache entries, used when a mapper sets
+ * {@value RestClaimMapper#CFG_CACHE_STALE}.
+ * <p>
+ * When {@link PersistentUserHandler} serves an entry past its TTL but within
+ * the stale window, it calls {@link #revalidate} and returns the stale claims
+ * immediately. The REST call runs on the async HTTP client; at most one
+ * refresh per realm, user, mapper and endpoint is in flight on this node, later
+ * requests for the same entry just serve it stale. The result is handed to
+ * {@link CacheWriteBehind}, whose worker writes it in a transaction of its own
+ * (whether or not the mapper enables write-behind), so no database work ever
+ * runs on an HTTP client thread. A failed refresh leaves the entry as it is;
+ * the next request past the stale window fetches it synchronously.
+ */
+public final class CacheRevalidator {
+
+    private static final Logger LOG = Logger.getLogger(CacheRevalidator.class);
+
+    /** Hard limit of a background refresh, matching the synchronous fetch timeout. */
+    static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private static final CacheRevalidator INSTANCE = new CacheRevalidator(CacheWriteBehind.getInstance());
+
+    private record RefreshKey(@NotNull String realmId, @NotNull String userId, @NotNull String mapperId,
+            int endpointIndex) {
+    }
+
+    private final Set<RefreshKey> inFlight = ConcurrentHashMap.newKeySet();
+    private final CacheWriteBehind writeBehind;
+
+    // ── Metrics ───────────────────────────────────────────────────────────────
+    private final AtomicLong staleServed = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong refreshed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Stale-while-revalidate counters.
+     *
+     * @param inFlight    background refreshes running now
+     * @param staleServed endpoint results served stale
+     * @param started     background refreshes started
+     * @param refreshed   background refreshes whose result was queued for writing
+     * @param failed      background refreshes that failed, timed out or returned no data
+     */
+    public record Stats(int inFlight, long staleServed, long started, long refreshed, long failed) {
+    }
+
+    /** @param writeBehind queue that writes the refreshed entries */
+    CacheRevalidator(@NotNull CacheWriteBehind writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    static @NotNull CacheRevalidator getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records that {@code stale} was served and starts a background refresh of
+     * the endpoint unless one is already running.
+     */
+    void revalidate(@NotNull KeycloakSession session, @NotNull RealmModel realm, @NotNull UserModel user,
+            @NotNull MapperPlan plan, @NotNull EndpointConfig ep, @NotNull ClaimCacheStore.Entry stale,
+            @NotNull Map<String, String> userContext) {
+        staleServed.incrementAndGet();
+        RefreshKey key = new RefreshKey(realm.getId(), user.getId(), plan.getMapperId(), ep.getIndex());
+        if (!inFlight.add(key)) {
+            return;
+        }
+        started.incrementAndGet();
+
+        KeycloakSessionFactory factory = session.getKeycloakSessionFactory();
+        try {
+            String queryString = QueryScriptEvaluator.evaluate(ep.getCompiledQueryScript(), userContext);
+            if (queryString == null) {
+                throw new IllegalStateException("query script failed");
+            }
+            RestApiClient.getInstance().fetchClaims(ep, queryString)
+                    .orTimeout(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)
+                    .whenComplete((mapped, e) -> {
+                        try {
+                            if (e != null || mapped == null) {
+                                failed.incrementAndGet();
+                                LOG.debugf("Background refresh of endpoint %d for user %s failed: %s",
+                                        ep.getIndex(), key.userId(), e != null ? e.getMessage() : "no data");
+                                return;
+                            }
+                            long now = Instant.now().getEpochSecond();
+                            boolean changed = !stale.claims().equals(mapped);
+                            long ttl = CacheFreshness.nextTtlSeconds(plan, ep, stale, changed);
+                            ClaimCacheStore.Entry entry = changed
+                                    ? new ClaimCacheStore.Entry(now, ep.getConfigHash(), mapped, ttl)
+                                    : null;
+                            writeBehind.submit(factory, key.realmId(), key.userId(), plan, ep,
+                                    entry, now, ttl);
+                            refreshed.incrementAndGet();
+                        } finally {
+                            inFlight.remove(key);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            inFlight.remove(key);
+            failed.incrementAndGet();
+            LOG.warnf("Could not start background refresh of endpoint %d for user %s: %s", ep.getIndex(),
+                    key.userId(), e.getMessage());
+        }
+    }
+
+    /** Returns the current stale-while-revalidate counters. */
+    @NotNull
+    Stats stats() {
+        return new Stats(inFlight.size(), staleServed.get(), started.get(), refreshed.get(), failed.get());
+    }
+}
@@ -0,0 +1,351 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakSessionTask;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind queue for {@link ClaimCacheStore} updates, used when a mapper
+ * enables {@value RestClaimMapper#CFG_CACHE_WRITE_BEHIND}.
+ * <p>
+ * Instead of writing to the {@code UserModel} inside the token request's JPA
+ * transaction, {@link PersistentUserHandler} records its cache updates on a
+ * {@link #wrap wrapped} handle. On {@link ClaimCacheStore.Handle#flush()} they
+ * are queued per realm, user and mapper; a later update of the same user
+ * replaces the queued one endpoint by endpoint (last write wins). A single
+ * background thread drains the queue every {@link #FLUSH_INTERVAL}, or as soon
+ * as {@value #BATCH_SIZE} users are pending, writing up to
+ * {@value #BATCH_SIZE} users per {@link KeycloakSession} transaction. If a
+ * batch fails (e.g. an optimistic-lock conflict), its users are retried one
+ * transaction each so a single conflict does not drop the others.
+ * <p>
+ * Queued updates are visible to later requests on this node through the
+ * wrapped handle, so a user is not re-fetched while its write is pending; an
+ * update leaves the queue only once its transaction has committed (or failed
+ * for good), so there is no moment in which neither is visible. The
+ * queue holds at most {@value #MAX_PENDING} users; beyond that, updates are
+ * written synchronously as without write-behind. Updates still queued when the
+ * node stops are lost, which only costs a re-fetch.
+ * <p>
+ * Background refreshes ({@link CacheRevalidator}) are always written through
+ * this queue, via {@link #submit}.
+ */
+public final class CacheWriteBehind {
+
+    private static final Logger LOG = Logger.getLogger(CacheWriteBehind.class);
+
+    /** Maximum number of users with queued updates. */
+    static final int MAX_PENDING = 10_000;
+
+    /** Maximum number of users written per transaction. */
+    static final int BATCH_SIZE = 100;
+
+    /** Delay between two scheduled drains of the queue. */
+    static final Duration FLUSH_INTERVAL = Duration.ofMillis(500);
+
+    private static final CacheWriteBehind INSTANCE =
+            new CacheWriteBehind(KeycloakModelUtils::runJobInTransaction, true);
+
+    /** Runs a job in a session and transaction of its own. */
+    @FunctionalInterface
+    interface TransactionRunner {
+        void run(@NotNull KeycloakSessionFactory factory, @NotNull KeycloakSessionTask task);
+    }
+
+    private record WriteKey(@NotNull String realmId, @NotNull String userId, @NotNull String mapperId) {
+    }
+
+    /** Queued update of one endpoint: a new entry, or a new stamp and TTL if {@code entry} is {@code null}. */
+    private record Op(@Nullable ClaimCacheStore.Entry entry, long cachedAt, long ttlSeconds) {
+
+        /** Applies {@code next} on top of this operation. */
+        @NotNull
+        Op then(@NotNull Op next) {
+            if (next.entry() == null && entry != null) {
+                ClaimCacheStore.Entry touched = new ClaimCacheStore.Entry(next.cachedAt(), entry.configHash(),
+                        entry.claims(), next.ttlSeconds());
+                return new Op(touched, next.cachedAt(), next.ttlSeconds());
+            }
+            return next;
+        }
+    }
+
+    /** All queued updates of one user and mapper. */
+    private record PendingWrite(@NotNull MapperPlan plan, @NotNull Map<Integer, Op> ops, long queuedAt) {
+    }
+
+    private final Map<WriteKey, PendingWrite> pending = new ConcurrentHashMap<>();
+
+    private volatile KeycloakSessionFactory sessionFactory;
+
+    private final TransactionRunner runner;
+    private final boolean scheduled;
+
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "rest-claim-mapper-write-behind");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // ── Metrics ───────────────────────────────────────────────────────────────
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong transactions = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final AtomicLong lastLatencyNanos = new AtomicLong();
+
+    /**
+     * Write-behind counters.
+     *
+     * @param pending          users with queued updates right now
+     * @param maxPending       queue bound ({@value #MAX_PENDING})
+     * @param enqueued         updates accepted into the queue
+     * @param coalesced        updates merged into an already queued one
+     * @param rejected         updates written synchronously because the queue was full
+     * @param flushed          users written by the background worker
+     * @param failed           users whose update could not be written
+     * @param transactions     transactions committed by the worker
+     * @param lastFlushLatencyMs time from queueing to commit of the last written user
+     * @param maxFlushLatencyMs  maximum time from queueing to commit
+     * @param avgFlushLatencyMs  mean time from queueing to commit
+     */
+    public record Stats(int pending, int maxPending, long enqueued, long coalesced, long rejected, long flushed,
+            long failed, long transactions, long lastFlushLatencyMs, long maxFlushLatencyMs,
+            double avgFlushLatencyMs) {
+    }
+
+    /**
+     * @param runner    runs each write transaction
+     * @param scheduled whether the worker drains the queue by itself; if not,
+     *                  updates are written only by explicit {@link #drain()} calls
+     */
+    CacheWriteBehind(@NotNull TransactionRunner runner, boolean scheduled) {
+        this.runner = runner;
+        this.scheduled = scheduled;
+        if (scheduled) {
+            long interval = FLUSH_INTERVAL.toMillis();
+            worker.scheduleWithFixedDelay(this::drain, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static @NotNull CacheWriteBehind getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Wraps a handle opened on the request thread: reads see this node's queued
+     * updates on top of the stored ones, writes are queued on
+     * {@link ClaimCacheStore.Handle#flush()}.
+     */
+    @NotNull
+    ClaimCacheStore.Handle wrap(@NotNull KeycloakSession session, @NotNull RealmModel realm,
+            @NotNull UserModel user, @NotNull MapperPlan plan, @NotNull ClaimCacheStore.Handle stored) {
+        sessionFactory = session.getKeycloakSessionFactory();
+        WriteKey key = new WriteKey(realm.getId(), user.getId(), plan.getMapperId());
+        PendingWrite queued = pending.get(key);
+        Map<Integer, Op> ops = new HashMap<>();
+
+        return new ClaimCacheStore.Handle() {
+            @Override
+            public @Nullable ClaimCacheStore.Entry get(@NotNull EndpointConfig ep) {
+                Op op = queued != null ? queued.ops().get(ep.getIndex()) : null;
+                ClaimCacheStore.Entry entry = op != null && op.entry() != null ? op.entry() : stored.get(ep);
+                if (op != null && op.entry() == null && entry != null) {
+                    entry = new ClaimCacheStore.Entry(op.cachedAt(), entry.configHash(), entry.claims(),
+                            op.ttlSeconds());
+                }
+                return entry;
+            }
+
+            @Override
+            public void put(@NotNull EndpointConfig ep, @NotNull ClaimCacheStore.Entry entry) {
+                ops.put(ep.getIndex(), new Op(entry, entry.cachedAt(), entry.ttlSeconds()));
+            }
+
+            @Override
+            public void touch(@NotNull EndpointConfig ep, long cachedAt, long ttlSeconds) {
+                ops.merge(ep.getIndex(), new Op(null, cachedAt, ttlSeconds), Op::then);
+            }
+
+            @Override
+            public void flush() {
+                if (ops.isEmpty()) {
+                    return;
+                }
+                if (!enqueue(key, plan, Map.copyOf(ops))) {
+                    // Queue full — write on the request thread as without write-behind
+                    apply(stored, plan, ops);
+                    stored.flush();
+                }
+                ops.clear();
+            }
+        };
+    }
+
+    /**
+     * Queues the update of a single endpoint computed off the request thread
+     * (a {@link CacheRevalidator} refresh): a new {@code entry}, or a new stamp
+     * and TTL if it is {@code null}. Dropped if the queue is full, which only costs a
+     * later re-fetch.
+     */
+    void submit(@NotNull KeycloakSessionFactory factory, @NotNull String realmId, @NotNull String userId,
+            @NotNull MapperPlan plan, @NotNull EndpointConfig ep, @Nullable ClaimCacheStore.Entry entry,
+            long cachedAt, long ttlSeconds) {
+        sessionFactory = factory;
+        WriteKey key = new WriteKey(realmId, userId, plan.getMapperId());
+        if (!enqueue(key, plan, Map.of(ep.getIndex(), new Op(entry, cachedAt, ttlSeconds)))) {
+            LOG.debugf("Write-behind queue full — dropping refreshed cache entry of user %s", userId);
+        }
+    }
+
+    /** Returns the current write-behind counters. */
+    @NotNull
+    Stats stats() {
+        long count = flushed.get();
+        return new Stats(pending.size(), MAX_PENDING, enqueued.get(), coalesced.get(), rejected.get(), count,
+                failed.get(), transactions.get(), TimeUnit.NANOSECONDS.toMillis(lastLatencyNanos.get()),
+                TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get()),
+                count == 0 ? 0 : totalLatencyNanos.get() / 1e6 / count);
+    }
+
+    // ── Queue ─────────────────────────────────────────────────────────────────
+
+    private boolean enqueue(@NotNull WriteKey key, @NotNull MapperPlan plan, @NotNull Map<Integer, Op> ops) {
+        if (pending.size() >= MAX_PENDING && !pending.containsKey(key)) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        enqueued.incrementAndGet();
+        pending.merge(key, new PendingWrite(plan, ops, System.nanoTime()), (queued, next) -> {
+            coalesced.incrementAndGet();
+            Map<Integer, Op> merged = new HashMap<>(queued.ops());
+            next.ops().forEach((index, op) -> merged.merge(index, op, Op::then));
+            return new PendingWrite(next.plan(), Map.copyOf(merged), queued.queuedAt());
+        });
+        if (scheduled && pending.size() >= BATCH_SIZE) {
+            worker.execute(this::drain);
+        }
+        return true;
+    }
+
+    /** Writes all queued updates; runs on the worker thread only. */
+    void drain() {
+        KeycloakSessionFactory factory = sessionFactory;
+        if (factory == null || pending.isEmpty()) {
+            return;
+        }
+        try {
+            Map<WriteKey, PendingWrite> batch = new HashMap<>();
+            for (Map.Entry<WriteKey, PendingWrite> queued : pending.entrySet()) {
+                // Stays queued, and visible to readers, until written
+                batch.put(queued.getKey(), queued.getValue());
+                if (batch.size() == BATCH_SIZE) {
+                    write(factory, batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                write(factory, batch);
+            }
+        } catch (RuntimeException e) {
+            // Never let an exception cancel the scheduled drain
+            LOG.errorf(e, "Write-behind flush failed");
+        }
+    }
+
+    private void write(@NotNull KeycloakSessionFactory factory, @NotNull Map<WriteKey, PendingWrite> batch) {
+        try {
+            runner.run(factory, session -> {
+                session.setAttribute(ClaimCacheStore.DEDICATED_TRANSACTION, Boolean.TRUE);
+                batch.forEach((key, write) -> apply(session, key, write));
+            });
+            transactions.incrementAndGet();
+            batch.forEach(this::written);
+        } catch (RuntimeException batchError) {
+            // One conflicting user must not cost the whole batch its writes
+            LOG.debugf(batchError, "Write-behind batch of %d users failed — retrying individually", batch.size());
+            batch.forEach((key, write) -> {
+                try {
+                    runner.run(factory, session -> {
+                        session.setAttribute(ClaimCacheStore.DEDICATED_TRANSACTION, Boolean.TRUE);
+                        apply(session, key, write);
+                    });
+                    transactions.incrementAndGet();
+                    written(key, write);
+                } catch (RuntimeException e) {
+                    // Dropped, which only costs a re-fetch; a newer update of the user stays queued
+                    pending.remove(key, write);
+                    failed.incrementAndGet();
+                    LOG.warnf("Write-behind cache update for user %s failed: %s", key.userId(), e.getMessage());
+                }
+            });
+        }
+    }
+
+    private static void apply(@NotNull KeycloakSession session, @NotNull WriteKey key, @NotNull PendingWrite write) {
+        RealmModel realm = session.realms().getRealm(key.realmId());
+        if (realm == null) {
+            return;
+        }
+        session.getContext().setRealm(realm);
+        UserModel user = session.users().getUserById(realm, key.userId());
+        if (user == null) {
+            return; // deleted since the token was issued
+        }
+        ClaimCacheStore.Handle handle = write.plan().getCacheStore().open(session, realm, user, write.plan());
+        apply(handle, write.plan(), write.ops());
+        handle.flush();
+    }
+
+    private static void apply(@NotNull ClaimCacheStore.Handle handle, @NotNull MapperPlan plan,
+            @NotNull Map<Integer, Op> ops) {
+        for (EndpointConfig ep : plan.getEndpoints()) {
+            Op op = ops.get(ep.getIndex());
+            if (op == null) {
+                continue;
+            }
+            if (op.entry() != null) {
+                handle.put(ep, op.entry());
+            } else {
+                handle.touch(ep, op.cachedAt(), op.ttlSeconds());
+            }
+        }
+    }
+
+    /**
+     * Dequeues a committed update, unless a newer one was merged into it
+     * meanwhile, and drops this node's near-cache copy of the user.
+     */
+    private void written(@NotNull WriteKey key, @NotNull PendingWrite write) {
+        pending.remove(key, write);
+        ClaimNearCache.getInstance().invalidate(key.userId());
+        recordFlushed(write);
+    }
+
+    private void recordFlushed(@NotNull PendingWrite write) {
+        long latency = System.nanoTime() - write.queuedAt();
+        flushed.incrementAndGet();
+        totalLatencyNanos.addAndGet(latency);
+        lastLatencyNanos.set(latency);
+        maxLatencyNanos.accumulateAndGet(latency, Math::max);
+    }
+}
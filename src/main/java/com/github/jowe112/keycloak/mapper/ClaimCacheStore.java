@@ -0,0 +1,132 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Where {@link PersistentUserHandler} keeps the cached claims of a persistent
+ * user.
+ * <p>
+ * Four layouts are available, selected per mapper by
+ * {@value RestClaimMapper#CFG_CACHE_STORE}:
+ * <ul>
+ * <li>{@value #ATTRIBUTES} ({@link AttributeClaimCacheStore}): one
+ * {@code UserModel} attribute per claim plus one {@code cached_at} stamp per
+ * endpoint. Readable in the Admin Console.</li>
+ * <li>{@value #COMPACT} ({@link CompactClaimCacheStore}): one attribute per
+ * mapper holding all claims, timestamps and config hashes, read and written
+ * once per token.</li>
+ * <li>{@value #JPA} ({@link JpaClaimCacheStore}): the same document in a
+ * dedicated {@code REST_CLAIM_CACHE} table, keyed by realm, user and mapper,
+ * leaving {@code USER_ATTRIBUTE} untouched.</li>
+ * <li>{@value #INFINISPAN} ({@link InfinispanClaimCacheStore}): the same
+ * document in a cluster-distributed Infinispan cache, for persistent and
+ * transient users alike.</li>
+ * </ul>
+ */
+interface ClaimCacheStore {
+
+    String ATTRIBUTES = "attributes";
+    String COMPACT = "compact";
+    String JPA = "jpa";
+    String INFINISPAN = "infinispan";
+
+    /**
+     * {@link KeycloakSession} attribute set by a background job whose session
+     * transaction exists only to write cache updates. Stores that would
+     * otherwise isolate their writes in a transaction of their own write
+     * through that session instead, so a whole batch commits at once.
+     */
+    String DEDICATED_TRANSACTION = "rest_claim_mapper.cache.dedicated_transaction";
+
+    /**
+     * Cached result of one endpoint.
+     *
+     * @param cachedAt   epoch seconds of the fetch
+     * @param configHash {@link EndpointConfig#getConfigHash()} at fetch time
+     * @param claims     claim name → {@code String} or {@code List<String>}
+     * @param ttlSeconds adaptive TTL of the entry ({@value RestClaimMapper#CFG_CACHE_TTL_ADAPTIVE}),
+     *                   {@code 0} if the endpoint's configured TTL applies
+     */
+    record Entry(long cachedAt, @NotNull String configHash, @NotNull Map<String, Object> claims, long ttlSeconds) {
+
+        Entry(long cachedAt, @NotNull String configHash, @NotNull Map<String, Object> claims) {
+            this(cachedAt, configHash, claims, 0);
+        }
+    }
+
+    /** Cache view of one user, valid for the current request. */
+    interface Handle {
+
+        /** Returns the cached entry of the endpoint, or {@code null} if absent or unreadable. */
+        @Nullable
+        Entry get(@NotNull EndpointConfig ep);
+
+        /**
+         * Replaces the cached entry of the endpoint, writing only the values
+         * that differ from what is stored.
+         */
+        void put(@NotNull EndpointConfig ep, @NotNull Entry entry);
+
+        /**
+         * Marks the cached entry of the endpoint as fetched at {@code cachedAt}
+         * with the given {@link Entry#ttlSeconds()}, without rewriting its
+         * claims. Used when a re-fetch returned the same claims. For the
+         * {@code UserModel}-backed layouts this is still one attribute write,
+         * so it saves the claim writes but not the user update itself.
+         */
+        void touch(@NotNull EndpointConfig ep, long cachedAt, long ttlSeconds);
+
+        /**
+         * Writes pending changes to the store: the {@code UserModel} for
+         * {@value #ATTRIBUTES} and {@value #COMPACT}, the
+         * {@code REST_CLAIM_CACHE} table for {@value #JPA} (in a transaction of
+         * its own unless {@link #DEDICATED_TRANSACTION} is set), the cluster
+         * cache for {@value #INFINISPAN}.
+         */
+        void flush();
+    }
+
+    /**
+     * Whether the store keeps its data with the user in Keycloak's database,
+     * so it only works for persistent users and its writes belong in a
+     * database transaction.
+     */
+    default boolean requiresPersistentUser() {
+        return true;
+    }
+
+    /**
+     * Whether the store reads and writes {@code UserModel} attributes, so a
+     * {@link ClaimNearCache} in front of it saves attribute loading and user
+     * update events keep that near-cache consistent.
+     */
+    default boolean usesUserAttributes() {
+        return false;
+    }
+
+    /**
+     * Opens the cache of the given user. Must be called on the thread owning
+     * {@code session}.
+     */
+    @NotNull
+    Handle open(@NotNull KeycloakSession session, @NotNull RealmModel realm, @NotNull UserModel user,
+            @NotNull MapperPlan plan);
+
+    /** Returns the store for a {@value RestClaimMapper#CFG_CACHE_STORE} value. */
+    static @NotNull ClaimCacheStore of(@Nullable String name) {
+        String store = name != null ? name.trim().toLowerCase(Locale.ROOT) : ATTRIBUTES;
+        return switch (store) {
+            case COMPACT -> CompactClaimCacheStore.INSTANCE;
+            case JPA -> JpaClaimCacheStore.INSTANCE;
+            case INFINISPAN -> InfinispanClaimCacheStore.INSTANCE;
+            default -> AttributeClaimCacheStore.INSTANCE;
+        };
+    }
+}
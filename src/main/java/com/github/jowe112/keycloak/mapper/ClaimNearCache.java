@@ -0,0 +1,285 @@
+package com.github.jowe112.keycloak.mapper;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.cache.infinispan.InfinispanUserCacheProviderFactory;
+import org.keycloak.models.cache.infinispan.events.InvalidationEvent;
+import org.keycloak.models.cache.infinispan.events.UserCacheRealmInvalidationEvent;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node-local, size-weighted copy of what the {@code UserModel}-backed
+ * {@link ClaimCacheStore}s hold, used when a mapper enables
+ * {@value RestClaimMapper#CFG_CACHE_NEAR}.
+ * <p>
+ * Entries are keyed by user id, then by realm, mapper id and mapper
+ * configuration, and hold the cache entries of all endpoints of that mapper. A
+ * token whose endpoints are all fresh in the near-cache is served without
+ * reading a single {@code UserModel} attribute; the underlying store is only
+ * opened on a near-cache miss or when an endpoint has to be written.
+ * <p>
+ * Invalidation:
+ * <ul>
+ * <li>writes through a near-cache handle replace the local copy with what was
+ * written, and writes made elsewhere on this node (the write-behind worker)
+ * drop it;</li>
+ * <li>Keycloak's user-cache invalidation events, sent to every other node
+ * whenever a user is updated (including by these writes) or removed, drop the
+ * copies of that user, and realm-wide or full user-cache invalidations drop
+ * all of them;</li>
+ * <li>these events skip the node that sent them, so an admin change to a
+ * user's cache attributes leaves that node's copy in place until
+ * {@link #invalidateEverywhere} drops it.</li>
+ * </ul>
+ * The cache holds at most {@value #MAX_WEIGHT} weight units, roughly the number
+ * of characters of the cached claim names and values.
+ */
+public final class ClaimNearCache {
+
+    private static final Logger LOG = Logger.getLogger(ClaimNearCache.class);
+
+    /** Maximum total weight, roughly characters of cached claim names and values. */
+    static final long MAX_WEIGHT = 32_000_000;
+
+    /** Weight charged per endpoint entry on top of its claims. */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final ClaimNearCache INSTANCE = new ClaimNearCache();
+
+    /** Identifies one mapper configuration's entries of a user. */
+    private record Slot(@NotNull String realmId, @NotNull String mapperId, int configFingerprint) {
+    }
+
+    /** Key: user id. Value: slot → endpoint index → entry, all immutable. */
+    private final Cache<String, Map<Slot, Map<Integer, ClaimCacheStore.Entry>>> cache = Caffeine.newBuilder()
+            .maximumWeight(MAX_WEIGHT)
+            .weigher((String userId, Map<Slot, Map<Integer, ClaimCacheStore.Entry>> slots) -> weigh(slots))
+            .recordStats()
+            .build();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private volatile boolean listening;
+
+    /**
+     * Near-cache counters.
+     *
+     * @param users         users with at least one cached mapper
+     * @param weight        current total weight
+     * @param hits          tokens that found the mapper's entries in the near-cache
+     * @param misses        tokens that had to read the underlying store
+     * @param evictions     users evicted to stay under the weight bound
+     * @param invalidations users dropped by writes or invalidation events
+     */
+    public record Stats(long users, long weight, long hits, long misses, long evictions, long invalidations) {
+    }
+
+    private ClaimNearCache() {
+    }
+
+    static @NotNull ClaimNearCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Subscribes to Keycloak's user-cache invalidation events. Called once per
+     * node after startup; safe to call again.
+     */
+    synchronized void listen(@NotNull KeycloakSession session) {
+        if (listening) {
+            return;
+        }
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        if (cluster == null) {
+            return;
+        }
+        cluster.registerListener(InfinispanUserCacheProviderFactory.USER_INVALIDATION_EVENTS, this::onEvent);
+        cluster.registerListener(InfinispanUserCacheProviderFactory.USER_CLEAR_CACHE_EVENTS, event -> clear());
+        listening = true;
+    }
+
+    /**
+     * Opens the user's cache through the near-cache. The handle opened by
+     * {@code store} is only created when needed.
+     */
+    @NotNull
+    ClaimCacheStore.Handle open(@NotNull ClaimCacheStore store, @NotNull KeycloakSession session,
+            @NotNull RealmModel realm, @NotNull UserModel user, @NotNull MapperPlan plan) {
+        String userId = user.getId();
+        Slot slot = new Slot(realm.getId(), plan.getMapperId(), plan.getConfigFingerprint());
+        Map<Slot, Map<Integer, ClaimCacheStore.Entry>> slots = cache.getIfPresent(userId);
+        Map<Integer, ClaimCacheStore.Entry> cached = slots != null ? slots.get(slot) : null;
+        (cached != null ? hits : misses).incrementAndGet();
+
+        return new ClaimCacheStore.Handle() {
+            private ClaimCacheStore.Handle stored;
+            private Map<Integer, ClaimCacheStore.Entry> entries = cached;
+            private boolean dirty;
+
+            private @NotNull ClaimCacheStore.Handle stored() {
+                if (stored == null) {
+                    stored = store.open(session, realm, user, plan);
+                }
+                return stored;
+            }
+
+            @Override
+            public @Nullable ClaimCacheStore.Entry get(@NotNull EndpointConfig ep) {
+                if (entries == null) {
+                    // Miss — read every endpoint once, then serve from the snapshot
+                    Map<Integer, ClaimCacheStore.Entry> loaded = new HashMap<>();
+                    for (EndpointConfig endpoint : plan.getEndpoints()) {
+                        ClaimCacheStore.Entry entry = stored().get(endpoint);
+                        if (entry != null) {
+                            loaded.put(endpoint.getIndex(), entry);
+                        }
+                    }
+                    entries = Map.copyOf(loaded);
+                    remember(userId, slot, entries);
+                }
+                return entries.get(ep.getIndex());
+            }
+
+            @Override
+            public void put(@NotNull EndpointConfig ep, @NotNull ClaimCacheStore.Entry entry) {
+                stored().put(ep, entry);
+                update(ep.getIndex(), entry);
+            }
+
+            @Override
+            public void touch(@NotNull EndpointConfig ep, long cachedAt, long ttlSeconds) {
+                stored().touch(ep, cachedAt, ttlSeconds);
+                ClaimCacheStore.Entry entry = entries != null ? entries.get(ep.getIndex()) : null;
+                if (entry != null) {
+                    update(ep.getIndex(), new ClaimCacheStore.Entry(cachedAt, entry.configHash(), entry.claims(),
+                            ttlSeconds));
+                } else {
+                    entries = null;
+                    dirty = true;
+                }
+            }
+
+            @Override
+            public void flush() {
+                if (stored != null) {
+                    stored.flush();
+                }
+                if (dirty) {
+                    if (entries != null) {
+                        remember(userId, slot, entries);
+                    } else {
+                        invalidate(userId);
+                    }
+                    dirty = false;
+                }
+            }
+
+            private void update(int index, @NotNull ClaimCacheStore.Entry entry) {
+                dirty = true;
+                if (entries != null) {
+                    Map<Integer, ClaimCacheStore.Entry> updated = new HashMap<>(entries);
+                    updated.put(index, entry);
+                    entries = Map.copyOf(updated);
+                }
+            }
+        };
+    }
+
+    /** Drops all cached mappers of the user on this node. */
+    void invalidate(@NotNull String userId) {
+        if (cache.asMap().remove(userId) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops the user's copies on every node: on this one directly, on the
+     * others through the invalidation event sent when the user is evicted
+     * from Keycloak's user cache on commit.
+     */
+    void invalidateEverywhere(@NotNull KeycloakSession session, @NotNull RealmModel realm, @NotNull UserModel user) {
+        invalidate(user.getId());
+        UserCache userCache = session.getProvider(UserCache.class);
+        if (userCache != null) {
+            userCache.evict(realm, user);
+        }
+    }
+
+    @NotNull
+    Stats stats() {
+        CacheStats stats = cache.stats();
+        long weight = cache.policy().eviction().map(e -> e.weightedSize().orElse(0)).orElse(0L);
+        return new Stats(cache.estimatedSize(), weight, hits.get(), misses.get(), stats.evictionCount(),
+                invalidations.get());
+    }
+
+    // ── Internals ─────────────────────────────────────────────────────────────
+
+    private void remember(@NotNull String userId, @NotNull Slot slot,
+            @NotNull Map<Integer, ClaimCacheStore.Entry> entries) {
+        cache.asMap().compute(userId, (id, slots) -> {
+            Map<Slot, Map<Integer, ClaimCacheStore.Entry>> updated = slots != null ? new HashMap<>(slots)
+                    : new HashMap<>();
+            // Older configurations of the same mapper are dead weight
+            updated.keySet().removeIf(s -> s.mapperId().equals(slot.mapperId()) && s.realmId().equals(slot.realmId()));
+            updated.put(slot, entries);
+            return Map.copyOf(updated);
+        });
+    }
+
+    private void onEvent(@NotNull ClusterEvent event) {
+        if (event instanceof UserCacheRealmInvalidationEvent) {
+            clear();
+        } else if (event instanceof InvalidationEvent invalidation) {
+            invalidate(invalidation.getId());
+        }
+    }
+
+    private void clear() {
+        long size = cache.estimatedSize();
+        cache.invalidateAll();
+        invalidations.addAndGet(size);
+        LOG.debugf("Near-cache cleared by a cluster-wide user cache invalidation");
+    }
+
+    private static int weigh(@NotNull Map<Slot, Map<Integer, ClaimCacheStore.Entry>> slots) {
+        long weight = 0;
+        for (Map<Integer, ClaimCacheStore.Entry> entries : slots.values()) {
+            for (ClaimCacheStore.Entry entry : entries.values()) {
+                weight += ENTRY_OVERHEAD + entry.configHash().length() + weighClaims(entry.claims());
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, weight);
+    }
+
+    /** Approximate size of a claims map in characters. */
+    static long weighClaims(@NotNull Map<String, Object> claims) {
+        long weight = 0;
+        for (Map.Entry<String, Object> claim : claims.entrySet()) {
+            weight += claim.getKey().length();
+            if (claim.getValue() instanceof List<?> list) {
+                for (Object value : list) {
+                    weight += String.valueOf(value).length() + 8;
+                }
+            } else {
+                weight += String.valueOf(claim.getValue()).length();
+            }
+        }
+        return weight;
+    }
+}
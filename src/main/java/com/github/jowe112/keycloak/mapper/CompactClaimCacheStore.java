@@ -0,0 +1,204 @@
+package com.github.jowe112.keycloak.mapper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * {@link ClaimCacheStore} keeping everything a mapper caches for a user in a
+ * single {@code UserModel} attribute, {@code rest_claim_mapper.<mapperId>.cache}.
+ * <p>
+ * The value is a JSON object keyed by endpoint index:
+ *
+ * <pre>
+ *   {"1":{"t":1718000000,"h":"&lt;configHash&gt;","c":{"role":"admin","groups":["a","b"]}}}
+ * </pre>
+ *
+ * An entry with an adaptive TTL also carries it as {@code "l"} (seconds).
+ * Documents longer than {@value #COMPRESS_THRESHOLD} characters are stored
+ * gzip-compressed and Base64-encoded behind a {@value #GZIP_PREFIX} prefix when
+ * that is shorter. The attribute is read once when the handle is opened and
+ * written at most once, on {@link Handle#flush()}.
+ */
+final class CompactClaimCacheStore implements ClaimCacheStore {
+
+    private static final Logger LOG = Logger.getLogger(CompactClaimCacheStore.class);
+
+    static final CompactClaimCacheStore INSTANCE = new CompactClaimCacheStore();
+
+    /** Documents up to this length are stored as plain JSON. */
+    static final int COMPRESS_THRESHOLD = 512;
+
+    static final String GZIP_PREFIX = "gz:";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private CompactClaimCacheStore() {
+    }
+
+    @Override
+    public boolean usesUserAttributes() {
+        return true;
+    }
+
+    @Override
+    public @NotNull Handle open(@NotNull KeycloakSession session, @NotNull RealmModel realm, @NotNull UserModel user,
+            @NotNull MapperPlan plan) {
+        String key = plan.compactCacheKey();
+        return new DocumentHandle(plan, decode(user.getFirstAttribute(key))) {
+            @Override
+            protected void write(@NotNull Map<Integer, Entry> entries) {
+                user.setSingleAttribute(key, encode(entries));
+            }
+        };
+    }
+
+    /**
+     * Handle over a decoded cache document, written back as a whole at most
+     * once per {@link #flush()}.
+     */
+    abstract static class DocumentHandle implements Handle {
+        private final MapperPlan plan;
+        private final Map<Integer, Entry> entries;
+        private boolean dirty;
+
+        DocumentHandle(@NotNull MapperPlan plan, @NotNull Map<Integer, Entry> entries) {
+            this.plan = plan;
+            this.entries = entries;
+        }
+
+        /** Persists the full document. */
+        protected abstract void write(@NotNull Map<Integer, Entry> entries);
+
+        @Override
+        public @Nullable Entry get(@NotNull EndpointConfig ep) {
+            return entries.get(ep.getIndex());
+        }
+
+        @Override
+        public void put(@NotNull EndpointConfig ep, @NotNull Entry entry) {
+            entries.put(ep.getIndex(), entry);
+            dirty = true;
+        }
+
+        @Override
+        public void touch(@NotNull EndpointConfig ep, long cachedAt, long ttlSeconds) {
+            Entry cached = entries.get(ep.getIndex());
+            if (cached != null) {
+                entries.put(ep.getIndex(), new Entry(cachedAt, cached.configHash(), cached.claims(), ttlSeconds));
+                dirty = true;
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (!dirty) {
+                return;
+            }
+            // Drop endpoints that were removed from the mapper since the last write
+            entries.keySet().removeIf(index -> plan.getEndpoints().stream()
+                    .noneMatch(ep -> ep.getIndex() == index));
+            write(entries);
+            dirty = false;
+        }
+    }
+
+    // ── Serialization ─────────────────────────────────────────────────────────
+
+    /** Serializes the entries, compressing large documents. */
+    static @NotNull String encode(@NotNull Map<Integer, Entry> entries) {
+        ObjectNode root = MAPPER.createObjectNode();
+        for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+            ObjectNode node = root.putObject(String.valueOf(e.getKey()));
+            node.put("t", e.getValue().cachedAt());
+            node.put("h", e.getValue().configHash());
+            if (e.getValue().ttlSeconds() > 0) {
+                node.put("l", e.getValue().ttlSeconds());
+            }
+            ObjectNode claims = node.putObject("c");
+            for (Map.Entry<String, Object> claim : e.getValue().claims().entrySet()) {
+                if (claim.getValue() instanceof List<?> list) {
+                    ArrayNode values = claims.putArray(claim.getKey());
+                    list.forEach(v -> values.add(String.valueOf(v)));
+                } else {
+                    claims.put(claim.getKey(), String.valueOf(claim.getValue()));
+                }
+            }
+        }
+
+        String json = root.toString();
+        if (json.length() <= COMPRESS_THRESHOLD) {
+            return json;
+        }
+        String compressed = GZIP_PREFIX + Base64.getEncoder().encodeToString(gzip(json));
+        return compressed.length() < json.length() ? compressed : json;
+    }
+
+    /** Parses a stored value; a missing or unreadable value yields no entries. */
+    static @NotNull Map<Integer, Entry> decode(@Nullable String value) {
+        Map<Integer, Entry> entries = new HashMap<>();
+        if (value == null || value.isEmpty()) {
+            return entries;
+        }
+        try {
+            String json = value.startsWith(GZIP_PREFIX)
+                    ? gunzip(Base64.getDecoder().decode(value.substring(GZIP_PREFIX.length())))
+                    : value;
+            for (Map.Entry<String, JsonNode> e : MAPPER.readTree(json).properties()) {
+                JsonNode node = e.getValue();
+                Map<String, Object> claims = new HashMap<>();
+                node.path("c").properties().forEach(claim -> claims.put(claim.getKey(),
+                        claim.getValue().isArray() ? textValues(claim.getValue()) : claim.getValue().asText()));
+                entries.put(Integer.parseInt(e.getKey()),
+                        new Entry(node.path("t").asLong(), node.path("h").asText(), claims, node.path("l").asLong(0)));
+            }
+        } catch (IOException | RuntimeException e) {
+            // Corrupt cache — re-fetch
+            LOG.debugf("Ignoring unreadable compact cache value: %s", e.getMessage());
+            entries.clear();
+        }
+        return entries;
+    }
+
+    private static @NotNull List<String> textValues(@NotNull JsonNode array) {
+        List<String> values = new ArrayList<>(array.size());
+        array.forEach(v -> values.add(v.asText()));
+        return values;
+    }
+
+    private static byte[] gzip(@NotNull String json) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length() / 2);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(json.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static @NotNull String gunzip(byte[] data) throws IOException {
+        try (GZIPInputStream gz = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return new String(gz.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
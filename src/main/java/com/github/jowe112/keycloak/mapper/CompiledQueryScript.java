@@ -0,0 +1,288 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.graalvm.polyglot.Source;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@code query.script} compiled once per endpoint configuration.
+ * <p>
+ * The script expression is wrapped as a JavaScript function whose parameters
+ * are the declared {@code query.param.K} names:
+ *
+ * <pre>
+ *   (function(username, email) {
+ *   'use strict';
+ *   return (
+ *   "?user=" + username + "&amp;mail=" + email
+ *   );
+ *   })
+ * </pre>
+ *
+ * A terminating {@code ;} (with any whitespace or comments around it) is
+ * dropped before wrapping. The resulting {@link Source} text is identical for
+ * every user, so GraalVM parses it once per engine and each evaluation is a
+ * plain call with the current values as arguments.
+ * <p>
+ * Scripts that are not a single expression (e.g. contain statements) cannot
+ * be wrapped; for those {@link QueryScriptEvaluator} falls back to evaluating
+ * the script with a {@code var} prologue, as before.
+ * <p>
+ * Most scripts never reach GraalVM at all: simple concatenations of literals,
+ * declared params and {@code encodeURIComponent(…)} are compiled by
+ * {@link ScriptTemplateCompiler} into a pure-Java {@link QueryTemplate}. In
+ * {@value #MODE_TEMPLATE} mode the script is an RFC 6570 {@link UriTemplate}
+ * and JavaScript is not involved.
+ */
+public final class CompiledQueryScript {
+
+    private static final Logger LOG = Logger.getLogger(CompiledQueryScript.class);
+
+    /** Query mode: {@code query.script} is a JavaScript expression. */
+    public static final String MODE_SCRIPT = "script";
+
+    /** Query mode: {@code query.script} is an RFC 6570 URI template. */
+    public static final String MODE_TEMPLATE = "template";
+
+    /** Pragma a script can carry (in a comment) to opt out of result caching. */
+    public static final String NO_CACHE_PRAGMA = "@no-cache";
+
+    /** Script fragments whose result is not a pure function of the arguments. */
+    private static final List<String> NON_DETERMINISTIC = List.of("Math.random", "Date", "performance");
+
+    private final String script;
+    private final List<String> params;
+    private final String id;
+
+    /** JS-free form of the script, or {@code null} if it needs GraalVM. */
+    private final QueryTemplate nativeTemplate;
+
+    private final Source functionSource;
+
+    /** Whether GraalVM results may be memoized per argument values. */
+    private final boolean resultCacheable;
+
+    /** Set once the function form failed to parse; from then on only the fallback is used. */
+    private volatile boolean functionFormUnsupported;
+
+    private CompiledQueryScript(@Nullable String script, @NotNull List<String> params, @NotNull String mode,
+            boolean cacheResults) {
+        this.script = script;
+        this.params = List.copyOf(new LinkedHashSet<>(params));
+        this.id = Integer.toHexString(31 * (31 * (script != null ? script.hashCode() : 0)
+                + this.params.hashCode()) + mode.hashCode());
+
+        if (isBlank()) {
+            this.nativeTemplate = null;
+            this.functionSource = null;
+        } else if (MODE_TEMPLATE.equalsIgnoreCase(mode)) {
+            this.nativeTemplate = parseTemplate(script);
+            this.functionSource = null;
+        } else {
+            this.nativeTemplate = ScriptTemplateCompiler.compile(script, this.params);
+            this.functionSource = nativeTemplate != null ? null
+                    : Source.newBuilder("js", buildFunctionText(), "query-script-" + id + ".js")
+                            .cached(true)
+                            .buildLiteral();
+        }
+        // Native templates are cheaper to expand than to look up
+        this.resultCacheable = cacheResults && functionSource != null && isDeterministic(script);
+    }
+
+    /**
+     * Compiles the given JavaScript query script for the given ordered
+     * parameter names.
+     *
+     * @param script the JS expression, e.g. {@code "?user=" + username}
+     * @param params declared {@code query.param.K} names, in order
+     */
+    public static @NotNull CompiledQueryScript compile(@Nullable String script, @NotNull List<String> params) {
+        return new CompiledQueryScript(script, params, MODE_SCRIPT, false);
+    }
+
+    /**
+     * Compiles the given query script in the given mode.
+     *
+     * @param script       the JS expression or URI template
+     * @param params       declared {@code query.param.K} names, in order
+     * @param mode         {@value #MODE_SCRIPT} or {@value #MODE_TEMPLATE}
+     * @param cacheResults whether GraalVM results may be memoized; ignored for
+     *                     scripts carrying {@value #NO_CACHE_PRAGMA} or using
+     *                     non-deterministic APIs
+     */
+    public static @NotNull CompiledQueryScript compile(@Nullable String script, @NotNull List<String> params,
+            @NotNull String mode, boolean cacheResults) {
+        return new CompiledQueryScript(script, params, mode, cacheResults);
+    }
+
+    public @Nullable String getScript() {
+        return script;
+    }
+
+    /** Declared parameter names, de-duplicated, in declaration order. */
+    public @NotNull List<String> getParams() {
+        return params;
+    }
+
+    /** Stable identifier of this script and parameter list. */
+    public @NotNull String getId() {
+        return id;
+    }
+
+    public boolean isBlank() {
+        return script == null || script.isBlank();
+    }
+
+    /**
+     * Returns {@code true} if this script is evaluated in plain Java, without
+     * GraalVM.
+     */
+    public boolean isNative() {
+        return nativeTemplate != null;
+    }
+
+    /**
+     * Returns {@code true} if results of this script are memoized per argument
+     * values: the endpoint opted in, the script runs on GraalVM, does not carry
+     * {@value #NO_CACHE_PRAGMA}, and does not use time or randomness.
+     */
+    public boolean isResultCacheable() {
+        return resultCacheable;
+    }
+
+    @Nullable
+    QueryTemplate getNativeTemplate() {
+        return nativeTemplate;
+    }
+
+    @Nullable
+    Source getFunctionSource() {
+        return functionFormUnsupported ? null : functionSource;
+    }
+
+    void markFunctionFormUnsupported() {
+        functionFormUnsupported = true;
+    }
+
+    /**
+     * Returns the function arguments for the given user context: the value of
+     * every declared parameter in order, {@code ""} if absent.
+     */
+    @NotNull
+    Object[] getArguments(@NotNull Map<String, String> userContext) {
+        Object[] args = new Object[params.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = userContext.getOrDefault(params.get(i), "");
+        }
+        return args;
+    }
+
+    private static boolean isDeterministic(@NotNull String script) {
+        return !script.contains(NO_CACHE_PRAGMA) && NON_DETERMINISTIC.stream().noneMatch(script::contains);
+    }
+
+    private static @NotNull QueryTemplate parseTemplate(@NotNull String template) {
+        try {
+            return UriTemplate.parse(template.trim());
+        } catch (IllegalArgumentException e) {
+            LOG.warnf("Invalid URI template '%s': %s — query string will be empty", template, e.getMessage());
+            return userContext -> "";
+        }
+    }
+
+    private @NotNull String buildFunctionText() {
+        // The newlines keep a trailing line comment in the script from
+        // swallowing the closing parenthesis.
+        return "(function(" + String.join(", ", params) + ") {\n'use strict';\nreturn (\n"
+                + stripTerminator(script) + "\n);\n})";
+    }
+
+    /**
+     * Removes the statement terminators ending the script, so that
+     * {@code "?u=" + username;} can be wrapped as an expression. Comments and
+     * whitespace around them are kept.
+     */
+    static @NotNull String stripTerminator(@NotNull String script) {
+        String body = script;
+        int last;
+        while ((last = lastSignificantIndex(body)) >= 0 && body.charAt(last) == ';') {
+            body = body.substring(0, last) + body.substring(last + 1);
+        }
+        return body;
+    }
+
+    /**
+     * Returns the index of the last character that is not whitespace or part
+     * of a comment, or {@code -1}. Skips string and template literals so that
+     * comment markers inside them are not mistaken for comments; regular
+     * expression literals are not recognised, which at worst leaves the
+     * terminator in place and the script on the fallback path.
+     */
+    private static int lastSignificantIndex(@NotNull String s) {
+        int last = -1;
+        // Brace depth of each enclosing template substitution ${…}
+        Deque<int[]> templates = new ArrayDeque<>();
+        boolean inTemplate = false;
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (inTemplate) {
+                if (c == '\\') {
+                    i += 2;
+                    continue;
+                }
+                if (c == '`') {
+                    inTemplate = false;
+                    last = i;
+                } else if (c == '$' && i + 1 < s.length() && s.charAt(i + 1) == '{') {
+                    templates.push(new int[] { 0 });
+                    inTemplate = false;
+                    i++;
+                }
+                i++;
+                continue;
+            }
+            if (c == '/' && i + 1 < s.length() && s.charAt(i + 1) == '/') {
+                int eol = s.indexOf('\n', i);
+                i = eol < 0 ? s.length() : eol;
+                continue;
+            }
+            if (c == '/' && i + 1 < s.length() && s.charAt(i + 1) == '*') {
+                int end = s.indexOf("*/", i + 2);
+                i = end < 0 ? s.length() : end + 2;
+                continue;
+            }
+            if (c == '"' || c == '\'') {
+                int j = i + 1;
+                while (j < s.length() && s.charAt(j) != c) {
+                    j += s.charAt(j) == '\\' ? 2 : 1;
+                }
+                last = Math.min(j, s.length() - 1);
+                i = j + 1;
+                continue;
+            }
+            if (c == '`') {
+                inTemplate = true;
+            } else if (!templates.isEmpty() && c == '{') {
+                templates.peek()[0]++;
+            } else if (!templates.isEmpty() && c == '}') {
+                if (templates.peek()[0]-- == 0) {
+                    templates.pop();
+                    inTemplate = true;
+                }
+            }
+            if (!Character.isWhitespace(c)) {
+                last = i;
+            }
+            i++;
+        }
+        return last;
+    }
+}
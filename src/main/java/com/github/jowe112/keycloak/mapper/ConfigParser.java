@@ -1,5 +1,6 @@
 package com.github.jowe112.keycloak.mapper;
 
+import com.jayway.jsonpath.InvalidPathException;
 import org.jboss.logging.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -7,6 +8,8 @@ import org.jetbrains.annotations.Nullable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Parses Keycloak mapper configuration into a list of {@link EndpointConfig}
@@ -21,6 +24,9 @@ import java.util.Map;
  *   endpoint.N.auth.value
  *   endpoint.N.query.param.K   — K in 1..5; value is a Keycloak user context field name
  *   endpoint.N.query.script
+ *   endpoint.N.query.mode       — "script" (JavaScript, default) | "template" (RFC 6570)
+ *   endpoint.N.query.cache      — "true" to memoize script results per input values
+ *   endpoint.N.response.max.kb  — maximum response body size in KiB (default 1024)
  *   endpoint.N.mapping          — comma-separated "apiField→claimName" pairs
  * </pre>
  */
@@ -34,6 +40,12 @@ public final class ConfigParser {
     /** Maximum number of query parameters per endpoint. */
     public static final int MAX_QUERY_PARAMS = 5;
 
+    /** Trailing {@code @seconds} TTL override of a mapping rule's claim. */
+    private static final Pattern RULE_TTL = Pattern.compile("(.*)@(\\d{1,9})");
+
+    /** Default maximum response body size per endpoint, in KiB. */
+    public static final long DEFAULT_MAX_RESPONSE_KB = 1024;
+
     private ConfigParser() {
     }
 
@@ -59,6 +71,13 @@ public final class ConfigParser {
             String authType = config.getOrDefault("endpoint." + n + ".auth.type", "apikey");
             String authValue = config.getOrDefault("endpoint." + n + ".auth.value", "");
             String script = config.getOrDefault("endpoint." + n + ".query.script", "\"\"");
+            String queryMode = config.getOrDefault("endpoint." + n + ".query.mode", CompiledQueryScript.MODE_SCRIPT);
+            boolean queryCache = Boolean.parseBoolean(config.get("endpoint." + n + ".query.cache"));
+            long maxResponseKb = parseLongOrDefault(config.get("endpoint." + n + ".response.max.kb"),
+                    DEFAULT_MAX_RESPONSE_KB);
+            if (maxResponseKb < 1) {
+                maxResponseKb = DEFAULT_MAX_RESPONSE_KB;
+            }
             String mapping = config.getOrDefault("endpoint." + n + ".mapping", "");
 
             List<String> queryParams = new ArrayList<>();
@@ -72,7 +91,7 @@ public final class ConfigParser {
             List<MappingRule> rules = parseMappingRules(mapping);
 
             endpoints.add(new EndpointConfig(n, url.trim(), authType.trim(), authValue,
-                    queryParams, script, rules));
+                    queryParams, script, normalizeQueryMode(queryMode), queryCache, maxResponseKb * 1024, rules));
         }
 
         return endpoints;
@@ -81,7 +100,8 @@ public final class ConfigParser {
     /**
      * Parses a comma-separated mapping string into a list of {@link MappingRule}s.
      * Each entry must be of the form {@code apiField→claimName} or
-     * {@code apiField->claimName}.
+     * {@code apiField->claimName}, optionally followed by {@code @seconds} to
+     * override the cache TTL of that claim.
      */
     public static @NotNull List<MappingRule> parseMappingRules(@Nullable String mapping) {
         List<MappingRule> rules = new ArrayList<>();
@@ -101,15 +121,45 @@ public final class ConfigParser {
             }
             String apiField = parts[0].trim();
             String claimName = parts[1].trim();
+            long ttlSeconds = MappingRule.NO_TTL;
+            Matcher ttl = RULE_TTL.matcher(claimName);
+            if (ttl.matches()) {
+                claimName = ttl.group(1).trim();
+                ttlSeconds = Long.parseLong(ttl.group(2));
+            }
             if (apiField.isEmpty() || claimName.isEmpty()) {
                 LOG.warnf("Skipping mapping rule with empty field or claim: %s", entry);
                 continue;
             }
-            rules.add(new MappingRule(apiField, claimName));
+            try {
+                rules.add(new MappingRule(apiField, claimName, ttlSeconds));
+            } catch (InvalidPathException e) {
+                LOG.warnf("Skipping mapping rule with invalid JSONPath '%s': %s", apiField, e.getMessage());
+            }
         }
         return rules;
     }
 
+    /**
+     * Returns the canonical query mode; anything but {@code template} means
+     * {@code script}.
+     */
+    public static @NotNull String normalizeQueryMode(@Nullable String mode) {
+        return mode != null && CompiledQueryScript.MODE_TEMPLATE.equalsIgnoreCase(mode.trim())
+                ? CompiledQueryScript.MODE_TEMPLATE
+                : CompiledQueryScript.MODE_SCRIPT;
+    }
+
+    static long parseLongOrDefault(@Nullable String value, long defaultValue) {
+        if (value == null || value.isBlank())
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     private static int parseIntOrDefault(@Nullable String value, int defaultValue) {
         if (value == null || value.isBlank())
             return defaultValue;
@@ -1,6 +1,5 @@
 package com.github.jowe112.keycloak.mapper;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.jetbrains.annotations.NotNull;
@@ -49,24 +48,53 @@ public final class EndpointConfig {
      */
     private final String queryScript;
 
+    /**
+     * How {@link #queryScript} is interpreted:
+     * {@value CompiledQueryScript#MODE_SCRIPT} (JavaScript expression) or
+     * {@value CompiledQueryScript#MODE_TEMPLATE} (RFC 6570 URI template).
+     */
+    private final String queryMode;
+
+    /** Whether GraalVM results of {@link #queryScript} are memoized per argument values. */
+    private final boolean queryCacheEnabled;
+
+    /** {@link #queryScript} compiled once, natively or as a function of {@link #queryParams}. */
+    private final CompiledQueryScript compiledQueryScript;
+
+    /** Maximum accepted response body size in bytes; larger responses are aborted. */
+    private final long maxResponseBytes;
+
     /**
      * Ordered list of field-to-claim mapping rules.
      */
     private final List<MappingRule> mappingRules;
 
+    /** Single-pass extractor for {@link #mappingRules}, {@code null} if a rule needs the tree. */
+    private final StreamingExtractor streamingExtractor;
+
     /** 1-based endpoint index; used for cache-key namespacing. */
     private final int index;
 
+    /** Precomputed {@link #getConfigHash()}; all fields are immutable. */
+    private final String configHash;
+
     public EndpointConfig(int index, @Nullable String url, @NotNull String authType, @Nullable String authValue,
-            @NotNull List<String> queryParams, @Nullable String queryScript,
-            @NotNull List<MappingRule> mappingRules) {
+            @NotNull List<String> queryParams, @Nullable String queryScript, @NotNull String queryMode,
+            boolean queryCacheEnabled, long maxResponseBytes, @NotNull List<MappingRule> mappingRules) {
         this.index = index;
         this.url = url;
         this.authType = authType;
         this.authValue = authValue;
-        this.queryParams = new ArrayList<>(queryParams);
+        this.queryParams = List.copyOf(queryParams);
         this.queryScript = queryScript;
-        this.mappingRules = new ArrayList<>(mappingRules);
+        this.queryMode = queryMode;
+        this.queryCacheEnabled = queryCacheEnabled;
+        this.compiledQueryScript = CompiledQueryScript.compile(queryScript, this.queryParams, queryMode,
+                queryCacheEnabled);
+        this.maxResponseBytes = maxResponseBytes;
+        this.mappingRules = List.copyOf(mappingRules);
+        this.streamingExtractor = StreamingExtractor.compile(this.mappingRules);
+        this.configHash = computeConfigHash();
     }
 
     public int getIndex() {
@@ -93,10 +121,31 @@ public final class EndpointConfig {
         return queryScript;
     }
 
+    public @NotNull String getQueryMode() {
+        return queryMode;
+    }
+
+    public boolean isQueryCacheEnabled() {
+        return queryCacheEnabled;
+    }
+
+    public @NotNull CompiledQueryScript getCompiledQueryScript() {
+        return compiledQueryScript;
+    }
+
+    public long getMaxResponseBytes() {
+        return maxResponseBytes;
+    }
+
     public @NotNull List<MappingRule> getMappingRules() {
         return mappingRules;
     }
 
+    @Nullable
+    StreamingExtractor getStreamingExtractor() {
+        return streamingExtractor;
+    }
+
     /**
      * Returns true if this endpoint has a non-empty URL configured.
      */
@@ -110,11 +159,19 @@ public final class EndpointConfig {
      * changes the URL, mapping, script, or auth settings.
      */
     public @NotNull String getConfigHash() {
+        return configHash;
+    }
+
+    private @NotNull String computeConfigHash() {
         int hash = 17;
         hash = 31 * hash + (url != null ? url.hashCode() : 0);
         hash = 31 * hash + (authType != null ? authType.hashCode() : 0);
         hash = 31 * hash + (authValue != null ? authValue.hashCode() : 0);
         hash = 31 * hash + (queryScript != null ? queryScript.hashCode() : 0);
+        if (!CompiledQueryScript.MODE_SCRIPT.equals(queryMode)) {
+            // Only mixed in for non-default modes so existing cache stamps stay valid
+            hash = 31 * hash + queryMode.hashCode();
+        }
         for (String p : queryParams) {
             hash = 31 * hash + p.hashCode();
         }
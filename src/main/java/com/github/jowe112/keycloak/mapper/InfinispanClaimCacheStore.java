@@ -0,0 +1,131 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ClaimCacheStore} keeping the compact cache document in the
+ * cluster-wide Infinispan cache {@value #CACHE_NAME}, keyed by realm, user and
+ * mapper.
+ * <p>
+ * Unlike the {@code UserModel} stores it never touches the user, so it also
+ * caches claims of transient (non-imported) users, and a user fetched on one
+ * node is a cache hit on every other node.
+ * <p>
+ * Unless {@value #CACHE_NAME} is already defined in Keycloak's
+ * {@code cache-ispn.xml}, it is defined on first use on Keycloak's embedded
+ * cache manager: distributed with {@value #NUM_OWNERS} owners when the node is
+ * clustered, local otherwise, and bounded to {@value #MAX_ENTRIES} entries per
+ * node. Each entry lives until its freshest endpoint can no longer be served
+ * ({@link MapperPlan#getRetentionSeconds()}) and is dropped
+ * earlier when unused for {@link #MAX_IDLE}. Writes are asynchronous; if the
+ * cache cannot be started, every read is a miss.
+ */
+final class InfinispanClaimCacheStore implements ClaimCacheStore {
+
+    private static final Logger LOG = Logger.getLogger(InfinispanClaimCacheStore.class);
+
+    static final InfinispanClaimCacheStore INSTANCE = new InfinispanClaimCacheStore();
+
+    /** Name of the Infinispan cache. */
+    static final String CACHE_NAME = "rest-claim-mapper";
+
+    /** Maximum number of entries held per node before eviction. */
+    static final long MAX_ENTRIES = 100_000;
+
+    /** Number of cluster nodes holding a copy of each entry. */
+    static final int NUM_OWNERS = 2;
+
+    /** Entries not read for this long are dropped before their lifespan ends. */
+    static final Duration MAX_IDLE = Duration.ofHours(1);
+
+    private volatile Cache<String, String> cache;
+    private volatile boolean unavailable;
+
+    private InfinispanClaimCacheStore() {
+    }
+
+    @Override
+    public boolean requiresPersistentUser() {
+        return false;
+    }
+
+    @Override
+    public @NotNull Handle open(@NotNull KeycloakSession session, @NotNull RealmModel realm, @NotNull UserModel user,
+            @NotNull MapperPlan plan) {
+        Cache<String, String> c = cache(session);
+        String key = realm.getId() + ":" + user.getId() + ":" + plan.getMapperId();
+        Map<Integer, Entry> entries = c != null ? CompactClaimCacheStore.decode(c.get(key)) : new HashMap<>();
+
+        return new CompactClaimCacheStore.DocumentHandle(plan, entries) {
+            @Override
+            protected void write(@NotNull Map<Integer, Entry> entries) {
+                long freshest = entries.values().stream().mapToLong(Entry::cachedAt).max().orElse(0);
+                long lifespan = freshest + plan.getRetentionSeconds() - Instant.now().getEpochSecond();
+                if (c == null || lifespan <= 0) {
+                    return;
+                }
+                long maxIdle = Math.min(lifespan, MAX_IDLE.toSeconds());
+                c.putAsync(key, CompactClaimCacheStore.encode(entries), lifespan, TimeUnit.SECONDS,
+                        maxIdle, TimeUnit.SECONDS)
+                        .whenComplete((previous, e) -> {
+                            if (e != null) {
+                                LOG.warnf("Claim cache write for user %s failed: %s", user.getId(), e.getMessage());
+                            }
+                        });
+            }
+        };
+    }
+
+    /** Returns the cache, starting it on first use; {@code null} if it cannot be started. */
+    private @Nullable Cache<String, String> cache(@NotNull KeycloakSession session) {
+        Cache<String, String> c = cache;
+        if (c != null || unavailable) {
+            return c;
+        }
+        synchronized (this) {
+            if (cache == null && !unavailable) {
+                try {
+                    cache = start(session);
+                } catch (RuntimeException e) {
+                    unavailable = true;
+                    LOG.errorf(e, "Infinispan cache '%s' could not be started — claims will not be cached",
+                            CACHE_NAME);
+                }
+            }
+            return cache;
+        }
+    }
+
+    private static @NotNull Cache<String, String> start(@NotNull KeycloakSession session) {
+        InfinispanConnectionProvider provider = session.getProvider(InfinispanConnectionProvider.class);
+        EmbeddedCacheManager manager = provider.getCache(InfinispanConnectionProvider.USER_CACHE_NAME)
+                .getCacheManager();
+        if (manager.getCacheConfiguration(CACHE_NAME) == null) {
+            boolean clustered = manager.getCacheManagerConfiguration().isClustered();
+            ConfigurationBuilder config = new ConfigurationBuilder();
+            config.clustering().cacheMode(clustered ? CacheMode.DIST_SYNC : CacheMode.LOCAL)
+                    .hash().numOwners(NUM_OWNERS);
+            config.memory().maxCount(MAX_ENTRIES).whenFull(EvictionStrategy.REMOVE);
+            manager.defineConfiguration(CACHE_NAME, config.build());
+            LOG.infof("Defined %s Infinispan cache '%s'", clustered ? "distributed" : "local", CACHE_NAME);
+        }
+        return manager.getCache(CACHE_NAME);
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.jowe112.keycloak.mapper;
+
+import com.github.jowe112.keycloak.jpa.ClaimCacheEntity;
+import jakarta.persistence.EntityManager;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link ClaimCacheStore} keeping the compact cache document in the dedicated
+ * {@code REST_CLAIM_CACHE} table ({@link ClaimCacheEntity}) instead of in
+ * {@code USER_ATTRIBUTE}.
+ * <p>
+ * A read is a single primary-key lookup on (realm, user, mapper). Writes are
+ * upserts, isolated in a transaction of their own so a concurrent first insert
+ * of the same row can never fail the token request; the losing side retries
+ * once as an update. Inside a {@link ClaimCacheStore#DEDICATED_TRANSACTION}
+ * (the write-behind worker) rows are upserted through the job's session, so a
+ * whole batch commits together.
+ * <p>
+ * Each row records when its freshest endpoint can no longer be served (TTL
+ * plus stale window, {@link MapperPlan#getRetentionSeconds()}); rows past that are
+ * deleted by {@link com.github.jowe112.keycloak.jpa.ExpiredClaimCachePurgeTask}.
+ */
+final class JpaClaimCacheStore implements ClaimCacheStore {
+
+    private static final Logger LOG = Logger.getLogger(JpaClaimCacheStore.class);
+
+    static final JpaClaimCacheStore INSTANCE = new JpaClaimCacheStore();
+
+    private static final int UPSERT_ATTEMPTS = 2;
+
+    private JpaClaimCacheStore() {
+    }
+
+    @Override
+    public @NotNull Handle open(@NotNull KeycloakSession session, @NotNull RealmModel realm, @NotNull UserModel user,
+            @NotNull MapperPlan plan) {
+        ClaimCacheEntity.Key key = new ClaimCacheEntity.Key(realm.getId(), user.getId(), plan.getMapperId());
+        ClaimCacheEntity row = entityManager(session).find(ClaimCacheEntity.class, key);
+        Map<Integer, Entry> entries = row != null ? CompactClaimCacheStore.decode(row.getClaims()) : new HashMap<>();
+
+        return new CompactClaimCacheStore.DocumentHandle(plan, entries) {
+            @Override
+            protected void write(@NotNull Map<Integer, Entry> entries) {
+                String claims = CompactClaimCacheStore.encode(entries);
+                long freshest = entries.values().stream().mapToLong(Entry::cachedAt).max().orElse(0);
+                long expiresAt = freshest + plan.getRetentionSeconds();
+
+                if (Boolean.TRUE.equals(session.getAttribute(DEDICATED_TRANSACTION, Boolean.class))) {
+                    upsert(session, key, claims, expiresAt);
+                    return;
+                }
+                for (int attempt = 1; attempt <= UPSERT_ATTEMPTS; attempt++) {
+                    try {
+                        KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(),
+                                s -> upsert(s, key, claims, expiresAt));
+                        return;
+                    } catch (RuntimeException e) {
+                        if (attempt == UPSERT_ATTEMPTS) {
+                            LOG.warnf("Claim cache write for user %s failed: %s", key.getUserId(), e.getMessage());
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    private static void upsert(@NotNull KeycloakSession session, @NotNull ClaimCacheEntity.Key key,
+            @NotNull String claims, long expiresAt) {
+        EntityManager em = entityManager(session);
+        ClaimCacheEntity row = em.find(ClaimCacheEntity.class, key);
+        if (row == null) {
+            row = new ClaimCacheEntity();
+            row.setRealmId(key.getRealmId());
+            row.setUserId(key.getUserId());
+            row.setMapperId(key.getMapperId());
+            em.persist(row);
+        }
+        row.setClaims(claims);
+        row.setExpiresAt(expiresAt);
+        row.setUpdatedAt(Instant.now().getEpochSecond());
+    }
+
+    private static @NotNull EntityManager entityManager(@NotNull KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+}
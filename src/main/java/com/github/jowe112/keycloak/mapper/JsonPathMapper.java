@@ -2,8 +2,9 @@ package com.github.jowe112.keycloak.mapper;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.Configuration;
 import com.jayway.jsonpath.PathNotFoundException;
+import com.jayway.jsonpath.spi.json.JacksonJsonNodeJsonProvider;
 import org.jboss.logging.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -17,15 +18,23 @@ import java.util.Map;
  * Maps fields from a JSON API response to OIDC claim values according to
  * a list of {@link MappingRule}s.
  * <p>
- * Simple field names are resolved with Jackson; JSONPath expressions (starting
- * with {@code "$"}) are resolved with Jayway JSONPath. Scalar values become
- * {@code String}; arrays become {@code List<String>}.
+ * Each rule arrives precompiled (see {@link MappingRule}): simple field names
+ * and dotted paths are resolved with a Jackson {@code JsonPointer}, other
+ * JSONPath expressions (starting with {@code "$"}) with a precompiled Jayway
+ * {@code JsonPath}. Both work on the same parsed Jackson tree, so a response
+ * is parsed exactly once. Scalar values become {@code String}; arrays become
+ * {@code List<String>}.
  */
 public final class JsonPathMapper {
 
     private static final Logger LOG = Logger.getLogger(JsonPathMapper.class);
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
+    /** Evaluates JSONPath directly on Jackson trees instead of re-parsing text. */
+    private static final Configuration JSON_PATH_CONFIG = Configuration.builder()
+            .jsonProvider(new JacksonJsonNodeJsonProvider(OBJECT_MAPPER))
+            .build();
+
     private JsonPathMapper() {
     }
 
@@ -37,10 +46,8 @@ public final class JsonPathMapper {
      * @return a map of {@code claimName → value} (String or List&lt;String&gt;)
      */
     public static @NotNull Map<String, Object> map(@Nullable String rawJson, @Nullable List<MappingRule> mappingRules) {
-        Map<String, Object> claims = new HashMap<>();
-
         if (rawJson == null || rawJson.isBlank() || mappingRules == null || mappingRules.isEmpty()) {
-            return claims;
+            return new HashMap<>();
         }
 
         JsonNode root;
@@ -48,14 +55,34 @@ public final class JsonPathMapper {
             root = OBJECT_MAPPER.readTree(rawJson);
         } catch (Exception e) {
             LOG.errorf("Failed to parse JSON response: %s", e.getMessage());
+            return new HashMap<>();
+        }
+        return map(root, mappingRules);
+    }
+
+    /**
+     * Apply mapping rules to an already parsed JSON response.
+     *
+     * @param root         the parsed response body from the REST API
+     * @param mappingRules the ordered list of field→claim rules
+     * @return a map of {@code claimName → value} (String or List&lt;String&gt;)
+     */
+    public static @NotNull Map<String, Object> map(@Nullable JsonNode root, @Nullable List<MappingRule> mappingRules) {
+        Map<String, Object> claims = new HashMap<>();
+
+        if (root == null || root.isMissingNode() || mappingRules == null || mappingRules.isEmpty()) {
             return claims;
         }
 
         for (MappingRule rule : mappingRules) {
             try {
-                Object value = rule.isJsonPath()
-                        ? resolveJsonPath(rawJson, rule.getApiField())
-                        : resolveSimpleField(root, rule.getApiField());
+                Object value;
+                if (rule.getPointer() != null) {
+                    JsonNode node = root.at(rule.getPointer());
+                    value = rule.isJsonPath() ? jsonPathValue(node) : simpleFieldValue(node);
+                } else {
+                    value = resolveJsonPath(root, rule);
+                }
 
                 if (value != null) {
                     claims.put(rule.getClaimName(), value);
@@ -73,32 +100,46 @@ public final class JsonPathMapper {
 
     // -------------------------------------------------------------------------
 
-    private static @Nullable Object resolveSimpleField(@NotNull JsonNode root, @NotNull String fieldName) {
-        JsonNode node = root.get(fieldName);
-        if (node == null || node.isNull())
+    static @Nullable Object simpleFieldValue(@NotNull JsonNode node) {
+        if (node.isMissingNode() || node.isNull())
             return null;
         return nodeToValue(node);
     }
 
-    private static @Nullable Object resolveJsonPath(@NotNull String rawJson, @NotNull String expression) {
+    private static @Nullable Object resolveJsonPath(@NotNull JsonNode root, @NotNull MappingRule rule) {
         try {
-            Object value = JsonPath.read(rawJson, expression);
-            if (value == null)
-                return null;
-            if (value instanceof List<?> list) {
-                List<String> result = new ArrayList<>();
-                for (Object item : list) {
-                    result.add(item == null ? "" : item.toString());
-                }
-                return result.size() == 1 ? result.get(0) : result;
-            }
-            return value.toString();
+            return jsonPathValue(rule.getCompiledPath().read(root, JSON_PATH_CONFIG));
         } catch (PathNotFoundException e) {
-            LOG.debugf("JSONPath '%s' not found in response", expression);
+            LOG.debugf("JSONPath '%s' not found in response", rule.getApiField());
             return null;
         }
     }
 
+    /**
+     * Converts a JSONPath result: arrays become lists (a single element is
+     * unwrapped), {@code null} elements become {@code ""}. An empty result,
+     * such as a filter matching nothing, yields no claim, like an empty array
+     * does for a simple field: every cache store reads an absent claim back
+     * the same way, so a cached entry compares equal to a fresh mapping.
+     */
+    static @Nullable Object jsonPathValue(@Nullable JsonNode value) {
+        if (value == null || value.isMissingNode() || value.isNull())
+            return null;
+        if (value.isArray()) {
+            List<String> result = new ArrayList<>();
+            for (JsonNode item : value) {
+                result.add(item.isNull() ? "" : textOf(item));
+            }
+            return result.isEmpty() ? null : (result.size() == 1 ? result.get(0) : result);
+        }
+        return textOf(value);
+    }
+
+    /** Scalars as their text; objects and arrays as compact JSON. */
+    private static @NotNull String textOf(@NotNull JsonNode node) {
+        return node.isContainerNode() ? node.toString() : node.asText();
+    }
+
     private static @Nullable Object nodeToValue(@NotNull JsonNode node) {
         if (node.isArray()) {
             List<String> list = new ArrayList<>();
@@ -0,0 +1,259 @@
+package com.github.jowe112.keycloak.mapper;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteBufferFeeder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import org.apache.hc.client5.http.async.methods.AbstractBinResponseConsumer;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpResponse;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Decodes a JSON response body while it streams in, without ever holding the
+ * body as a {@code byte[]} or {@code String}.
+ * <p>
+ * Each network buffer handed over by the I/O reactor is fed straight into a
+ * Jackson non-blocking parser, and every token is passed to a
+ * {@link BodyHandler}: either {@link #tree(long)}, which appends the tokens to
+ * a compact {@link TokenBuffer} and builds the tree once the body is complete,
+ * or {@link #claims(long, StreamingExtractor)}, which extracts the mapped
+ * claims on the fly. Jackson's own text buffers are recycled between parses.
+ * <p>
+ * The body is limited to a per-endpoint maximum size. An advertised
+ * {@code Content-Length} over the limit fails the exchange before any body
+ * byte is read; otherwise the exchange is aborted as soon as the running size
+ * exceeds it.
+ * <p>
+ * Non-2xx bodies are not parsed; their first {@value #ERROR_BODY_LIMIT} bytes
+ * are kept for logging.
+ * <p>
+ * A caller that gives up calls {@link #cancel()}, which fails the exchange on
+ * the next response head or body buffer and so closes the connection.
+ */
+final class JsonResponseConsumer<T> extends AbstractBinResponseConsumer<JsonResponseConsumer.Result<T>> {
+
+    /** Number of bytes of a non-2xx body kept for the error log. */
+    static final int ERROR_BODY_LIMIT = 1024;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** Receives the tokens of a 2xx body and turns them into the result. */
+    interface BodyHandler<T> {
+
+        /** Called for every token, in document order. */
+        void token(@NotNull JsonParser parser, @NotNull JsonToken token) throws IOException;
+
+        /** Called once the body is complete. */
+        @NotNull
+        T result() throws IOException;
+    }
+
+    /**
+     * Outcome of an exchange.
+     *
+     * @param status    HTTP status code
+     * @param body      handler result for a 2xx response, {@code null}
+     *                  otherwise
+     * @param errorBody truncated body of a non-2xx response, {@code null}
+     *                  otherwise
+     */
+    record Result<T>(int status, @Nullable T body, @Nullable String errorBody) {
+
+        boolean isSuccess() {
+            return status >= 200 && status < 300;
+        }
+    }
+
+    private final long maxBytes;
+    private final BodyHandler<T> handler;
+
+    private int status;
+    private long received;
+
+    private JsonParser parser;
+    private boolean finished;
+
+    private ByteArrayOutputStream errorBody;
+
+    private volatile boolean cancelled;
+
+    private JsonResponseConsumer(long maxBytes, @NotNull BodyHandler<T> handler) {
+        this.maxBytes = maxBytes;
+        this.handler = handler;
+    }
+
+    /**
+     * Parses the body into a tree ({@link MissingNode} if empty).
+     *
+     * @param maxBytes maximum accepted body size in bytes
+     */
+    static @NotNull JsonResponseConsumer<JsonNode> tree(long maxBytes) {
+        return new JsonResponseConsumer<>(maxBytes, new TreeHandler());
+    }
+
+    /**
+     * Extracts the mapped claims from the body without building a tree.
+     *
+     * @param maxBytes maximum accepted body size in bytes
+     */
+    static @NotNull JsonResponseConsumer<Map<String, Object>> claims(long maxBytes,
+            @NotNull StreamingExtractor extractor) {
+        StreamingExtractor.Extraction extraction = extractor.start();
+        return new JsonResponseConsumer<>(maxBytes, new BodyHandler<>() {
+            @Override
+            public void token(@NotNull JsonParser parser, @NotNull JsonToken token) throws IOException {
+                extraction.token(parser, token);
+            }
+
+            @Override
+            public @NotNull Map<String, Object> result() {
+                return extraction.result();
+            }
+        });
+    }
+
+    private static final class TreeHandler implements BodyHandler<JsonNode> {
+        private TokenBuffer tokens;
+
+        @Override
+        public void token(@NotNull JsonParser parser, @NotNull JsonToken token) throws IOException {
+            if (tokens == null) {
+                tokens = new TokenBuffer(parser);
+            }
+            tokens.copyCurrentEvent(parser);
+        }
+
+        @Override
+        public @NotNull JsonNode result() throws IOException {
+            if (tokens == null) {
+                return MissingNode.getInstance();
+            }
+            try (JsonParser replay = tokens.asParser(MAPPER)) {
+                return MAPPER.readTree(replay);
+            }
+        }
+    }
+
+    /**
+     * Aborts the exchange from within. Cancelling the client future alone does
+     * not reach an exchange whose connection was opened for it, which then
+     * keeps reading and discarding the body until the server ends it.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    protected void start(HttpResponse response, ContentType contentType) throws IOException {
+        checkCancelled();
+        status = response.getCode();
+        if (status < 200 || status >= 300) {
+            errorBody = new ByteArrayOutputStream();
+            return;
+        }
+
+        Header contentLength = response.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+        if (contentLength != null) {
+            long length = ConfigParser.parseLongOrDefault(contentLength.getValue(), -1L);
+            if (length > maxBytes) {
+                throw new IOException("Response Content-Length " + length + " exceeds limit of "
+                        + maxBytes + " bytes");
+            }
+        }
+
+        parser = MAPPER.getFactory().createNonBlockingByteBufferParser();
+    }
+
+    @Override
+    protected int capacityIncrement() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    protected void data(ByteBuffer src, boolean endOfStream) throws IOException {
+        checkCancelled();
+        received += src.remaining();
+
+        if (parser == null) {
+            while (src.hasRemaining() && errorBody != null && errorBody.size() < ERROR_BODY_LIMIT) {
+                errorBody.write(src.get());
+            }
+            src.position(src.limit());
+            return;
+        }
+
+        if (received > maxBytes) {
+            throw new IOException("Response body exceeds limit of " + maxBytes + " bytes");
+        }
+        if (src.hasRemaining()) {
+            ((ByteBufferFeeder) parser.getNonBlockingInputFeeder()).feedInput(src);
+            drain();
+            src.position(src.limit());
+        }
+        if (endOfStream) {
+            finish();
+        }
+    }
+
+    @Override
+    protected Result<T> buildResult() {
+        if (parser == null) {
+            String error = errorBody != null ? errorBody.toString(StandardCharsets.UTF_8) : "";
+            return new Result<>(status, null, error);
+        }
+        try {
+            finish();
+            return new Result<>(status, handler.result(), null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void releaseResources() {
+        if (parser != null) {
+            try {
+                parser.close();
+            } catch (IOException ignored) {
+                // nothing to release beyond recycled buffers
+            }
+        }
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (cancelled) {
+            throw new InterruptedIOException("Exchange cancelled");
+        }
+    }
+
+    /** Hands every token available so far to the handler. */
+    private void drain() throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+            handler.token(parser, token);
+        }
+    }
+
+    private void finish() throws IOException {
+        if (!finished) {
+            finished = true;
+            ((ByteBufferFeeder) parser.getNonBlockingInputFeeder()).endOfInput();
+            drain();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.github.jowe112.keycloak.mapper;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.keycloak.models.ProtocolMapperModel;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled, immutable view of a single mapper instance's configuration.
+ * <p>
+ * Parsing the raw config map (endpoints, mapping rules, config hashes, cache
+ * attribute keys) is done once per mapper and configuration version instead
+ * of on every token. Plans are cached by {@link ProtocolMapperModel#getId()}
+ * and validated against the raw config map, so an admin change in the UI is
+ * picked up on the very next token issuance. Plans of mappers that issue no
+ * tokens for a while, such as deleted ones, are dropped and recompiled if
+ * needed again.
+ */
+public final class MapperPlan {
+
+    private static final Logger LOG = Logger.getLogger(MapperPlan.class);
+
+    /** Maximum number of cached plans (mappers across all realms). */
+    static final int MAX_PLANS = 1_000;
+
+    /** Key: mapper id. One plan per mapper; replaced when its config changes. */
+    private static final Cache<String, MapperPlan> PLANS = Caffeine.newBuilder()
+            .maximumSize(MAX_PLANS)
+            .expireAfterAccess(Duration.ofHours(1))
+            .build();
+
+    private final String mapperId;
+    private final Map<String, String> rawConfig;
+    private final int configFingerprint;
+    private final List<EndpointConfig> endpoints;
+    private final long ttlSeconds;
+    private final long staleSeconds;
+    private final boolean adaptiveTtl;
+    private final long maxTtlSeconds;
+    private final ClaimCacheStore cacheStore;
+    private final boolean writeBehind;
+    private final boolean nearCache;
+    private final boolean transientCache;
+    private final boolean transientSessionNote;
+
+    /** Key: endpoint index. Value: effective cache TTL of the endpoint's claims, in seconds. */
+    private final Map<Integer, Long> endpointTtls;
+
+    /** Longest endpoint TTL plus the stale window: how long any cached entry can still be used. */
+    private final long retentionSeconds;
+
+    /** Key: endpoint index. Value: {@code rest_claim_mapper.<mapperId>.ep<N>.cached_at}. */
+    private final Map<Integer, String> cachedAtKeys;
+
+    /** Key: claim name. Value: {@code rest_claim_mapper.<mapperId>.<claimName>}. */
+    private final Map<String, String> claimKeys;
+
+    private MapperPlan(@NotNull String mapperId, @NotNull Map<String, String> rawConfig, int configFingerprint) {
+        this.mapperId = mapperId;
+        this.rawConfig = rawConfig;
+        this.configFingerprint = configFingerprint;
+        this.endpoints = List.copyOf(ConfigParser.parse(rawConfig));
+        this.ttlSeconds = ConfigParser.parseLongOrDefault(rawConfig.get(RestClaimMapper.CFG_CACHE_TTL), 300L);
+        this.staleSeconds = Math.max(0,
+                ConfigParser.parseLongOrDefault(rawConfig.get(RestClaimMapper.CFG_CACHE_STALE), 0L));
+        this.adaptiveTtl = Boolean.parseBoolean(rawConfig.get(RestClaimMapper.CFG_CACHE_TTL_ADAPTIVE));
+        this.maxTtlSeconds = ConfigParser.parseLongOrDefault(rawConfig.get(RestClaimMapper.CFG_CACHE_TTL_MAX),
+                RestClaimMapper.DEFAULT_CACHE_TTL_MAX);
+        this.cacheStore = ClaimCacheStore.of(rawConfig.get(RestClaimMapper.CFG_CACHE_STORE));
+        this.writeBehind = Boolean.parseBoolean(rawConfig.get(RestClaimMapper.CFG_CACHE_WRITE_BEHIND));
+        this.nearCache = Boolean.parseBoolean(rawConfig.get(RestClaimMapper.CFG_CACHE_NEAR));
+        this.transientCache = Boolean.parseBoolean(rawConfig.get(RestClaimMapper.CFG_TRANSIENT_CACHE));
+        this.transientSessionNote = Boolean.parseBoolean(rawConfig.get(RestClaimMapper.CFG_TRANSIENT_SESSION_NOTE));
+
+        Map<Integer, Long> ttls = new HashMap<>();
+        Map<Integer, String> cachedAt = new HashMap<>();
+        Map<String, String> claims = new HashMap<>();
+        for (EndpointConfig ep : endpoints) {
+            ttls.put(ep.getIndex(), endpointTtl(ep, rawConfig, ttlSeconds));
+            cachedAt.put(ep.getIndex(), attributePrefix() + "ep" + ep.getIndex() + ".cached_at");
+            for (MappingRule rule : ep.getMappingRules()) {
+                claims.put(rule.getClaimName(), attributePrefix() + rule.getClaimName());
+            }
+        }
+        this.endpointTtls = Map.copyOf(ttls);
+        long longestTtl = ttls.values().stream().mapToLong(Long::longValue).max().orElse(ttlSeconds);
+        this.retentionSeconds = (adaptiveTtl ? Math.max(longestTtl, maxTtlSeconds) : longestTtl) + staleSeconds;
+        this.cachedAtKeys = Map.copyOf(cachedAt);
+        this.claimKeys = Map.copyOf(claims);
+    }
+
+    /**
+     * Returns the compiled plan for the given mapper, compiling it only if this
+     * is the first call or the mapper configuration changed since the last one.
+     */
+    public static @NotNull MapperPlan of(@NotNull ProtocolMapperModel mappingModel) {
+        Map<String, String> config = mappingModel.getConfig() != null ? mappingModel.getConfig() : Map.of();
+        String mapperId = mappingModel.getId();
+        int fingerprint = config.hashCode();
+
+        if (mapperId == null) {
+            // Unsaved mapper (e.g. admin preview) — nothing stable to cache under
+            return compile("", config, fingerprint);
+        }
+
+        MapperPlan plan = PLANS.getIfPresent(mapperId);
+        if (plan != null && plan.configFingerprint == fingerprint && plan.rawConfig.equals(config)) {
+            return plan;
+        }
+        plan = compile(mapperId, config, fingerprint);
+        PLANS.put(mapperId, plan);
+        return plan;
+    }
+
+    private static @NotNull MapperPlan compile(@NotNull String mapperId, @NotNull Map<String, String> config,
+            int fingerprint) {
+        return new MapperPlan(mapperId, Collections.unmodifiableMap(new HashMap<>(config)), fingerprint);
+    }
+
+    public @NotNull String getMapperId() {
+        return mapperId;
+    }
+
+    public @NotNull List<EndpointConfig> getEndpoints() {
+        return endpoints;
+    }
+
+    /** Returns the mapper-wide {@value RestClaimMapper#CFG_CACHE_TTL}, the default of every endpoint. */
+    public long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    /**
+     * Returns how long the endpoint's claims are cached: the shortest TTL of
+     * its mapping rules, where a rule without an override of its own uses the
+     * endpoint's {@code endpoint.N.cache.ttl.seconds}, which defaults to the
+     * mapper-wide TTL.
+     */
+    public long getTtlSeconds(@NotNull EndpointConfig ep) {
+        Long ttl = endpointTtls.get(ep.getIndex());
+        return ttl != null ? ttl : ttlSeconds;
+    }
+
+    /** Whether TTLs adapt per user and endpoint to how often the claims change. */
+    public boolean isAdaptiveTtl() {
+        return adaptiveTtl;
+    }
+
+    /** Returns the ceiling of an adaptive TTL, in seconds. */
+    public long getMaxTtlSeconds() {
+        return maxTtlSeconds;
+    }
+
+    /**
+     * Returns how long after its freshest endpoint was fetched a cache entry
+     * can still be served, fresh or stale; stores may drop it afterwards.
+     */
+    public long getRetentionSeconds() {
+        return retentionSeconds;
+    }
+
+    /** Seconds past the TTL during which an entry is served while refreshed in the background. */
+    public long getStaleSeconds() {
+        return staleSeconds;
+    }
+
+    /** Returns the store selected by {@value RestClaimMapper#CFG_CACHE_STORE}. */
+    @NotNull
+    ClaimCacheStore getCacheStore() {
+        return cacheStore;
+    }
+
+    /** Whether reads of a {@code UserModel}-backed store go through the {@link ClaimNearCache}. */
+    public boolean isNearCache() {
+        return nearCache;
+    }
+
+    /** Whether transient users' endpoint results are kept in the node-local cache. */
+    public boolean isTransientCache() {
+        return transientCache;
+    }
+
+    /** Whether transient users' claims are kept as a note on their user session. */
+    public boolean isTransientSessionNote() {
+        return transientSessionNote;
+    }
+
+    /** Hash of the raw mapper configuration this plan was compiled from. */
+    int getConfigFingerprint() {
+        return configFingerprint;
+    }
+
+    /** Whether cache updates are queued instead of written in the token request. */
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Returns the {@code UserModel} attribute key holding the
+     * {@code <epoch seconds>|<configHash>} cache stamp of the given endpoint.
+     */
+    public @NotNull String cachedAtKey(@NotNull EndpointConfig ep) {
+        String key = cachedAtKeys.get(ep.getIndex());
+        return key != null ? key : attributePrefix() + "ep" + ep.getIndex() + ".cached_at";
+    }
+
+    /**
+     * Returns the {@code UserModel} attribute key caching the given claim.
+     */
+    public @NotNull String claimKey(@NotNull String claimName) {
+        String key = claimKeys.get(claimName);
+        return key != null ? key : attributePrefix() + claimName;
+    }
+
+    /**
+     * Returns the {@code UserModel} attribute key of the single-attribute
+     * {@value ClaimCacheStore#COMPACT} cache.
+     */
+    public @NotNull String compactCacheKey() {
+        return attributePrefix() + "cache";
+    }
+
+    /**
+     * Returns the {@code UserSessionModel} note key holding a transient user's
+     * claims in the compact cache format.
+     */
+    public @NotNull String sessionNoteKey() {
+        return attributePrefix() + "claims";
+    }
+
+    /**
+     * Returns the shortest TTL of the endpoint's claims. A longer claim TTL has
+     * no effect, since the endpoint is fetched as a whole; it is logged once
+     * per compiled plan so the misconfiguration does not go unnoticed.
+     */
+    private static long endpointTtl(@NotNull EndpointConfig ep, @NotNull Map<String, String> config, long mapperTtl) {
+        long endpointTtl = ConfigParser.parseLongOrDefault(
+                config.get("endpoint." + ep.getIndex() + ".cache.ttl.seconds"), mapperTtl);
+        long ttl = ep.getMappingRules().stream()
+                .mapToLong(rule -> rule.getTtlSeconds() != MappingRule.NO_TTL ? rule.getTtlSeconds() : endpointTtl)
+                .min()
+                .orElse(endpointTtl);
+        for (MappingRule rule : ep.getMappingRules()) {
+            if (rule.getTtlSeconds() > ttl) {
+                LOG.warnf("Ignoring TTL of claim '%s' on endpoint %d: %d s is longer than the endpoint's %d s, "
+                        + "and the endpoint is re-fetched when its shortest TTL expires",
+                        rule.getClaimName(), ep.getIndex(), rule.getTtlSeconds(), ttl);
+            }
+        }
+        return ttl;
+    }
+
+    private @NotNull String attributePrefix() {
+        return PersistentUserHandler.CACHE_PREFIX + mapperId + ".";
+    }
+}
@@ -1,6 +1,11 @@
 package com.github.jowe112.keycloak.mapper;
 
+import com.fasterxml.jackson.core.JsonPointer;
+import com.jayway.jsonpath.JsonPath;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.regex.Pattern;
 
 /**
  * Represents a single field mapping rule.
@@ -10,15 +15,62 @@ import org.jetbrains.annotations.NotNull;
  * JSONPath expression starting with {@code "$"} (e.g.
  * {@code "$.user.profile.dept"}).
  * {@code claimName} is the OIDC claim name to write into the token.
+ * {@code ttlSeconds}, if not {@link #NO_TTL}, overrides the endpoint's cache
+ * TTL for this claim (written {@code apiField→claimName@seconds}).
+ * <p>
+ * The field is compiled once, when the rule is created: simple field names
+ * and plain dotted JSONPaths ({@code $.user.profile.dept}) become a Jackson
+ * {@link JsonPointer}; every other JSONPath is precompiled into a
+ * {@link JsonPath}.
  */
 public final class MappingRule {
 
+    /** {@code $.a.b.c} with plain identifier segments — expressible as a JSON Pointer. */
+    private static final Pattern DOTTED_PATH = Pattern.compile("\\$(\\.[A-Za-z_][A-Za-z0-9_-]*)+");
+
+    /** {@link #getTtlSeconds()} of a rule without a TTL of its own. */
+    public static final long NO_TTL = -1;
+
     private final String apiField;
     private final String claimName;
+    private final long ttlSeconds;
+
+    /** Pointer for simple fields and dotted paths, {@code null} otherwise. */
+    private final JsonPointer pointer;
 
+    /** Precompiled expression for other JSONPaths, {@code null} otherwise. */
+    private final JsonPath compiledPath;
+
+    /**
+     * @throws com.jayway.jsonpath.InvalidPathException if {@code apiField} is an
+     *                                                  invalid JSONPath
+     */
     public MappingRule(@NotNull String apiField, @NotNull String claimName) {
+        this(apiField, claimName, NO_TTL);
+    }
+
+    /**
+     * @throws com.jayway.jsonpath.InvalidPathException if {@code apiField} is an
+     *                                                  invalid JSONPath
+     */
+    public MappingRule(@NotNull String apiField, @NotNull String claimName, long ttlSeconds) {
         this.apiField = apiField;
         this.claimName = claimName;
+        this.ttlSeconds = ttlSeconds;
+        if (!isJsonPath()) {
+            this.pointer = JsonPointer.empty().appendProperty(apiField);
+            this.compiledPath = null;
+        } else if (DOTTED_PATH.matcher(apiField).matches()) {
+            JsonPointer p = JsonPointer.empty();
+            for (String segment : apiField.substring(2).split("\\.")) {
+                p = p.appendProperty(segment);
+            }
+            this.pointer = p;
+            this.compiledPath = null;
+        } else {
+            this.pointer = null;
+            this.compiledPath = JsonPath.compile(apiField);
+        }
     }
 
     public @NotNull String getApiField() {
@@ -29,6 +81,11 @@ public final class MappingRule {
         return claimName;
     }
 
+    /** Returns the claim's cache TTL override in seconds, or {@link #NO_TTL}. */
+    public long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
     /**
      * Returns true if this rule uses JSONPath notation (starts with {@code "$"}).
      */
@@ -36,8 +93,23 @@ public final class MappingRule {
         return apiField != null && apiField.startsWith("$");
     }
 
+    /**
+     * Returns the JSON Pointer this rule resolves with, or {@code null} if it
+     * needs the JSONPath engine.
+     */
+    @Nullable
+    JsonPointer getPointer() {
+        return pointer;
+    }
+
+    /** Returns the precompiled JSONPath, or {@code null} if {@link #getPointer()} applies. */
+    @Nullable
+    JsonPath getCompiledPath() {
+        return compiledPath;
+    }
+
     @Override
     public @NotNull String toString() {
-        return apiField + "→" + claimName;
+        return apiField + "→" + claimName + (ttlSeconds != NO_TTL ? "@" + ttlSeconds : "");
     }
 }
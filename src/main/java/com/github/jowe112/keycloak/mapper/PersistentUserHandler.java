@@ -1,8 +1,11 @@
 package com.github.jowe112.keycloak.mapper;
 
 import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.time.Instant;
 import java.util.ArrayList;
@@ -10,8 +13,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -21,14 +22,20 @@ import java.util.concurrent.TimeoutException;
  * <p>
  * Attributes are fetched from the REST APIs, stored as {@code UserModel}
  * attributes
- * for caching, and re-fetched only when the configured TTL has elapsed.
+ * for caching, and re-fetched only when the endpoint's TTL
+ * ({@link MapperPlan#getTtlSeconds(EndpointConfig)}) has elapsed.
  * <p>
- * Cache attribute naming convention:
- * 
- * <pre>
- *   rest_claim_mapper.&lt;claimName&gt;           — the cached claim value (String)
- *   rest_claim_mapper.endpoint.N.cached_at  — epoch seconds of last fetch (String)
- * </pre>
+ * The attribute layout is chosen per mapper by its {@link ClaimCacheStore}:
+ * one attribute per claim ({@link AttributeClaimCacheStore}) or a single
+ * compact attribute per mapper ({@link CompactClaimCacheStore}). Stores that
+ * do not keep their data with the user ({@link InfinispanClaimCacheStore}) are
+ * also used for transient users.
+ * <p>
+ * With {@value RestClaimMapper#CFG_CACHE_STALE} set, an entry past its TTL is
+ * still served for that many seconds while {@link CacheRevalidator} refreshes
+ * it in the background; beyond that window the request fetches synchronously.
+ * Entries expire slightly before their TTL, spread per user and weighted by
+ * the endpoint's fetch cost ({@link CacheFreshness}).
  */
 public final class PersistentUserHandler {
 
@@ -37,157 +44,144 @@ public final class PersistentUserHandler {
     /** Attribute prefix used for all cache keys written to UserModel. */
     public static final String CACHE_PREFIX = "rest_claim_mapper.";
 
-    // Use a fixed thread pool to prevent thread exhaustion if the REST API is slow
-    private static final int MAX_CONCURRENT_REQUESTS = 50;
-
-    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS, r -> {
-        Thread t = new Thread(r, "rest-claim-mapper-worker");
-        t.setDaemon(true);
-        return t;
-    });
-
     private PersistentUserHandler() {
     }
 
     // ── Internal Record ───────────────────────────────────────────────────────
 
-    // Holds the result from the background HTTP request so we can apply it safely
-    // on the main thread
-    private record EndpointFetchResult(@NotNull EndpointConfig endpoint, @NotNull Map<String, Object> claims,
-            boolean success) {
+    // An in-flight HTTP request; its claims are applied on the main thread.
+    // cached is the expired entry it replaces, if any
+    private record EndpointFetch(@NotNull EndpointConfig endpoint, @Nullable ClaimCacheStore.Entry cached,
+            @NotNull CompletableFuture<Map<String, Object>> response) {
     }
 
     /**
      * Fetches and caches REST attributes for a persistent user.
      *
+     * @param session     the current Keycloak session
+     * @param realm       the user's realm
      * @param user        the Keycloak UserModel (already in DB)
-     * @param endpoints   parsed endpoint configurations
+     * @param plan        compiled mapper configuration (endpoints, TTL, cache keys)
      * @param userContext map of user context fields (sub, email, username, …)
-     * @param ttlSeconds  cache TTL in seconds
      * @return merged map of claim name → value
      */
     public static @NotNull Map<String, Object> fetchAndCache(
+            @NotNull KeycloakSession session,
+            @NotNull RealmModel realm,
             @NotNull UserModel user,
-            @NotNull String mapperId,
-            @NotNull List<EndpointConfig> endpoints,
-            @NotNull Map<String, String> userContext,
-            long ttlSeconds) {
+            @NotNull MapperPlan plan,
+            @NotNull Map<String, String> userContext) {
 
         Map<String, Object> finalClaims = new HashMap<>();
         long now = Instant.now().getEpochSecond();
-        List<CompletableFuture<EndpointFetchResult>> fetchTasks = new ArrayList<>();
+        List<EndpointFetch> fetchTasks = new ArrayList<>();
+
+        ClaimCacheStore store = plan.getCacheStore();
+        ClaimCacheStore.Handle cache = plan.isNearCache() && store.usesUserAttributes()
+                ? ClaimNearCache.getInstance().open(store, session, realm, user, plan)
+                : store.open(session, realm, user, plan);
+        if (plan.isWriteBehind() && store.requiresPersistentUser()) {
+            cache = CacheWriteBehind.getInstance().wrap(session, realm, user, plan, cache);
+        }
 
-        for (EndpointConfig ep : endpoints) {
+        for (EndpointConfig ep : plan.getEndpoints()) {
             if (!ep.isConfigured()) {
                 continue;
             }
 
-            String cachedAtKey = CACHE_PREFIX + mapperId + ".ep" + ep.getIndex() + ".cached_at";
-            List<String> cachedAtValues = user.getAttributeStream(cachedAtKey).toList();
-            boolean cacheHit = false;
-
-            if (!cachedAtValues.isEmpty()) {
-                try {
-                    String[] parts = cachedAtValues.get(0).split("\\|");
-                    long cachedAt = Long.parseLong(parts[0]);
-                    String cachedHash = parts.length > 1 ? parts[1] : "";
-
-                    if ((now - cachedAt) < ttlSeconds && cachedHash.equals(ep.getConfigHash())) {
-                        // Within TTL and config hash matches — read from user attributes
-                        LOG.debugf("Cache hit for endpoint %d, user %s", ep.getIndex(), user.getId());
-                        Map<String, Object> cachedClaims = readFromCache(user, mapperId, ep);
-                        finalClaims.putAll(cachedClaims);
-                        cacheHit = true;
-                    }
-                } catch (NumberFormatException | IndexOutOfBoundsException ignored) {
-                    // Corrupt cache — re-fetch
-                }
-            }
-
-            if (!cacheHit) {
-                // Cache miss or stale — dispatch fetch to background thread
+            ClaimCacheStore.Entry cached = cache.get(ep);
+            long ttlSeconds = CacheFreshness.ttlSeconds(plan, ep, cached);
+            boolean current = cached != null && cached.configHash().equals(ep.getConfigHash());
+            long age = current ? now - cached.cachedAt() : Long.MAX_VALUE;
+
+            if (current && CacheFreshness.isFresh(age, ttlSeconds, user.getId(), ep)) {
+                // Within TTL and config hash matches — serve the cached claims
+                LOG.debugf("Cache hit for endpoint %d, user %s", ep.getIndex(), user.getId());
+                finalClaims.putAll(cached.claims());
+            } else if (age < ttlSeconds + plan.getStaleSeconds() && plan.getStaleSeconds() > 0) {
+                // Expired but within the stale window — serve it and refresh in the background
+                LOG.debugf("Serving stale cache for endpoint %d, user %s — refreshing in the background",
+                        ep.getIndex(), user.getId());
+                finalClaims.putAll(cached.claims());
+                CacheRevalidator.getInstance().revalidate(session, realm, user, plan, ep, cached, userContext);
+            } else {
+                // Cache miss or stale — start the non-blocking fetch
                 LOG.debugf("Cache miss for endpoint %d, user %s — fetching from REST API",
                         ep.getIndex(), user.getId());
-                Map<String, String> scriptVars = buildScriptVars(ep, userContext);
-
-                CompletableFuture<EndpointFetchResult> future = CompletableFuture.supplyAsync(() -> {
-                    String queryString = QueryScriptEvaluator.evaluate(ep.getQueryScript(), scriptVars);
-                    String rawJson = RestApiClient.getInstance().fetchJson(ep, queryString);
-
-                    if (rawJson == null) {
-                        LOG.warnf("Endpoint %d returned no data for user %s", ep.getIndex(), user.getId());
-                        return new EndpointFetchResult(ep, Map.of(), false);
-                    }
-
-                    Map<String, Object> mapped = JsonPathMapper.map(rawJson, ep.getMappingRules());
-                    return new EndpointFetchResult(ep, mapped, true);
-                }, EXECUTOR);
+                String queryString = QueryScriptEvaluator.evaluate(ep.getCompiledQueryScript(), userContext);
+                if (queryString == null) {
+                    // Never call the endpoint without the user's query: it could return anyone's data
+                    LOG.warnf("Skipping endpoint %d for user %s: query script failed", ep.getIndex(), user.getId());
+                    continue;
+                }
+                CompletableFuture<Map<String, Object>> future = RestApiClient.getInstance().fetchClaims(ep, queryString);
 
-                fetchTasks.add(future);
+                fetchTasks.add(new EndpointFetch(ep, cached, future));
             }
         }
 
-        // Wait for all fetch tasks and write results to the UserModel sequentially on
-        // the main thread
-        // We enforce a hard timeout (10 seconds) so we never block Keycloak token
-        // issuance indefinitely
-        for (CompletableFuture<EndpointFetchResult> future : fetchTasks) {
+        // Wait for all fetches and write results to the UserModel sequentially on the
+        // main thread. The requests run concurrently on the async client, so the
+        // hard timeout (10 seconds) bounds the whole batch, not each endpoint
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (EndpointFetch fetch : fetchTasks) {
+            EndpointConfig ep = fetch.endpoint();
             try {
-                EndpointFetchResult result = future.get(10, TimeUnit.SECONDS);
-                Map<String, Object> mappedClaims = result.claims();
-                EndpointConfig ep = result.endpoint();
-
-                if (result.success()) {
-                    finalClaims.putAll(mappedClaims);
-
-                    // Persist to Keycloak UserModel attributes (JPA requires an active transaction)
-                    // This MUST run on the main thread
-                    for (Map.Entry<String, Object> entry : mappedClaims.entrySet()) {
-                        String attrKey = CACHE_PREFIX + mapperId + "." + entry.getKey();
-                        Object val = entry.getValue();
-                        if (val instanceof List<?> list) {
-                            user.setAttribute(attrKey, list.stream().map(Object::toString).toList());
-                        } else {
-                            user.setSingleAttribute(attrKey, val.toString());
-                        }
-                    }
-
-                    // Update cached_at timestamp with the config hash
-                    String cachedAtKey = CACHE_PREFIX + mapperId + ".ep" + ep.getIndex() + ".cached_at";
-                    String cacheValue = now + "|" + ep.getConfigHash();
-                    user.setSingleAttribute(cachedAtKey, cacheValue);
+                Map<String, Object> mappedClaims = fetch.response().get(Math.max(0, deadline - System.nanoTime()),
+                        TimeUnit.NANOSECONDS);
+                if (mappedClaims == null) {
+                    LOG.warnf("Endpoint %d returned no data for user %s", ep.getIndex(), user.getId());
+                    continue;
+                }
+
+                finalClaims.putAll(mappedClaims);
+
+                // Persist to the cache store (JPA requires an active transaction)
+                // This MUST run on the main thread. Unchanged data only refreshes the stamp
+                ClaimCacheStore.Entry cached = fetch.cached();
+                if (cached != null && cached.configHash().equals(ep.getConfigHash())
+                        && cached.claims().equals(mappedClaims)) {
+                    LOG.debugf("Endpoint %d unchanged for user %s — extending cache stamp only",
+                            ep.getIndex(), user.getId());
+                    cache.touch(ep, now, CacheFreshness.nextTtlSeconds(plan, ep, cached, false));
+                } else {
+                    cache.put(ep, new ClaimCacheStore.Entry(now, ep.getConfigHash(), mappedClaims,
+                            CacheFreshness.nextTtlSeconds(plan, ep, cached, true)));
                 }
             } catch (TimeoutException e) {
-                LOG.errorf(e, "Endpoint fetch timed out after 10 seconds for user %s", user.getId());
+                fetch.response().cancel(true);
+                LOG.errorf(e, "Endpoint %d fetch timed out after 10 seconds for user %s",
+                        ep.getIndex(), user.getId());
             } catch (Exception e) {
                 LOG.errorf(e, "Unexpected error collecting endpoint result");
             }
         }
 
+        cache.flush();
         return finalClaims;
     }
 
-    /** Reads cached claims from UserModel attributes. */
-    private static @NotNull Map<String, Object> readFromCache(@NotNull UserModel user, @NotNull String mapperId,
-            @NotNull EndpointConfig ep) {
-        Map<String, Object> result = new HashMap<>();
-        for (MappingRule rule : ep.getMappingRules()) {
-            String attrKey = CACHE_PREFIX + mapperId + "." + rule.getClaimName();
-            List<String> values = user.getAttributeStream(attrKey).toList();
-            if (!values.isEmpty()) {
-                result.put(rule.getClaimName(), values.size() == 1 ? values.get(0) : values);
-            }
-        }
-        return result;
+    /** Returns the counters of background refreshes of stale entries. */
+    public static @NotNull CacheRevalidator.Stats revalidationStats() {
+        return CacheRevalidator.getInstance().stats();
     }
 
-    /** Builds variable map for the query script from userContext. */
-    private static @NotNull Map<String, String> buildScriptVars(@NotNull EndpointConfig ep,
-            @NotNull Map<String, String> userContext) {
-        Map<String, String> vars = new HashMap<>();
-        for (String param : ep.getQueryParams()) {
-            vars.put(param, userContext.getOrDefault(param, ""));
-        }
-        return vars;
+    /** Returns the counters of the near-cache shared by all mappers. */
+    public static @NotNull ClaimNearCache.Stats nearCacheStats() {
+        return ClaimNearCache.getInstance().stats();
+    }
+
+    /**
+     * Drops the user's near-cache copies on all nodes, so the next token reads
+     * the cache attributes again, e.g. after an admin deleted them.
+     */
+    public static void invalidateNearCache(@NotNull KeycloakSession session, @NotNull RealmModel realm,
+            @NotNull UserModel user) {
+        ClaimNearCache.getInstance().invalidateEverywhere(session, realm, user);
+    }
+
+    /** Returns the counters of the write-behind queue shared by all mappers. */
+    public static @NotNull CacheWriteBehind.Stats writeBehindStats() {
+        return CacheWriteBehind.getInstance().stats();
     }
 }
@@ -1,29 +1,49 @@
 package com.github.jowe112.keycloak.mapper;
 
 import org.jboss.logging.Logger;
-import org.graalvm.polyglot.Context;
 import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.Source;
 import org.graalvm.polyglot.Value;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Evaluates JavaScript {@code query.script} expressions using the GraalVM
  * Polyglot API.
  * <p>
- * Each invocation creates a sandboxed {@link Context} that:
+ * Each invocation borrows a sandboxed context from {@link ScriptContextPool}
+ * that:
  * <ul>
- * <li>Runs in the {@code js} language.</li>
+ * <li>Runs in the {@code js} language on a shared, JIT-warm engine.</li>
  * <li>Has no access to native file I/O, network, or environment.</li>
- * <li>Is closed after evaluation to free resources.</li>
+ * <li>Is returned to the pool after evaluation; scripts run in strict mode
+ * against frozen globals and built-ins, so nothing a script declares or
+ * assigns survives into the next evaluation.</li>
+ * <li>Is stopped after {@value ScriptContextPool#STATEMENT_LIMIT} statements or
+ * when its wall-clock budget is spent; results longer than
+ * {@value #MAX_RESULT_LENGTH} characters are rejected.</li>
  * </ul>
- * Declared {@code query.param.K} values are bound as JavaScript top-level
- * variables so
- * scripts can reference them by name (e.g. {@code "?user=" + username}).
+ * Scripts from the mapper configuration are {@link CompiledQueryScript
+ * compiled} once into functions, and declared {@code query.param.K} values are
+ * passed as arguments so scripts can reference them by name (e.g.
+ * {@code "?user=" + username}). Ad-hoc scripts, and scripts that are not a
+ * single expression, are evaluated with the values declared as {@code var}s.
+ * <p>
+ * Endpoints can opt in to memoizing GraalVM results per script and argument
+ * values in a bounded, process-wide cache, so repeat logins skip script
+ * evaluation entirely.
  */
 public final class QueryScriptEvaluator {
 
@@ -33,18 +53,171 @@ public final class QueryScriptEvaluator {
     private QueryScriptEvaluator() {
     }
 
+    /** Longest query string a script may return; longer results are rejected. */
+    static final int MAX_RESULT_LENGTH = 8_192;
+
+    private static final AtomicLong OUTPUT_LIMIT_HITS = new AtomicLong();
+
+    /** Maximum number of memoized script results (all mappers). */
+    private static final int RESULT_CACHE_MAX_ENTRIES = 10_000;
+
+    /** Key: compiled script (identity) and its argument values. Value: query string. */
+    private record ResultKey(CompiledQueryScript script, List<Object> args) {
+    }
+
+    private static final Cache<ResultKey, String> RESULT_CACHE = Caffeine.newBuilder()
+            .maximumSize(RESULT_CACHE_MAX_ENTRIES)
+            .expireAfterAccess(Duration.ofHours(1))
+            .recordStats()
+            .build();
+
+    /** Point-in-time snapshot of the script result cache. */
+    public record ResultCacheStats(long size, long hits, long misses, long evictions) {
+    }
+
+    /** Returns the current state of the script result cache. */
+    public static @NotNull ResultCacheStats resultCacheStats() {
+        CacheStats stats = RESULT_CACHE.stats();
+        return new ResultCacheStats(RESULT_CACHE.estimatedSize(), stats.hitCount(), stats.missCount(),
+                stats.evictionCount());
+    }
+
+    /** Counters of evaluations stopped by a resource limit. */
+    public record LimitStats(long statementLimitHits, long timeouts, long outputLimitHits) {
+    }
+
+    /** Returns how often evaluations hit the statement, time or output limit. */
+    public static @NotNull LimitStats limitStats() {
+        ScriptContextPool pool = ScriptContextPool.getInstance();
+        return new LimitStats(pool.statementLimitHits(), pool.timeouts(), OUTPUT_LIMIT_HITS.get());
+    }
+
+    /** Point-in-time snapshot of the script context pool utilisation. */
+    public record PoolStats(int maxPooled, int live, int idle, int inUse, long acquisitions, long reused,
+            long created, long overflow, long discarded) {
+    }
+
+    /** Returns the current utilisation of the shared script context pool. */
+    public static @NotNull PoolStats poolStats() {
+        return ScriptContextPool.getInstance().stats();
+    }
+
+    /**
+     * Evaluates a compiled query script for the given user context. Native
+     * (JS-free) scripts are expanded directly; all others run on GraalVM,
+     * unless their result is cached (see {@link CompiledQueryScript#isResultCacheable()}).
+     *
+     * @param script      the compiled {@code query.script}
+     * @param userContext map of user context fields; the declared parameters
+     *                    are looked up by name ({@code ""} if absent)
+     * @return the string result of the expression, {@code ""} for a blank
+     *         script, or {@code null} on error; callers must then skip the
+     *         endpoint rather than call it without a query
+     */
+    public static @Nullable String evaluate(@NotNull CompiledQueryScript script,
+            @NotNull Map<String, String> userContext) {
+        if (script.isBlank()) {
+            return "";
+        }
+        QueryTemplate template = script.getNativeTemplate();
+        if (template != null) {
+            try {
+                return template.expand(userContext);
+            } catch (RuntimeException e) {
+                LOG.errorf("QueryScript evaluation failed: %s | script: %s", e.getMessage(), script.getScript());
+                return null;
+            }
+        }
+
+        Object[] args = script.getArguments(userContext);
+        String result;
+        if (script.isResultCacheable()) {
+            // Failed evaluations return null and are therefore not cached
+            result = RESULT_CACHE.get(new ResultKey(script, Arrays.asList(args)),
+                    key -> evaluateOnGraal(script, args));
+        } else {
+            result = evaluateOnGraal(script, args);
+        }
+        return result;
+    }
+
+    /** Returns the result of the script, or {@code null} on error. */
+    private static @Nullable String evaluateOnGraal(@NotNull CompiledQueryScript script, @NotNull Object[] args) {
+        Source source = script.getFunctionSource();
+        if (source == null) {
+            return evaluateWithPrologue(script.getScript(), declaredVariables(script, args));
+        }
+
+        ScriptContextPool pool = ScriptContextPool.getInstance();
+        ScriptContextPool.Lease lease = null;
+        boolean discard = false;
+        try {
+            lease = pool.acquire();
+            Value result = lease.function(source).execute(args);
+            return checkLength(result.asString(), script.getScript());
+
+        } catch (PolyglotException e) {
+            if (e.isSyntaxError()) {
+                // Not a single expression — use the var-prologue path from now on
+                LOG.debugf("Query script %s cannot be compiled as a function, falling back: %s",
+                        script.getId(), e.getMessage());
+                script.markFunctionFormUnsupported();
+                pool.release(lease, false);
+                lease = null;
+                return evaluateWithPrologue(script.getScript(), declaredVariables(script, args));
+            }
+            discard = e.isCancelled() || e.isExit() || e.isInternalError() || e.isResourceExhausted();
+            LOG.errorf("QueryScript evaluation failed: %s | script: %s", e.getMessage(), script.getScript());
+            return null;
+        } catch (Exception e) {
+            discard = true;
+            LOG.errorf(e, "Unexpected error evaluating query script: %s", script.getScript());
+            return null;
+        } finally {
+            if (lease != null) {
+                pool.release(lease, discard);
+            }
+        }
+    }
+
+    private static @Nullable String checkLength(@NotNull String result, @Nullable String script) {
+        if (result.length() > MAX_RESULT_LENGTH) {
+            OUTPUT_LIMIT_HITS.incrementAndGet();
+            LOG.errorf("QueryScript result exceeds %d characters (%d) — discarded | script: %s",
+                    MAX_RESULT_LENGTH, result.length(), script);
+            return null;
+        }
+        return result;
+    }
+
+    private static @NotNull Map<String, String> declaredVariables(@NotNull CompiledQueryScript script,
+            @NotNull Object[] args) {
+        Map<String, String> vars = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            vars.put(script.getParams().get(i), (String) args[i]);
+        }
+        return vars;
+    }
+
     /**
      * Evaluates the given JavaScript expression with the supplied variable
      * bindings.
      *
      * @param script    the JS expression, e.g. {@code "?user=" + username}
      * @param variables map of variable name → string value to inject as JS bindings
-     * @return the string result of the expression, or {@code ""} on error
+     * @return the string result of the expression, {@code ""} for a blank
+     *         script, or {@code null} on error
      */
-    public static @NotNull String evaluate(@Nullable String script, @NotNull Map<String, String> variables) {
+    public static @Nullable String evaluate(@Nullable String script, @NotNull Map<String, String> variables) {
         if (script == null || script.isBlank()) {
             return "";
         }
+        return evaluateWithPrologue(script, variables);
+    }
+
+    /** Returns the result of the script, or {@code null} on error. */
+    private static @Nullable String evaluateWithPrologue(@NotNull String script,
+            @NotNull Map<String, String> variables) {
 
         // Build a JS snippet that declares each variable, then evaluates the script
         // expression.
@@ -64,20 +237,27 @@ public final class QueryScriptEvaluator {
         }
         fullScript.append(script);
 
-        try (Context ctx = Context.newBuilder("js")
-                .allowAllAccess(false)
-                .option("engine.WarnInterpreterOnly", "false")
-                .build()) {
-
-            Value result = ctx.eval("js", fullScript.toString());
-            return result.asString();
+        ScriptContextPool pool = ScriptContextPool.getInstance();
+        ScriptContextPool.Lease lease = null;
+        boolean discard = false;
+        try {
+            lease = pool.acquire();
+            Value result = lease.evalHelper.execute(fullScript.toString());
+            return checkLength(result.asString(), script);
 
         } catch (PolyglotException e) {
+            // Cancelled or internally broken contexts must not go back into the pool
+            discard = e.isCancelled() || e.isExit() || e.isInternalError() || e.isResourceExhausted();
             LOG.errorf("QueryScript evaluation failed: %s | script: %s", e.getMessage(), script);
-            return "";
+            return null;
         } catch (Exception e) {
+            discard = true;
             LOG.errorf(e, "Unexpected error evaluating query script: %s", script);
-            return "";
+            return null;
+        } finally {
+            if (lease != null) {
+                pool.release(lease, discard);
+            }
         }
     }
 }
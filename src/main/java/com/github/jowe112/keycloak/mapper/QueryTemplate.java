@@ -0,0 +1,25 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+
+/**
+ * A query-string builder that runs as plain Java, without a JavaScript engine.
+ * <p>
+ * Implemented by {@link UriTemplate} (explicit {@code template} query mode) and
+ * by the templates {@link ScriptTemplateCompiler} derives from simple
+ * {@code query.script} expressions.
+ */
+interface QueryTemplate {
+
+    /**
+     * Builds the query string for the given user context.
+     *
+     * @param userContext map of user context fields (sub, email, username, …)
+     * @return the expanded query string, never {@code null}
+     * @throws IllegalArgumentException if a value cannot be encoded
+     */
+    @NotNull
+    String expand(@NotNull Map<String, String> userContext);
+}
@@ -2,38 +2,71 @@ package com.github.jowe112.keycloak.mapper;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.hc.client5.http.classic.methods.HttpGet;
-import org.apache.hc.client5.http.classic.methods.HttpPost;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.async.methods.SimpleRequestProducer;
+import org.apache.hc.client5.http.async.methods.SimpleResponseConsumer;
 import org.apache.hc.client5.http.config.ConnectionConfig;
 import org.apache.hc.client5.http.config.RequestConfig;
-import org.apache.hc.client5.http.entity.UrlEncodedFormEntity;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
-import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.NameValuePair;
-import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.http.message.BasicNameValuePair;
+import org.apache.hc.core5.http.nio.AsyncRequestProducer;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.net.WWWFormCodec;
 import org.apache.hc.core5.util.Timeout;
 import org.jboss.logging.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
- * Thread-safe HTTP client for calling external REST APIs.
+ * Thread-safe, non-blocking HTTP client for calling external REST APIs.
  * <p>
- * Uses Apache HttpClient 5 with a shared connection pool. Supports:
+ * Uses the Apache HttpClient 5 async client on a small I/O reactor, so an
+ * in-flight call does not pin a thread. HTTP/2 is negotiated via ALPN for
+ * {@code https} endpoints and many concurrent lookups are multiplexed over one
+ * connection per upstream; HTTP/1.1 upstreams use the connection pool.
+ * Supports:
  * <ul>
  * <li>{@code apikey} — sends {@code X-API-Key: <value>} header.</li>
  * <li>{@code oauth2} — parses {@code clientId:clientSecret:tokenUrl}, obtains a
- * bearer token (cached in-memory until expiry - 30 s), sends
- * {@code Authorization: Bearer <token>}.</li>
+ * bearer token with the client-credentials grant, sends
+ * {@code Authorization: Bearer <token>}. Tokens are cached per credential,
+ * acquired once however many requests need one, and renewed in the background
+ * at {@value #TOKEN_REFRESH_FRACTION} of their lifetime, so requests only wait
+ * for the token endpoint on first use or after a failed renewal.</li>
  * </ul>
  * A single static instance is created lazily and shared across all mapper
  * invocations.
@@ -46,30 +79,106 @@ public final class RestApiClient {
     private static final int RESPONSE_TIMEOUT_SECONDS = 10;
     private static final int MAX_TOTAL_CONNECTIONS = 50;
     private static final int MAX_PER_ROUTE = 10;
+    private static final int MAX_CONCURRENT_STREAMS = 250;
 
     /** Singleton HTTP client. */
     private static volatile RestApiClient INSTANCE;
 
-    private final CloseableHttpClient httpClient;
+    private final CloseableHttpAsyncClient httpClient;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
     // ── OAuth2 token cache ────────────────────────────────────────────────────
+
+    /** Fraction of a token's lifetime after which it is renewed in the background. */
+    static final double TOKEN_REFRESH_FRACTION = 0.8;
+
+    /** Maximum number of cached tokens (distinct credentials). */
+    static final int MAX_CACHED_TOKENS = 256;
+
+    /** Lifetime assumed when the token response has no {@code expires_in}. */
+    private static final long DEFAULT_TOKEN_LIFETIME_SECONDS = 3600;
+
+    /** Tokens are never used during the last seconds of their lifetime. */
+    private static final long TOKEN_EXPIRY_MARGIN_SECONDS = 30;
+
+    private record ClientCredentials(@NotNull String clientId, @NotNull String clientSecret,
+            @NotNull String tokenUrl) {
+    }
+
+    /** A token, when to renew it and when it can no longer be used. */
     private static final class CachedToken {
         final String token;
+        final ClientCredentials credentials;
+        final Instant refreshAt;
         final Instant expiresAt;
+        volatile boolean used;
 
-        CachedToken(String token, long expiresInSeconds) {
+        CachedToken(String token, ClientCredentials credentials, long expiresInSeconds) {
+            Instant now = Instant.now();
+            long usable = Math.max(1, expiresInSeconds - Math.min(TOKEN_EXPIRY_MARGIN_SECONDS, expiresInSeconds / 10));
             this.token = token;
-            this.expiresAt = Instant.now().plusSeconds(expiresInSeconds - 30);
+            this.credentials = credentials;
+            this.refreshAt = now.plusMillis((long) (expiresInSeconds * 1000 * TOKEN_REFRESH_FRACTION));
+            this.expiresAt = now.plusSeconds(usable);
         }
 
         boolean isValid() {
             return Instant.now().isBefore(expiresAt);
         }
+
+        boolean needsRefresh() {
+            return !Instant.now().isBefore(refreshAt);
+        }
+    }
+
+    /**
+     * Key: SHA-256 of the auth.value, so secrets never serve as map keys.
+     * Every write, including a renewal replacing the entry, expires with the
+     * token it stores.
+     */
+    private final Cache<String, CachedToken> tokenCache = Caffeine.newBuilder()
+            .maximumSize(MAX_CACHED_TOKENS)
+            .expireAfter(Expiry.writing((String hash, CachedToken token) ->
+                    Duration.between(Instant.now(), token.expiresAt)))
+            .recordStats()
+            .build();
+
+    /** Key: credential hash. Value: the token request in flight for it. */
+    private final Map<String, CompletableFuture<String>> tokenRequests = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService tokenRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "rest-claim-mapper-token-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong tokenGrants = new AtomicLong();
+    private final AtomicLong tokenWaits = new AtomicLong();
+    private final AtomicLong tokenCoalesced = new AtomicLong();
+    private final AtomicLong tokenRefreshes = new AtomicLong();
+    private final AtomicLong tokenFailures = new AtomicLong();
+
+    /**
+     * OAuth2 token cache counters.
+     *
+     * @param size        cached tokens
+     * @param maxSize     cache bound ({@value #MAX_CACHED_TOKENS})
+     * @param hits        requests served a cached token
+     * @param waits       requests that had to wait for a token (first use or expired)
+     * @param coalesced   token acquisitions that joined one already in flight
+     * @param grants      client-credentials grants sent to token endpoints
+     * @param refreshes   grants sent ahead of expiry by the background refresher
+     * @param failures    grants that failed or returned no token
+     * @param evictions   tokens evicted to stay under the bound
+     */
+    public record TokenStats(long size, int maxSize, long hits, long waits, long coalesced, long grants,
+            long refreshes, long failures, long evictions) {
     }
 
-    /** Key: auth.value string (clientId:clientSecret:tokenUrl). */
-    private final Map<String, CachedToken> tokenCache = new ConcurrentHashMap<>();
+    // ── Single flight ─────────────────────────────────────────────────────────
+    private final Map<FlightKey, Flight> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong flights = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
 
     // ── Construction ─────────────────────────────────────────────────────────
 
@@ -78,19 +187,29 @@ public final class RestApiClient {
                 .setConnectTimeout(Timeout.ofSeconds(CONNECT_TIMEOUT_SECONDS))
                 .build();
 
-        PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
-        cm.setMaxTotal(MAX_TOTAL_CONNECTIONS);
-        cm.setDefaultMaxPerRoute(MAX_PER_ROUTE);
-        cm.setDefaultConnectionConfig(connectionConfig);
+        // Negotiate HTTP/2 over TLS and let concurrent requests share one h2 connection
+        PoolingAsyncClientConnectionManager cm = PoolingAsyncClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(MAX_TOTAL_CONNECTIONS)
+                .setMaxConnPerRoute(MAX_PER_ROUTE)
+                .setDefaultConnectionConfig(connectionConfig)
+                .setDefaultTlsConfig(TlsConfig.custom()
+                        .setVersionPolicy(HttpVersionPolicy.NEGOTIATE)
+                        .build())
+                .setMessageMultiplexing(true)
+                .build();
 
         RequestConfig requestConfig = RequestConfig.custom()
                 .setResponseTimeout(Timeout.ofSeconds(RESPONSE_TIMEOUT_SECONDS))
                 .build();
 
-        this.httpClient = HttpClients.custom()
+        this.httpClient = HttpAsyncClients.custom()
                 .setConnectionManager(cm)
                 .setDefaultRequestConfig(requestConfig)
+                .setH2Config(H2Config.custom()
+                        .setMaxConcurrentStreams(MAX_CONCURRENT_STREAMS)
+                        .build())
                 .build();
+        this.httpClient.start();
     }
 
     public static @NotNull RestApiClient getInstance() {
@@ -108,100 +227,408 @@ public final class RestApiClient {
 
     /**
      * Fetches JSON from the endpoint URL + queryString using the configured auth.
+     * <p>
+     * The body is decoded while it streams in (see {@link JsonResponseConsumer})
+     * and limited to the endpoint's maximum response size. The returned future
+     * never completes exceptionally: errors are logged and surface as a
+     * {@code null} result. Cancelling the future aborts the HTTP exchange.
      *
-     * @return raw JSON string, or {@code null} on error
+     * @return future of the parsed JSON body, completed with {@code null} on error
      */
-    public @Nullable String fetchJson(@NotNull EndpointConfig endpoint, @Nullable String queryString) {
+    public @NotNull CompletableFuture<JsonNode> fetchJson(@NotNull EndpointConfig endpoint,
+            @Nullable String queryString) {
+        return fetch(endpoint, queryString, () -> JsonResponseConsumer.tree(endpoint.getMaxResponseBytes()));
+    }
+
+    /**
+     * Fetches the endpoint and applies its mapping rules.
+     * <p>
+     * If all rules are supported by the {@link StreamingExtractor}, the claims
+     * are extracted from the token stream in a single pass without building the
+     * document tree; otherwise the body is parsed into a tree and mapped by
+     * {@link JsonPathMapper}. Both give the same result. Error handling is as
+     * for {@link #fetchJson(EndpointConfig, String)}.
+     * <p>
+     * Concurrent calls for the same endpoint configuration and URL share one
+     * in-flight request (single flight): later callers get a view of the
+     * running request instead of starting their own. Cancelling a view only
+     * detaches that caller; the request is aborted once every caller has
+     * cancelled. The shared claims map must not be modified.
+     *
+     * @return future of claim name → value, completed with {@code null} on error
+     */
+    public @NotNull CompletableFuture<Map<String, Object>> fetchClaims(@NotNull EndpointConfig endpoint,
+            @Nullable String queryString) {
+        FlightKey key = new FlightKey(endpoint.getConfigHash(),
+                endpoint.getUrl() + (queryString != null ? queryString : ""));
+        while (true) {
+            Flight flight = inFlight.get(key);
+            if (flight != null) {
+                if (flight.join()) {
+                    coalesced.incrementAndGet();
+                    return flight.view();
+                }
+                inFlight.remove(key, flight); // abandoned by all callers
+                continue;
+            }
+            flight = new Flight();
+            if (inFlight.putIfAbsent(key, flight) == null) {
+                flights.incrementAndGet();
+                Flight started = flight;
+                CompletableFuture<Map<String, Object>> request;
+                try {
+                    request = fetchClaimsUncoalesced(endpoint, queryString);
+                } catch (RuntimeException e) {
+                    // Never leave a flight behind that no request will complete
+                    LOG.errorf(e, "HTTP call failed for endpoint %d", endpoint.getIndex());
+                    request = CompletableFuture.completedFuture(null);
+                }
+                started.start(request);
+                request.whenComplete((claims, error) -> inFlight.remove(key, started));
+                return started.view();
+            }
+        }
+    }
+
+    /** Returns the single-flight counters of {@link #fetchClaims}. */
+    public @NotNull CoalescingStats coalescingStats() {
+        return new CoalescingStats(inFlight.size(), flights.get(), coalesced.get());
+    }
+
+    private @NotNull CompletableFuture<Map<String, Object>> fetchClaimsUncoalesced(@NotNull EndpointConfig endpoint,
+            @Nullable String queryString) {
+        long start = System.nanoTime();
+        StreamingExtractor extractor = endpoint.getStreamingExtractor();
+        CompletableFuture<Map<String, Object>> claims;
+        if (extractor != null) {
+            claims = fetch(endpoint, queryString,
+                    () -> JsonResponseConsumer.claims(endpoint.getMaxResponseBytes(), extractor));
+        } else {
+            CompletableFuture<JsonNode> json = fetchJson(endpoint, queryString);
+            claims = json.thenApply(body -> body != null ? JsonPathMapper.map(body, endpoint.getMappingRules()) : null);
+            // Dependent stages do not cancel their source; abort the exchange explicitly
+            claims.whenComplete((mapped, error) -> {
+                if (claims.isCancelled()) {
+                    json.cancel(true);
+                }
+            });
+        }
+        // Observed cost for early expiration; the returned future stays cancellable
+        claims.thenAccept(mapped -> {
+            if (mapped != null) {
+                CacheFreshness.recordFetch(endpoint, System.nanoTime() - start);
+            }
+        });
+        return claims;
+    }
+
+    private <T> @NotNull CompletableFuture<T> fetch(@NotNull EndpointConfig endpoint, @Nullable String queryString,
+            @NotNull Supplier<JsonResponseConsumer<T>> consumer) {
         String url = endpoint.getUrl() + (queryString != null ? queryString : "");
-        try {
-            HttpGet request = new HttpGet(url);
-            request.setHeader("Accept", "application/json");
-            request.setHeader("Content-Type", "application/json");
-            request.setHeader("apollo-require-preflight", "true");
-
-            applyAuth(endpoint, request);
-
-            return httpClient.execute(request, response -> {
-                int statusCode = response.getCode();
-                String body = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
-                if (statusCode >= 200 && statusCode < 300) {
-                    return body;
+        CompletableFuture<T> result = new CompletableFuture<>();
+        resolveAuthHeader(endpoint).whenComplete((authHeader, authError) -> {
+            if (result.isDone()) {
+                return; // cancelled while the token was being resolved
+            }
+            JsonResponseConsumer<T> bodyConsumer;
+            CompletableFuture<T> exchange;
+            try {
+                if (authError != null) {
+                    throw authError;
+                }
+                // Fails on a malformed URL, e.g. an unencoded space from the query script
+                SimpleRequestBuilder builder = SimpleRequestBuilder.get(url)
+                        .setHeader("Accept", "application/json")
+                        .setHeader("Content-Type", "application/json")
+                        .setHeader("apollo-require-preflight", "true");
+                if (authHeader != null) {
+                    builder.setHeader(authHeader.name(), authHeader.value());
+                }
+
+                bodyConsumer = consumer.get();
+                exchange = execute(SimpleRequestProducer.create(builder.build()),
+                        bodyConsumer, response -> {
+                            if (response.isSuccess()) {
+                                return response.body();
+                            }
+                            LOG.errorf("REST API returned HTTP %d for URL: %s — body: %s",
+                                    response.status(), url, response.errorBody());
+                            return null;
+                        });
+            } catch (Throwable e) {
+                LOG.errorf(unwrap(e), "HTTP call failed for endpoint %d URL: %s", endpoint.getIndex(), url);
+                result.complete(null);
+                return;
+            }
+            result.whenComplete((value, error) -> {
+                if (result.isCancelled()) {
+                    // Reaches the exchange even where cancelling the client future does not
+                    bodyConsumer.cancel();
+                    exchange.cancel(true);
                 }
-                LOG.errorf("REST API returned HTTP %d for URL: %s — body: %s",
-                        statusCode, url, body);
-                return null;
             });
-        } catch (Exception e) {
-            LOG.errorf(e, "HTTP call failed for endpoint %d URL: %s", endpoint.getIndex(), url);
-            return null;
+            exchange.whenComplete((value, error) -> {
+                if (error != null) {
+                    if (!exchange.isCancelled()) {
+                        LOG.errorf(unwrap(error), "HTTP call failed for endpoint %d URL: %s",
+                                endpoint.getIndex(), url);
+                    }
+                    result.complete(null);
+                } else {
+                    result.complete(value);
+                }
+            });
+        });
+        return result;
+    }
+
+    // ── Single flight ─────────────────────────────────────────────────────────
+
+    private record FlightKey(@NotNull String configHash, @NotNull String url) {
+    }
+
+    /**
+     * One in-flight {@link #fetchClaims} request and the number of callers
+     * still waiting for it.
+     */
+    private static final class Flight {
+        private final CompletableFuture<Map<String, Object>> shared = new CompletableFuture<>();
+        private final AtomicInteger waiters = new AtomicInteger(1);
+        private volatile CompletableFuture<Map<String, Object>> request;
+
+        /** Adds a caller; {@code false} if every previous caller already gave up. */
+        boolean join() {
+            return waiters.getAndUpdate(n -> n > 0 ? n + 1 : n) > 0;
+        }
+
+        void start(@NotNull CompletableFuture<Map<String, Object>> request) {
+            this.request = request;
+            request.whenComplete((claims, error) -> shared.complete(error == null ? claims : null));
+        }
+
+        /** Returns a future for one caller; cancelling it detaches only that caller. */
+        @NotNull
+        CompletableFuture<Map<String, Object>> view() {
+            CompletableFuture<Map<String, Object>> view = new CompletableFuture<>();
+            shared.whenComplete((claims, error) -> view.complete(claims));
+            view.whenComplete((claims, error) -> {
+                if (view.isCancelled() && waiters.decrementAndGet() == 0 && request != null) {
+                    request.cancel(true);
+                }
+            });
+            return view;
         }
     }
 
+    /**
+     * Single-flight counters.
+     *
+     * @param inFlight  distinct requests running now
+     * @param flights   requests started
+     * @param coalesced calls served by joining a request already in flight
+     */
+    public record CoalescingStats(int inFlight, long flights, long coalesced) {
+    }
+
+    // ── Async plumbing ────────────────────────────────────────────────────────
+
+    @FunctionalInterface
+    private interface ResponseHandler<R, T> {
+        T handle(@NotNull R response) throws Exception;
+    }
+
+    /**
+     * Executes the request and maps the consumed response; cancelling the
+     * returned future cancels the underlying exchange.
+     */
+    private <R, T> @NotNull CompletableFuture<T> execute(@NotNull AsyncRequestProducer request,
+            @NotNull AsyncResponseConsumer<R> consumer, @NotNull ResponseHandler<R, T> handler) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<R> exchange = httpClient.execute(request, consumer, new FutureCallback<>() {
+            @Override
+            public void completed(R response) {
+                try {
+                    result.complete(handler.handle(response));
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                result.cancel(false);
+            }
+        });
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) {
+                exchange.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private static @NotNull Throwable unwrap(@NotNull Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
     // ── Auth helpers ──────────────────────────────────────────────────────────
 
-    private void applyAuth(@NotNull EndpointConfig endpoint, @NotNull HttpGet request) throws Exception {
+    private record AuthHeader(@NotNull String name, @NotNull String value) {
+    }
+
+    /** Resolves the auth header for the endpoint; {@code null} value if none applies. */
+    private @NotNull CompletableFuture<AuthHeader> resolveAuthHeader(@NotNull EndpointConfig endpoint) {
         if ("oauth2".equalsIgnoreCase(endpoint.getAuthType())) {
-            String token = resolveOAuth2Token(endpoint.getAuthValue());
-            if (token != null) {
-                request.setHeader("Authorization", "Bearer " + token);
-            }
+            return resolveOAuth2Token(endpoint.getAuthValue())
+                    .thenApply(token -> token != null ? new AuthHeader("Authorization", "Bearer " + token) : null);
         } else if ("basic".equalsIgnoreCase(endpoint.getAuthType())) {
             String val = endpoint.getAuthValue();
             if (val != null && !val.isBlank()) {
-                request.setHeader("Authorization", "Basic " + val);
+                return CompletableFuture.completedFuture(new AuthHeader("Authorization", "Basic " + val));
             }
         } else {
             // Default: apikey
             if (endpoint.getAuthValue() != null && !endpoint.getAuthValue().isBlank()) {
-                request.setHeader("X-API-Key", endpoint.getAuthValue());
+                return CompletableFuture.completedFuture(new AuthHeader("X-API-Key", endpoint.getAuthValue()));
             }
         }
+        return CompletableFuture.completedFuture(null);
     }
 
     /**
      * Resolves an OAuth2 bearer token using client credentials flow.
-     * Tokens are cached in-memory until 30 seconds before expiry.
+     * <p>
+     * A cached token is returned immediately; past
+     * {@value #TOKEN_REFRESH_FRACTION} of its lifetime a renewal is started
+     * without waiting for it. Without a usable token the request waits for the
+     * grant, which is shared with every other request for the same credentials.
      *
      * @param authValue format: {@code clientId:clientSecret:tokenUrl}
+     * @return future of the token, completed with {@code null} if none could be
+     *         obtained
      */
-    private @Nullable String resolveOAuth2Token(@NotNull String authValue) throws Exception {
-        CachedToken cached = tokenCache.get(authValue);
+    @NotNull CompletableFuture<String> resolveOAuth2Token(@Nullable String authValue) {
+        String[] parts = authValue != null ? authValue.split(":", 3) : new String[0];
+        if (parts.length != 3) {
+            LOG.error("OAuth2 auth.value must be 'clientId:clientSecret:tokenUrl'");
+            return CompletableFuture.completedFuture(null);
+        }
+        String hash = credentialHash(authValue);
+        CachedToken cached = tokenCache.getIfPresent(hash);
         if (cached != null && cached.isValid()) {
-            return cached.token;
+            cached.used = true;
+            if (cached.needsRefresh()) {
+                // The scheduled renewal did not run or failed — renew without waiting
+                acquireToken(hash, cached.credentials, true);
+            }
+            return CompletableFuture.completedFuture(cached.token);
         }
+        tokenWaits.incrementAndGet();
+        return acquireToken(hash, new ClientCredentials(parts[0], parts[1], parts[2]), false);
+    }
 
-        String[] parts = authValue.split(":", 3);
-        if (parts.length != 3) {
-            LOG.error("OAuth2 auth.value must be 'clientId:clientSecret:tokenUrl'");
-            return null;
+    /** Returns the counters of the OAuth2 token cache. */
+    public @NotNull TokenStats tokenStats() {
+        CacheStats stats = tokenCache.stats();
+        return new TokenStats(tokenCache.estimatedSize(), MAX_CACHED_TOKENS, stats.hitCount(), tokenWaits.get(),
+                tokenCoalesced.get(), tokenGrants.get(), tokenRefreshes.get(), tokenFailures.get(),
+                stats.evictionCount());
+    }
+
+    /** Runs the client-credentials grant unless one is already in flight for the credentials. */
+    private @NotNull CompletableFuture<String> acquireToken(@NotNull String hash,
+            @NotNull ClientCredentials credentials, boolean refresh) {
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        CompletableFuture<String> existing = tokenRequests.putIfAbsent(hash, pending);
+        if (existing != null) {
+            tokenCoalesced.incrementAndGet();
+            return existing;
+        }
+        if (refresh) {
+            tokenRefreshes.incrementAndGet();
         }
-        String clientId = parts[0];
-        String clientSecret = parts[1];
-        String tokenUrl = parts[2];
+        CompletableFuture<String> request;
+        try {
+            request = requestToken(hash, credentials);
+        } catch (RuntimeException e) {
+            // Never leave a pending acquisition behind that no request will complete
+            tokenFailures.incrementAndGet();
+            LOG.errorf(e, "OAuth2 token request failed for URL: %s", credentials.tokenUrl());
+            tokenRequests.remove(hash, pending);
+            pending.complete(null);
+            return pending;
+        }
+        request.whenComplete((token, error) -> {
+            tokenRequests.remove(hash, pending);
+            pending.complete(error == null ? token : null);
+        });
+        return pending;
+    }
 
+    /** Sends the grant; throws if the token URL is malformed. */
+    private @NotNull CompletableFuture<String> requestToken(@NotNull String hash,
+            @NotNull ClientCredentials credentials) {
+        tokenGrants.incrementAndGet();
         List<NameValuePair> formParams = new ArrayList<>();
         formParams.add(new BasicNameValuePair("grant_type", "client_credentials"));
-        formParams.add(new BasicNameValuePair("client_id", clientId));
-        formParams.add(new BasicNameValuePair("client_secret", clientSecret));
+        formParams.add(new BasicNameValuePair("client_id", credentials.clientId()));
+        formParams.add(new BasicNameValuePair("client_secret", credentials.clientSecret()));
 
-        HttpPost post = new HttpPost(tokenUrl);
-        post.setEntity(new UrlEncodedFormEntity(formParams, StandardCharsets.UTF_8));
+        SimpleHttpRequest post = SimpleRequestBuilder.post(credentials.tokenUrl())
+                .setBody(WWWFormCodec.format(formParams, StandardCharsets.UTF_8),
+                        ContentType.APPLICATION_FORM_URLENCODED)
+                .build();
 
-        return httpClient.execute(post, response -> {
-            String body = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+        return execute(SimpleRequestProducer.create(post), SimpleResponseConsumer.create(), response -> {
+            String body = response.getBodyText();
             if (response.getCode() >= 200 && response.getCode() < 300) {
                 JsonNode json = objectMapper.readTree(body);
                 String token = json.path("access_token").asText(null);
-                long expiresIn = json.path("expires_in").asLong(3600);
+                long expiresIn = json.path("expires_in").asLong(DEFAULT_TOKEN_LIFETIME_SECONDS);
                 if (token != null) {
-                    tokenCache.put(authValue, new CachedToken(token, expiresIn));
+                    CachedToken cached = new CachedToken(token, credentials, expiresIn);
+                    tokenCache.put(hash, cached);
+                    scheduleRefresh(hash, cached);
                     return token;
                 }
+                tokenFailures.incrementAndGet();
                 LOG.error("OAuth2 token response did not contain access_token");
                 return null;
             }
+            tokenFailures.incrementAndGet();
             LOG.errorf("OAuth2 token request failed with HTTP %d: %s", response.getCode(), body);
             return null;
+        }).exceptionally(e -> {
+            tokenFailures.incrementAndGet();
+            LOG.errorf(unwrap(e), "OAuth2 token request failed for URL: %s", credentials.tokenUrl());
+            return null;
         });
     }
+
+    /**
+     * Renews the token at its refresh time if it is still cached and was used
+     * since it was obtained; tokens nobody asks for are left to expire.
+     */
+    private void scheduleRefresh(@NotNull String hash, @NotNull CachedToken cached) {
+        long delay = Math.max(0, Duration.between(Instant.now(), cached.refreshAt).toMillis());
+        tokenRefresher.schedule(() -> {
+            if (cached.used && tokenCache.getIfPresent(hash) == cached) {
+                acquireToken(hash, cached.credentials, true);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static @NotNull String credentialHash(@NotNull String authValue) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(authValue.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
 }
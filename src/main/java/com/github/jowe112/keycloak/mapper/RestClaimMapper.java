@@ -2,6 +2,8 @@ package com.github.jowe112.keycloak.mapper;
 
 import org.jboss.logging.Logger;
 import org.keycloak.models.*;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
 import org.keycloak.protocol.oidc.mappers.*;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.representations.AccessToken;
@@ -19,8 +21,8 @@ import java.util.*;
  * <p>
  * At token issuance time this mapper:
  * <ol>
- * <li>Reads its configuration (up to {@value ConfigParser#MAX_ENDPOINTS} REST
- * endpoints).</li>
+ * <li>Reads its compiled configuration (up to {@value ConfigParser#MAX_ENDPOINTS}
+ * REST endpoints) from the {@link MapperPlan} cache.</li>
  * <li>Builds the user context (sub, username, email, …).</li>
  * <li>Detects whether the user is persistent (imported) or transient
  * (non-imported).</li>
@@ -51,6 +53,23 @@ public class RestClaimMapper extends AbstractOIDCProtocolMapper
 
     public static final String CFG_ENDPOINT_COUNT = "endpoint.count";
     public static final String CFG_CACHE_TTL = "cache.ttl.seconds";
+    public static final String CFG_CACHE_TTL_ADAPTIVE = "cache.ttl.adaptive";
+    public static final String CFG_CACHE_TTL_MAX = "cache.ttl.max.seconds";
+    public static final String CFG_CACHE_STALE = "cache.stale.seconds";
+
+    /** Default ceiling of an adaptive TTL: one day. */
+    public static final long DEFAULT_CACHE_TTL_MAX = 86_400;
+    public static final String CFG_CACHE_STORE = "cache.store";
+    public static final String CFG_CACHE_WRITE_BEHIND = "cache.write.behind";
+    public static final String CFG_CACHE_NEAR = "cache.near";
+    public static final String CFG_TRANSIENT_CACHE = "transient.cache";
+    public static final String CFG_TRANSIENT_SESSION_NOTE = "transient.session.note";
+
+    /**
+     * {@link KeycloakSession} attribute prefix under which resolved claims are
+     * memoized for the rest of the request.
+     */
+    private static final String REQUEST_CLAIMS_ATTR = "rest_claim_mapper.claims.";
 
     // ── Config property definitions ──────────────────────────────────────────
 
@@ -69,10 +88,71 @@ public class RestClaimMapper extends AbstractOIDCProtocolMapper
 
         props.add(cfgProp(CFG_CACHE_TTL,
                 "Cache TTL (seconds)",
-                "For persistent (imported) users: how long to cache REST API "
-                        + "attributes in UserModel before re-fetching. Default: 300.",
+                "How long to cache REST API attributes before re-fetching. Applies to persistent "
+                        + "(imported) users, and to transient users with the 'infinispan' cache "
+                        + "storage or a transient cache. Default: 300.",
                 ProviderConfigProperty.STRING_TYPE, "300"));
 
+        props.add(cfgProp(CFG_CACHE_TTL_ADAPTIVE,
+                "Adaptive Cache TTL",
+                "Adapt the TTL per user and endpoint: every refresh that returns unchanged claims "
+                        + "doubles it, up to the Max Adaptive TTL; the first change resets it to the "
+                        + "configured TTL.",
+                ProviderConfigProperty.BOOLEAN_TYPE, "false"));
+
+        props.add(cfgProp(CFG_CACHE_TTL_MAX,
+                "Max Adaptive TTL (seconds)",
+                "Ceiling of the adaptive cache TTL. Default: " + DEFAULT_CACHE_TTL_MAX + " (one day).",
+                ProviderConfigProperty.STRING_TYPE, String.valueOf(DEFAULT_CACHE_TTL_MAX)));
+
+        props.add(cfgProp(CFG_CACHE_STALE,
+                "Stale-While-Revalidate (seconds)",
+                "For cached users: how long past the Cache TTL the cached claims are still "
+                        + "returned immediately while one background request refreshes them. "
+                        + "Beyond this window the token request waits for the REST API again. "
+                        + "Default: 0 (disabled).",
+                ProviderConfigProperty.STRING_TYPE, "0"));
+
+        props.add(cfgProp(CFG_CACHE_STORE,
+                "Cache Storage",
+                "For persistent users: 'attributes' stores one UserModel attribute per claim. "
+                        + "'compact' stores all cached claims of this mapper in a single "
+                        + "(compressed when large) attribute, read and written once per token. "
+                        + "'jpa' stores the same data in the dedicated REST_CLAIM_CACHE table "
+                        + "instead of user attributes. 'infinispan' keeps it in a cluster-wide "
+                        + "Infinispan cache and also caches transient users.",
+                ProviderConfigProperty.LIST_TYPE, ClaimCacheStore.ATTRIBUTES,
+                List.of(ClaimCacheStore.ATTRIBUTES, ClaimCacheStore.COMPACT, ClaimCacheStore.JPA,
+                        ClaimCacheStore.INFINISPAN)));
+
+        props.add(cfgProp(CFG_CACHE_NEAR,
+                "In-Memory Near-Cache",
+                "For the 'attributes' and 'compact' cache storages: keep a bounded in-memory copy "
+                        + "of each user's cached claims on every node, so cache hits skip loading "
+                        + "user attributes. Invalidated by Keycloak's user cache events.",
+                ProviderConfigProperty.BOOLEAN_TYPE, "false"));
+
+        props.add(cfgProp(CFG_TRANSIENT_CACHE,
+                "Cache Transient Users In Memory",
+                "For transient (non-imported) users: keep each endpoint's claims in a bounded "
+                        + "in-memory cache on this node for the Cache TTL, instead of calling the "
+                        + "REST APIs on every token. Not shared between nodes.",
+                ProviderConfigProperty.BOOLEAN_TYPE, "false"));
+
+        props.add(cfgProp(CFG_TRANSIENT_SESSION_NOTE,
+                "Cache Transient Users In Session",
+                "For transient (non-imported) users: store the fetched claims as a note on the "
+                        + "user session, so refresh-token grants and userinfo calls of the same "
+                        + "session reuse them for the Cache TTL. Lives exactly as long as the session.",
+                ProviderConfigProperty.BOOLEAN_TYPE, "false"));
+
+        props.add(cfgProp(CFG_CACHE_WRITE_BEHIND,
+                "Write-Behind Cache Updates",
+                "For persistent users: return fetched claims immediately and write the cache "
+                        + "update in a background transaction, coalesced per user, instead of "
+                        + "inside the token request.",
+                ProviderConfigProperty.BOOLEAN_TYPE, "false"));
+
         // ── Per-endpoint slots (1..3) ─────────────────────────────────────────
         for (int n = 1; n <= ConfigParser.MAX_ENDPOINTS; n++) {
             final String prefix = "endpoint." + n;
@@ -103,6 +183,14 @@ public class RestClaimMapper extends AbstractOIDCProtocolMapper
                         ProviderConfigProperty.STRING_TYPE, ""));
             }
 
+            props.add(cfgProp(prefix + ".query.mode",
+                    "Endpoint " + n + ": Query Mode",
+                    "'script': Query Script is a JavaScript expression (simple concatenations "
+                            + "run without GraalVM). 'template': Query Script is an RFC 6570 URI "
+                            + "template over user context fields, e.g. {?username,email}.",
+                    ProviderConfigProperty.LIST_TYPE, CompiledQueryScript.MODE_SCRIPT,
+                    List.of(CompiledQueryScript.MODE_SCRIPT, CompiledQueryScript.MODE_TEMPLATE)));
+
             props.add(cfgProp(prefix + ".query.script",
                     "Endpoint " + n + ": Query Script",
                     "JavaScript expression (GraalVM) that builds the query string. "
@@ -110,10 +198,30 @@ public class RestClaimMapper extends AbstractOIDCProtocolMapper
                             + "Example: \"?user=\" + username + \"&mail=\" + email",
                     ProviderConfigProperty.TEXT_TYPE, "\"\""));
 
+            props.add(cfgProp(prefix + ".query.cache",
+                    "Endpoint " + n + ": Cache Query Script Results",
+                    "Memoize the result of a JavaScript query script per input values, so repeat "
+                            + "logins skip script evaluation. Scripts containing '"
+                            + CompiledQueryScript.NO_CACHE_PRAGMA + "' in a comment, or using "
+                            + "Date or Math.random, are never cached.",
+                    ProviderConfigProperty.BOOLEAN_TYPE, "false"));
+
+            props.add(cfgProp(prefix + ".response.max.kb",
+                    "Endpoint " + n + ": Max Response Size (KiB)",
+                    "Responses larger than this are aborted while downloading and yield no claims.",
+                    ProviderConfigProperty.STRING_TYPE, String.valueOf(ConfigParser.DEFAULT_MAX_RESPONSE_KB)));
+
+            props.add(cfgProp(prefix + ".cache.ttl.seconds",
+                    "Endpoint " + n + ": Cache TTL (seconds)",
+                    "Cache TTL of this endpoint's claims. Leave blank to use the mapper-wide Cache TTL.",
+                    ProviderConfigProperty.STRING_TYPE, ""));
+
             props.add(cfgProp(prefix + ".mapping",
                     "Endpoint " + n + ": Claim Mapping",
                     "Comma-separated 'apiField→claimName' pairs. Supports JSONPath: "
-                            + "$.user.dept→user_dept,role→user_role",
+                            + "$.user.dept→user_dept,role→user_role. Append '@seconds' to a claim "
+                            + "to override its cache TTL (role→user_role@60); the endpoint is "
+                            + "re-fetched when its shortest TTL expires.",
                     ProviderConfigProperty.STRING_TYPE, ""));
         }
 
@@ -149,6 +257,16 @@ public class RestClaimMapper extends AbstractOIDCProtocolMapper
         return CONFIG_PROPERTIES;
     }
 
+    @Override
+    public void postInit(@NotNull KeycloakSessionFactory factory) {
+        // The cluster provider is ready once the database is migrated
+        factory.register(event -> {
+            if (event instanceof PostMigrationEvent) {
+                KeycloakModelUtils.runJobInTransaction(factory, ClaimNearCache.getInstance()::listen);
+            }
+        });
+    }
+
     // ── Token transformation entry points ─────────────────────────────────────
 
     @Override
@@ -157,7 +275,7 @@ public class RestClaimMapper extends AbstractOIDCProtocolMapper
             @NotNull KeycloakSession session,
             @NotNull UserSessionModel userSession,
             @Nullable ClientSessionContext clientSessionCtx) {
-        addClaims(token, mappingModel, userSession);
+        addClaims(token, mappingModel, session, userSession);
         return token;
     }
 
@@ -168,7 +286,7 @@ public class RestClaimMapper extends AbstractOIDCProtocolMapper
             @NotNull UserSessionModel userSession,
             @Nullable ClientSessionContext clientSessionCtx) {
         // IDToken extends AccessToken so we can pass it directly
-        addClaims(token, mappingModel, userSession);
+        addClaims(token, mappingModel, session, userSession);
         return token;
     }
 
@@ -178,7 +296,7 @@ public class RestClaimMapper extends AbstractOIDCProtocolMapper
             @NotNull KeycloakSession session,
             @NotNull UserSessionModel userSession,
             @Nullable ClientSessionContext clientSessionCtx) {
-        addClaims(token, mappingModel, userSession);
+        addClaims(token, mappingModel, session, userSession);
         return token;
     }
 
@@ -191,26 +309,28 @@ public class RestClaimMapper extends AbstractOIDCProtocolMapper
      */
     private void addClaims(@NotNull JsonWebToken token,
             @NotNull ProtocolMapperModel mappingModel,
+            @NotNull KeycloakSession session,
             @NotNull UserSessionModel userSession) {
         try {
-            Map<String, String> config = mappingModel.getConfig();
-            List<EndpointConfig> endpoints = ConfigParser.parse(config);
+            MapperPlan plan = MapperPlan.of(mappingModel);
 
-            if (endpoints.isEmpty()) {
+            if (plan.getEndpoints().isEmpty()) {
                 LOG.debugf("No endpoints configured for mapper '%s'", mappingModel.getName());
                 return;
             }
 
             UserModel user = userSession.getUser();
-            Map<String, String> userCtx = buildUserContext(user, userSession);
-
-            long ttl = parseLongOrDefault(config.get(CFG_CACHE_TTL), 300L);
 
-            Map<String, Object> claims;
-            if (isPersistentUser(user)) {
-                claims = PersistentUserHandler.fetchAndCache(user, mappingModel.getId(), endpoints, userCtx, ttl);
+            // Access token, ID token and userinfo issued within the same request
+            // share one resolution instead of fetching once per token type
+            String memoKey = REQUEST_CLAIMS_ATTR + plan.getMapperId() + "." + user.getId();
+            @SuppressWarnings("unchecked")
+            Map<String, Object> claims = session.getAttribute(memoKey, Map.class);
+            if (claims == null) {
+                claims = resolveClaims(session, plan, user, userSession);
+                session.setAttribute(memoKey, claims);
             } else {
-                claims = TransientUserHandler.fetchLive(endpoints, userCtx);
+                LOG.debugf("Reusing claims resolved earlier in this request for user %s", user.getId());
             }
 
             setClaims(token, claims);
@@ -222,6 +342,23 @@ public class RestClaimMapper extends AbstractOIDCProtocolMapper
         }
     }
 
+    /**
+     * Fetches (or reads from cache) the REST claims for the given user.
+     */
+    private @NotNull Map<String, Object> resolveClaims(@NotNull KeycloakSession session, @NotNull MapperPlan plan,
+            @NotNull UserModel user, @NotNull UserSessionModel userSession) {
+        Map<String, String> userCtx = buildUserContext(user, userSession);
+
+        Map<String, Object> claims;
+        if (isPersistentUser(user) || !plan.getCacheStore().requiresPersistentUser()) {
+            // Transient users can be cached as well when the store is not the UserModel
+            claims = PersistentUserHandler.fetchAndCache(session, userSession.getRealm(), user, plan, userCtx);
+        } else {
+            claims = TransientUserHandler.fetchLive(plan, userSession, user.getId(), userCtx);
+        }
+        return Collections.unmodifiableMap(claims);
+    }
+
     /**
      * Writes claim values into the token's other claims map.
      */
@@ -279,16 +416,6 @@ public class RestClaimMapper extends AbstractOIDCProtocolMapper
         return s != null ? s : "";
     }
 
-    private static long parseLongOrDefault(@Nullable String value, long defaultValue) {
-        if (value == null || value.isBlank())
-            return defaultValue;
-        try {
-            return Long.parseLong(value.trim());
-        } catch (NumberFormatException e) {
-            return defaultValue;
-        }
-    }
-
     private static @NotNull ProviderConfigProperty cfgProp(@NotNull String name, @NotNull String label,
             @Nullable String helpText, @NotNull String type,
             @Nullable String defaultValue) {
@@ -0,0 +1,297 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.ResourceLimits;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of GraalVM JS {@link Context}s sharing a single {@link Engine}.
+ * <p>
+ * Sharing the engine keeps parsed ASTs and JIT profiles alive across
+ * evaluations; pooling the contexts avoids paying context creation on every
+ * cache miss. A context is only ever used by one thread at a time: callers
+ * {@link #acquire()} it, evaluate, and {@link #release(Lease, boolean)} it.
+ * <p>
+ * Isolation between evaluations, which may belong to different mappers and
+ * realms:
+ * <ul>
+ * <li>scripts run in strict mode through a per-context helper function that
+ * performs a <em>direct</em> {@code eval}, so {@code var}, {@code let} and
+ * function declarations stay local to that call and never become globals
+ * visible to the next script;</li>
+ * <li>before first use, the global object and every object reachable from it
+ * (built-in constructors, their prototypes and the iterator and generator
+ * intrinsics) are frozen, so implicit globals ({@code x = 1}) and changes to
+ * built-ins ({@code String.prototype.foo = …}) fail with a {@code TypeError}
+ * or {@code ReferenceError} instead of persisting.</li>
+ * </ul>
+ * Contexts are additionally retired after {@value #MAX_CONTEXT_USES}
+ * evaluations, and discarded whenever an evaluation was cancelled or left the
+ * context in an unusable state.
+ * <p>
+ * When all {@value #MAX_POOLED_CONTEXTS} contexts are in use, an unpooled
+ * overflow context is created and closed after use instead of blocking.
+ * <p>
+ * Every evaluation is bounded: the context's statement counter is reset on
+ * checkout and capped at {@value #STATEMENT_LIMIT} statements, and a watchdog
+ * cancels (closes) the context if it is still checked out after
+ * {@link #TIME_BUDGET}. Either way the running script is stopped, the worker
+ * thread is freed, and the context is discarded instead of pooled.
+ */
+final class ScriptContextPool {
+
+    private static final Logger LOG = Logger.getLogger(ScriptContextPool.class);
+
+    /** Maximum number of pooled (reusable) contexts alive at the same time. */
+    static final int MAX_POOLED_CONTEXTS = 32;
+
+    /** Number of evaluations after which a context is closed and replaced. */
+    static final int MAX_CONTEXT_USES = 1_000;
+
+    /** Maximum number of JS statements a single evaluation may execute. */
+    static final long STATEMENT_LIMIT = 100_000;
+
+    /** Wall-clock budget of a single evaluation. */
+    static final Duration TIME_BUDGET = Duration.ofSeconds(2);
+
+    /**
+     * Installed once per context. Direct eval inside a strict function body
+     * scopes all declarations of the evaluated code to that invocation.
+     */
+    private static final String EVAL_HELPER =
+            "(function(__rcmSource) { 'use strict'; return eval(__rcmSource); })";
+
+    /**
+     * Run once per context before any script: freezes the global object and
+     * everything reachable from it, including intrinsics that no global
+     * property refers to.
+     */
+    private static final Source HARDEN = Source.newBuilder("js", """
+            (function() {
+              'use strict';
+              const seen = new Set();
+              const queue = [globalThis,
+                  Object.getPrototypeOf([][Symbol.iterator]()),
+                  Object.getPrototypeOf(''[Symbol.iterator]()),
+                  Object.getPrototypeOf(new Map()[Symbol.iterator]()),
+                  Object.getPrototypeOf(new Set()[Symbol.iterator]()),
+                  Object.getPrototypeOf(/x/g[Symbol.matchAll]('')),
+                  Object.getPrototypeOf(function* () {}),
+                  Object.getPrototypeOf(async function () {}),
+                  Object.getPrototypeOf(async function* () {})];
+              while (queue.length > 0) {
+                const obj = queue.pop();
+                if (obj === null || (typeof obj !== 'object' && typeof obj !== 'function') || seen.has(obj)) {
+                  continue;
+                }
+                seen.add(obj);
+                Object.freeze(obj);
+                queue.push(Object.getPrototypeOf(obj));
+                for (const key of Reflect.ownKeys(obj)) {
+                  const desc = Reflect.getOwnPropertyDescriptor(obj, key);
+                  queue.push(desc.value, desc.get, desc.set);
+                }
+              }
+            })()
+            """, "harden.js").cached(true).buildLiteral();
+
+    private static final ScriptContextPool INSTANCE = new ScriptContextPool();
+
+    private final Engine engine;
+    private final ResourceLimits limits;
+    private final BlockingQueue<Lease> idle = new ArrayBlockingQueue<>(MAX_POOLED_CONTEXTS);
+
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "rest-claim-mapper-script-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // ── Metrics ───────────────────────────────────────────────────────────────
+    private final AtomicInteger live = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong overflow = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong statementLimitHits = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * A checked-out context. Not thread-safe; owned by exactly one caller
+     * between {@link #acquire()} and {@link #release(Lease, boolean)}.
+     */
+    static final class Lease {
+        final Context context;
+        final Value evalHelper;
+        final boolean pooled;
+        int uses;
+
+        /** Cancels the context when the time budget is exceeded; armed per checkout. */
+        private ScheduledFuture<?> watchdogTask;
+        private volatile boolean timedOut;
+
+        /** Compiled query-script functions already evaluated in this context. */
+        private final Map<Source, Value> functions = new HashMap<>();
+
+        private Lease(@NotNull Context context, boolean pooled) {
+            this.context = context;
+            try {
+                context.eval(HARDEN);
+                this.evalHelper = context.eval("js", EVAL_HELPER);
+            } catch (RuntimeException e) {
+                context.close(true);
+                throw e;
+            }
+            this.pooled = pooled;
+        }
+
+        /**
+         * Returns the function value of the given source in this context,
+         * evaluating it on first use. The shared engine caches the parse, so
+         * the first use in a new context is cheap as well.
+         */
+        @NotNull
+        Value function(@NotNull Source source) {
+            Value fn = functions.get(source);
+            if (fn == null) {
+                fn = context.eval(source);
+                functions.put(source, fn);
+            }
+            return fn;
+        }
+    }
+
+    private ScriptContextPool() {
+        this.engine = Engine.newBuilder("js")
+                .option("engine.WarnInterpreterOnly", "false")
+                .build();
+        // Statement limits of contexts sharing an engine must be identical
+        this.limits = ResourceLimits.newBuilder()
+                .statementLimit(STATEMENT_LIMIT, null)
+                .onLimit(event -> statementLimitHits.incrementAndGet())
+                .build();
+    }
+
+    static @NotNull ScriptContextPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks out a context: an idle pooled one if available, a new pooled one
+     * while the pool has capacity, or an unpooled overflow context otherwise.
+     */
+    @NotNull
+    Lease acquire() {
+        acquisitions.incrementAndGet();
+        inUse.incrementAndGet();
+        try {
+            Lease lease = idle.poll();
+            if (lease != null) {
+                reused.incrementAndGet();
+                lease.context.resetLimits();
+                return arm(lease);
+            }
+            boolean pooled = live.incrementAndGet() <= MAX_POOLED_CONTEXTS;
+            if (!pooled) {
+                live.decrementAndGet();
+                overflow.incrementAndGet();
+            }
+            try {
+                created.incrementAndGet();
+                return arm(new Lease(newContext(), pooled));
+            } catch (RuntimeException e) {
+                if (pooled) {
+                    live.decrementAndGet();
+                }
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            inUse.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a context to the pool.
+     *
+     * @param discard {@code true} if the context must not be reused (cancelled,
+     *                exited, or otherwise broken)
+     */
+    void release(@NotNull Lease lease, boolean discard) {
+        inUse.decrementAndGet();
+        lease.uses++;
+        if (!lease.watchdogTask.cancel(false) || lease.timedOut) {
+            discard = true; // the watchdog fired and closed the context
+        }
+        if (!discard && lease.pooled && lease.uses < MAX_CONTEXT_USES && idle.offer(lease)) {
+            return;
+        }
+        if (discard) {
+            discarded.incrementAndGet();
+        }
+        if (lease.pooled) {
+            live.decrementAndGet();
+        }
+        close(lease);
+    }
+
+    @NotNull
+    QueryScriptEvaluator.PoolStats stats() {
+        return new QueryScriptEvaluator.PoolStats(MAX_POOLED_CONTEXTS, live.get(), idle.size(), inUse.get(),
+                acquisitions.get(), reused.get(), created.get(), overflow.get(), discarded.get());
+    }
+
+    /** Number of evaluations stopped by the statement limit. */
+    long statementLimitHits() {
+        return statementLimitHits.get();
+    }
+
+    /** Number of evaluations cancelled by the watchdog. */
+    long timeouts() {
+        return timeouts.get();
+    }
+
+    private @NotNull Lease arm(@NotNull Lease lease) {
+        lease.watchdogTask = watchdog.schedule(() -> {
+            lease.timedOut = true;
+            timeouts.incrementAndGet();
+            LOG.warnf("Query script exceeded its %d ms budget — cancelling", TIME_BUDGET.toMillis());
+            close(lease);
+        }, TIME_BUDGET.toMillis(), TimeUnit.MILLISECONDS);
+        return lease;
+    }
+
+    private @NotNull Context newContext() {
+        return Context.newBuilder("js")
+                .engine(engine)
+                .allowAllAccess(false)
+                .resourceLimits(limits)
+                .build();
+    }
+
+    private static void close(@NotNull Lease lease) {
+        try {
+            lease.context.close(true);
+        } catch (Exception e) {
+            LOG.debugf("Failed to close script context: %s", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles simple {@code query.script} expressions into a pure-Java
+ * {@link QueryTemplate}, so the common cases never touch the JavaScript engine.
+ * <p>
+ * Supported is the subset of JavaScript that query scripts typically use:
+ * <ul>
+ * <li>string literals ({@code "…"}, {@code '…'}) and template literals
+ * ({@code `…${expr}…`}),</li>
+ * <li>references to declared {@code query.param.K} variables,</li>
+ * <li>{@code encodeURIComponent(expr)} and {@code encodeURI(expr)},</li>
+ * <li>{@code +} concatenation, parentheses, comments and a trailing
+ * {@code ;}.</li>
+ * </ul>
+ * Since every variable is a string, such an expression is a pure string
+ * concatenation and produces exactly what GraalVM would. Anything else
+ * (numbers, other functions, undeclared identifiers, statements, …) makes
+ * {@link #compile(String, List)} return {@code null} and the script keeps
+ * running on GraalVM.
+ */
+final class ScriptTemplateCompiler {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /** Characters {@code encodeURIComponent} leaves unescaped besides ASCII letters and digits. */
+    private static final String URI_COMPONENT_MARKS = "-_.!~*'()";
+
+    /** Characters {@code encodeURI} additionally leaves unescaped. */
+    private static final String URI_RESERVED = ";,/?:@&=+$#";
+
+    private static final Set<String> BUILTINS = Set.of("encodeURIComponent", "encodeURI");
+
+    private final String src;
+    private final List<String> params;
+    private int pos;
+
+    /** Compiled expression node. */
+    private sealed interface Node permits Literal, Variable, Concat, Encode {
+        void appendTo(@NotNull StringBuilder sb, @NotNull Map<String, String> userContext);
+    }
+
+    private record Literal(String value) implements Node {
+        @Override
+        public void appendTo(@NotNull StringBuilder sb, @NotNull Map<String, String> userContext) {
+            sb.append(value);
+        }
+    }
+
+    private record Variable(String name) implements Node {
+        @Override
+        public void appendTo(@NotNull StringBuilder sb, @NotNull Map<String, String> userContext) {
+            // Same as JS string concatenation: a null value renders as "null"
+            sb.append(userContext.getOrDefault(name, ""));
+        }
+    }
+
+    private record Concat(List<Node> nodes) implements Node {
+        @Override
+        public void appendTo(@NotNull StringBuilder sb, @NotNull Map<String, String> userContext) {
+            for (Node node : nodes) {
+                node.appendTo(sb, userContext);
+            }
+        }
+    }
+
+    private record Encode(Node argument, boolean component) implements Node {
+        @Override
+        public void appendTo(@NotNull StringBuilder sb, @NotNull Map<String, String> userContext) {
+            StringBuilder value = new StringBuilder();
+            argument.appendTo(value, userContext);
+            encode(value, component ? URI_COMPONENT_MARKS : URI_COMPONENT_MARKS + URI_RESERVED, sb);
+        }
+    }
+
+    /** Signals that the script uses JavaScript outside the supported subset. */
+    private static final class Unsupported extends Exception {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private ScriptTemplateCompiler(@NotNull String src, @NotNull List<String> params) {
+        this.src = src;
+        this.params = params;
+    }
+
+    /**
+     * Tries to compile the given script into a native template.
+     *
+     * @param script the JS expression, e.g. {@code "?user=" + username}
+     * @param params declared {@code query.param.K} names
+     * @return the template, or {@code null} if the script needs GraalVM
+     */
+    static @Nullable QueryTemplate compile(@NotNull String script, @NotNull List<String> params) {
+        if (params.stream().anyMatch(BUILTINS::contains)) {
+            return null; // a parameter shadows a builtin
+        }
+        ScriptTemplateCompiler compiler = new ScriptTemplateCompiler(script, params);
+        try {
+            Node root = compiler.parseExpression();
+            compiler.skipWhitespace();
+            if (compiler.peek() == ';') {
+                compiler.pos++;
+                compiler.skipWhitespace();
+            }
+            if (compiler.pos != script.length()) {
+                return null;
+            }
+            return new CompiledTemplate(script, root);
+        } catch (Unsupported e) {
+            return null;
+        }
+    }
+
+    private record CompiledTemplate(String script, Node root) implements QueryTemplate {
+        @Override
+        public @NotNull String expand(@NotNull Map<String, String> userContext) {
+            StringBuilder sb = new StringBuilder(script.length() + 32);
+            root.appendTo(sb, userContext);
+            return sb.toString();
+        }
+    }
+
+    // ── Parser ────────────────────────────────────────────────────────────────
+
+    /** expression := term ('+' term)* */
+    private @NotNull Node parseExpression() throws Unsupported {
+        List<Node> nodes = new ArrayList<>();
+        nodes.add(parseTerm());
+        skipWhitespace();
+        while (peek() == '+') {
+            pos++;
+            if (peek() == '+' || peek() == '=') {
+                throw new Unsupported(); // ++ or +=
+            }
+            nodes.add(parseTerm());
+            skipWhitespace();
+        }
+        return nodes.size() == 1 ? nodes.get(0) : new Concat(List.copyOf(nodes));
+    }
+
+    /** term := string | template | identifier | builtin '(' expression ')' | '(' expression ')' */
+    private @NotNull Node parseTerm() throws Unsupported {
+        skipWhitespace();
+        char c = peek();
+        if (c == '"' || c == '\'') {
+            return new Literal(parseStringLiteral(c));
+        }
+        if (c == '`') {
+            return parseTemplateLiteral();
+        }
+        if (c == '(') {
+            pos++;
+            Node inner = parseExpression();
+            expect(')');
+            return inner;
+        }
+        String identifier = parseIdentifier();
+        if (BUILTINS.contains(identifier)) {
+            skipWhitespace();
+            expect('(');
+            Node argument = parseExpression();
+            expect(')');
+            return new Encode(argument, identifier.equals("encodeURIComponent"));
+        }
+        if (!params.contains(identifier)) {
+            throw new Unsupported();
+        }
+        return new Variable(identifier);
+    }
+
+    private @NotNull String parseIdentifier() throws Unsupported {
+        int start = pos;
+        while (pos < src.length()) {
+            char c = src.charAt(pos);
+            boolean valid = c == '_' || c == '$' || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')
+                    || (pos > start && c >= '0' && c <= '9');
+            if (!valid) {
+                break;
+            }
+            pos++;
+        }
+        if (pos == start) {
+            throw new Unsupported();
+        }
+        return src.substring(start, pos);
+    }
+
+    private @NotNull String parseStringLiteral(char quote) throws Unsupported {
+        pos++; // opening quote
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            if (pos >= src.length()) {
+                throw new Unsupported();
+            }
+            char c = src.charAt(pos++);
+            if (c == quote) {
+                return sb.toString();
+            }
+            if (c == '\n' || c == '\r') {
+                throw new Unsupported();
+            }
+            if (c == '\\') {
+                parseEscape(sb);
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private @NotNull Node parseTemplateLiteral() throws Unsupported {
+        pos++; // opening backtick
+        List<Node> nodes = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            if (pos >= src.length()) {
+                throw new Unsupported();
+            }
+            char c = src.charAt(pos++);
+            if (c == '`') {
+                break;
+            }
+            if (c == '\\') {
+                parseEscape(sb);
+            } else if (c == '$' && peek() == '{') {
+                pos++;
+                if (!sb.isEmpty()) {
+                    nodes.add(new Literal(sb.toString()));
+                    sb.setLength(0);
+                }
+                nodes.add(parseExpression());
+                expect('}');
+            } else if (c == '\r') {
+                // Template literals normalise CR and CRLF to LF
+                if (peek() == '\n') {
+                    pos++;
+                }
+                sb.append('\n');
+            } else {
+                sb.append(c);
+            }
+        }
+        if (!sb.isEmpty() || nodes.isEmpty()) {
+            nodes.add(new Literal(sb.toString()));
+        }
+        return nodes.size() == 1 ? nodes.get(0) : new Concat(List.copyOf(nodes));
+    }
+
+    /** Parses the escape sequence after a backslash and appends its value. */
+    private void parseEscape(@NotNull StringBuilder sb) throws Unsupported {
+        if (pos >= src.length()) {
+            throw new Unsupported();
+        }
+        char c = src.charAt(pos++);
+        switch (c) {
+            case 'n' -> sb.append('\n');
+            case 't' -> sb.append('\t');
+            case 'r' -> sb.append('\r');
+            case 'b' -> sb.append('\b');
+            case 'f' -> sb.append('\f');
+            case 'v' -> sb.append('\u000B');
+            case '0' -> {
+                if (Character.isDigit(peek())) {
+                    throw new Unsupported(); // legacy octal
+                }
+                sb.append('\0');
+            }
+            case 'x' -> sb.append((char) parseHex(2));
+            case 'u' -> {
+                if (peek() == '{') {
+                    pos++;
+                    int end = src.indexOf('}', pos);
+                    if (end < 0 || end == pos || end - pos > 6) {
+                        throw new Unsupported();
+                    }
+                    int codePoint = parseHex(end - pos);
+                    if (codePoint > Character.MAX_CODE_POINT) {
+                        throw new Unsupported();
+                    }
+                    pos++; // closing brace
+                    sb.appendCodePoint(codePoint);
+                } else {
+                    sb.append((char) parseHex(4));
+                }
+            }
+            case '\r' -> {
+                // line continuation
+                if (peek() == '\n') {
+                    pos++;
+                }
+            }
+            case '\n', '\u2028', '\u2029' -> {
+                // line continuation
+            }
+            default -> {
+                if (c >= '1' && c <= '9') {
+                    throw new Unsupported(); // legacy octal
+                }
+                sb.append(c); // identity escape, e.g. \" \' \\ \` \$
+            }
+        }
+    }
+
+    private int parseHex(int digits) throws Unsupported {
+        if (pos + digits > src.length()) {
+            throw new Unsupported();
+        }
+        int value = 0;
+        for (int i = 0; i < digits; i++) {
+            int d = Character.digit(src.charAt(pos++), 16);
+            if (d < 0) {
+                throw new Unsupported();
+            }
+            value = value * 16 + d;
+        }
+        return value;
+    }
+
+    private void expect(char c) throws Unsupported {
+        skipWhitespace();
+        if (peek() != c) {
+            throw new Unsupported();
+        }
+        pos++;
+    }
+
+    private char peek() {
+        return pos < src.length() ? src.charAt(pos) : '\0';
+    }
+
+    /** Skips whitespace, line terminators and comments. */
+    private void skipWhitespace() throws Unsupported {
+        while (pos < src.length()) {
+            char c = src.charAt(pos);
+            if (Character.isWhitespace(c) || c == '\u00A0' || c == '\uFEFF') {
+                pos++;
+            } else if (src.startsWith("//", pos)) {
+                while (pos < src.length() && src.charAt(pos) != '\n' && src.charAt(pos) != '\r') {
+                    pos++;
+                }
+            } else if (src.startsWith("/*", pos)) {
+                int end = src.indexOf("*/", pos + 2);
+                if (end < 0) {
+                    throw new Unsupported();
+                }
+                pos = end + 2;
+            } else {
+                return;
+            }
+        }
+    }
+
+    // ── encodeURIComponent / encodeURI ────────────────────────────────────────
+
+    /**
+     * Percent-encodes as ECMAScript {@code encodeURIComponent}/{@code encodeURI}
+     * do: UTF-8, uppercase hex, ASCII letters, digits and {@code unescaped}
+     * kept as-is.
+     *
+     * @throws IllegalArgumentException on an unpaired surrogate (a
+     *                                  {@code URIError} in JavaScript)
+     */
+    private static void encode(@NotNull CharSequence value, @NotNull String unescaped, @NotNull StringBuilder sb) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || unescaped.indexOf(c) >= 0) {
+                sb.append(c);
+                continue;
+            }
+            int end = i + 1;
+            if (Character.isHighSurrogate(c) && end < value.length() && Character.isLowSurrogate(value.charAt(end))) {
+                end++;
+            } else if (Character.isSurrogate(c)) {
+                throw new IllegalArgumentException("URIError: URI malformed");
+            }
+            for (byte b : value.subSequence(i, end).toString().getBytes(StandardCharsets.UTF_8)) {
+                sb.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+            }
+            i = end - 1;
+        }
+    }
+}
@@ -0,0 +1,593 @@
+package com.github.jowe112.keycloak.mapper;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.BigIntegerNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.LongNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts all mapping rules of an endpoint in a single pass over the JSON
+ * token stream, without building the document tree.
+ * <p>
+ * The rules' paths are merged into one prefix trie. While tokens stream in,
+ * the extractor tracks which trie nodes every value sits at; subtrees no rule
+ * can reach are skipped token by token, and only the values that are actually
+ * selected are materialized. Memory per lookup is therefore bounded by the
+ * selected values, not by the response size.
+ * <p>
+ * Supported rules: simple field names, and JSONPaths built from
+ * {@code .name}, {@code ['name']}, {@code [N]}, {@code .*} / {@code [*]} and
+ * filters of the form {@code [?(@.field)]} or {@code [?(@.field OP literal)]}
+ * (OP one of {@code == != < <= > >=}, literal a string, number,
+ * {@code true}, {@code false} or {@code null}), joined with {@code &&}. An
+ * endpoint with any other rule (deep scan, slices, functions, …) is mapped
+ * from the tree by {@link JsonPathMapper} instead; {@link #compile(List)}
+ * returns {@code null} for it.
+ * <p>
+ * Results are identical to {@link JsonPathMapper#map(JsonNode, List)},
+ * including Jayway's rules for when a path that finds nothing yields an empty
+ * list and when it yields no claim.
+ */
+final class StreamingExtractor {
+
+    private static final Pattern DOT_NAME = Pattern.compile("\\.([A-Za-z0-9_-]+)");
+    private static final Pattern BRACKET_NAME = Pattern.compile("\\[\\s*(?:'([^'\\\\]*)'|\"([^\"\\\\]*)\")\\s*]");
+    private static final Pattern INDEX = Pattern.compile("\\[\\s*(\\d+)\\s*]");
+    private static final Pattern WILDCARD = Pattern.compile("\\.\\*|\\[\\s*\\*\\s*]");
+    private static final Pattern FILTER = Pattern.compile("\\[\\s*\\?\\s*\\((.*?)\\)\\s*]");
+    private static final Pattern CONDITION = Pattern.compile(
+            "\\s*@\\.([A-Za-z0-9_-]+)\\s*(?:(==|!=|<=|>=|<|>)\\s*('[^'\\\\]*'|\"[^\"\\\\]*\"|-?\\d+(?:\\.\\d+)?(?:[eE][+-]?\\d+)?|true|false|null))?\\s*");
+
+    private static final JsonNode CONTAINER_MARKER = JsonNodeFactory.instance.objectNode();
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final List<RulePlan> rules;
+    private final Node root = new Node();
+
+    // ── Compiled form ─────────────────────────────────────────────────────────
+
+    private enum Kind {
+        /** Plain field name: {@link JsonPathMapper#simpleFieldValue} semantics. */
+        SIMPLE,
+        /** JSONPath without wildcards or filters: a single value. */
+        DEFINITE,
+        /** JSONPath with wildcards or filters: a list of matches. */
+        INDEFINITE
+    }
+
+    private record RulePlan(@NotNull MappingRule rule, @NotNull Kind kind) {
+    }
+
+    /** One step of a path. Exactly one of the fields is set. */
+    private record Segment(@Nullable String name, int index, boolean wildcard, @Nullable Filter filter) {
+
+        boolean isDefinite() {
+            return !wildcard && filter == null;
+        }
+    }
+
+    /** A trie node: the set of rule positions reachable by the same path prefix. */
+    private static final class Node {
+        final Map<String, Node> fields = new HashMap<>();
+        final Map<Integer, Node> indices = new HashMap<>();
+        Node wildcard;
+        final Map<Filter, Node> filters = new LinkedHashMap<>();
+
+        /** Rules whose path ends here. */
+        final List<Integer> terminals = new ArrayList<>();
+
+        /** Indefinite rules whose definite prefix ends here. */
+        final List<Integer> prefixEnds = new ArrayList<>();
+
+        /** Indefinite rules whose definite prefix ends with an index into the array here. */
+        final List<Integer> prefixArrays = new ArrayList<>();
+
+        Node child(@NotNull Segment segment) {
+            if (segment.name() != null) {
+                return fields.computeIfAbsent(segment.name(), k -> new Node());
+            } else if (segment.wildcard()) {
+                return wildcard != null ? wildcard : (wildcard = new Node());
+            } else if (segment.filter() != null) {
+                return filters.computeIfAbsent(segment.filter(), k -> new Node());
+            }
+            return indices.computeIfAbsent(segment.index(), k -> new Node());
+        }
+    }
+
+    private record Condition(@NotNull String field, @Nullable String op, @Nullable JsonNode literal) {
+
+        /** Jayway semantics: a missing field is unequal to everything and not comparable. */
+        boolean test(@Nullable JsonNode value) {
+            if (op == null) {
+                return value != null;
+            }
+            if (op.equals("!=")) {
+                return !equal(value);
+            }
+            if (op.equals("==")) {
+                return equal(value);
+            }
+            if (value == null || literal == null) {
+                return false;
+            }
+            int cmp;
+            if (value.isNumber() && literal.isNumber()) {
+                cmp = value.decimalValue().compareTo(literal.decimalValue());
+            } else if (value.isTextual() && literal.isTextual()) {
+                cmp = value.textValue().compareTo(literal.textValue());
+            } else {
+                return false;
+            }
+            return switch (op) {
+                case "<" -> cmp < 0;
+                case "<=" -> cmp <= 0;
+                case ">" -> cmp > 0;
+                default -> cmp >= 0;
+            };
+        }
+
+        private boolean equal(@Nullable JsonNode value) {
+            if (value == null || literal == null) {
+                return false;
+            }
+            if (value.isNumber() && literal.isNumber()) {
+                return value.decimalValue().compareTo(literal.decimalValue()) == 0;
+            }
+            return value.getNodeType() == literal.getNodeType() && value.equals(literal);
+        }
+    }
+
+    /** A filter predicate; equal filter texts share one trie node. */
+    private record Filter(@NotNull String text, @NotNull List<Condition> conditions) {
+
+        boolean references(@NotNull String field) {
+            for (Condition c : conditions) {
+                if (c.field().equals(field)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean test(@NotNull Map<String, JsonNode> observed) {
+            for (Condition c : conditions) {
+                if (!c.test(observed.get(c.field()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Filter f && f.text.equals(text);
+        }
+
+        @Override
+        public int hashCode() {
+            return text.hashCode();
+        }
+    }
+
+    private StreamingExtractor(@NotNull List<RulePlan> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Compiles the rules of one endpoint.
+     *
+     * @return the extractor, or {@code null} if there are no rules or any rule
+     *         uses JSONPath features this engine does not support
+     */
+    static @Nullable StreamingExtractor compile(@NotNull List<MappingRule> mappingRules) {
+        if (mappingRules.isEmpty()) {
+            return null;
+        }
+        List<RulePlan> plans = new ArrayList<>();
+        List<List<Segment>> paths = new ArrayList<>();
+        for (MappingRule rule : mappingRules) {
+            List<Segment> path = rule.isJsonPath()
+                    ? parsePath(rule.getApiField())
+                    : List.of(new Segment(rule.getApiField(), -1, false, null));
+            if (path == null) {
+                return null;
+            }
+            boolean definite = path.stream().allMatch(Segment::isDefinite);
+            plans.add(new RulePlan(rule, !rule.isJsonPath() ? Kind.SIMPLE
+                    : definite ? Kind.DEFINITE : Kind.INDEFINITE));
+            paths.add(path);
+        }
+
+        StreamingExtractor extractor = new StreamingExtractor(List.copyOf(plans));
+        for (int i = 0; i < paths.size(); i++) {
+            extractor.insert(i, paths.get(i), plans.get(i).kind());
+        }
+        return extractor;
+    }
+
+    /** Starts extracting from a new response. */
+    @NotNull
+    Extraction start() {
+        return new Extraction();
+    }
+
+    private void insert(int rule, @NotNull List<Segment> path, @NotNull Kind kind) {
+        Node node = root;
+        Node parent = null;
+        boolean prefixDone = false;
+        for (int i = 0; i < path.size(); i++) {
+            Segment segment = path.get(i);
+            if (kind == Kind.INDEFINITE && !prefixDone && !segment.isDefinite()) {
+                prefixDone = true;
+                Segment last = i > 0 ? path.get(i - 1) : null;
+                if (last != null && last.name() == null) {
+                    // An out-of-range index still reaches the indefinite part (with null)
+                    parent.prefixArrays.add(rule);
+                }
+                node.prefixEnds.add(rule);
+            }
+            parent = node;
+            node = node.child(segment);
+        }
+        node.terminals.add(rule);
+    }
+
+    // ── Path parsing ──────────────────────────────────────────────────────────
+
+    private static @Nullable List<Segment> parsePath(@NotNull String path) {
+        if (!path.startsWith("$") || path.length() < 2) {
+            return null;
+        }
+        List<Segment> segments = new ArrayList<>();
+        int pos = 1;
+        while (pos < path.length()) {
+            Matcher m;
+            if (path.startsWith("..", pos)) {
+                return null; // deep scan
+            } else if ((m = match(WILDCARD, path, pos)) != null) {
+                segments.add(new Segment(null, -1, true, null));
+            } else if ((m = match(DOT_NAME, path, pos)) != null) {
+                segments.add(new Segment(m.group(1), -1, false, null));
+            } else if ((m = match(BRACKET_NAME, path, pos)) != null) {
+                segments.add(new Segment(m.group(1) != null ? m.group(1) : m.group(2), -1, false, null));
+            } else if ((m = match(INDEX, path, pos)) != null) {
+                try {
+                    segments.add(new Segment(null, Integer.parseInt(m.group(1)), false, null));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else if ((m = match(FILTER, path, pos)) != null) {
+                Filter filter = parseFilter(m.group(1));
+                if (filter == null) {
+                    return null;
+                }
+                segments.add(new Segment(null, -1, false, filter));
+            } else {
+                return null;
+            }
+            pos = m.end();
+        }
+        return segments;
+    }
+
+    private static @Nullable Matcher match(@NotNull Pattern pattern, @NotNull String path, int pos) {
+        Matcher m = pattern.matcher(path).region(pos, path.length());
+        return m.lookingAt() ? m : null;
+    }
+
+    private static @Nullable Filter parseFilter(@NotNull String expression) {
+        List<Condition> conditions = new ArrayList<>();
+        for (String part : expression.split("&&", -1)) {
+            Matcher m = CONDITION.matcher(part);
+            if (!m.matches()) {
+                return null;
+            }
+            conditions.add(new Condition(m.group(1), m.group(2), m.group(3) != null ? literal(m.group(3)) : null));
+        }
+        return new Filter(expression.trim(), List.copyOf(conditions));
+    }
+
+    private static @NotNull JsonNode literal(@NotNull String text) {
+        return switch (text) {
+            case "true" -> BooleanNode.TRUE;
+            case "false" -> BooleanNode.FALSE;
+            case "null" -> NullNode.getInstance();
+            default -> text.startsWith("'") || text.startsWith("\"")
+                    ? TextNode.valueOf(text.substring(1, text.length() - 1))
+                    : JsonNodeFactory.instance.numberNode(new BigDecimal(text));
+        };
+    }
+
+    // ── Per-response state ────────────────────────────────────────────────────
+
+    /** A value's position in the trie, and the filter frame its matches report to. */
+    private record State(@NotNull Node node, @Nullable Frame frame) {
+    }
+
+    private record Match(int rule, @NotNull JsonNode value) {
+    }
+
+    /**
+     * A pending filter decision for one candidate value. Matches below the
+     * candidate are held back until the candidate is complete, because the
+     * fields the predicate looks at may come after them.
+     */
+    private static final class Frame {
+        final Filter filter;
+        final Frame parent;
+        final Map<String, JsonNode> observed = new HashMap<>(2);
+        final List<Match> pending = new ArrayList<>();
+
+        Frame(@NotNull Filter filter, @Nullable Frame parent) {
+            this.filter = filter;
+            this.parent = parent;
+        }
+    }
+
+    /** A selected object or array being recorded until it is complete. */
+    private static final class Capture {
+        final int rule;
+        final Frame frame;
+        final TokenBuffer buffer;
+
+        Capture(int rule, @Nullable Frame frame, @NotNull TokenBuffer buffer) {
+            this.rule = rule;
+            this.frame = frame;
+            this.buffer = buffer;
+        }
+    }
+
+    /** An open object or array. */
+    private static final class Container {
+        final List<State> states;
+        final boolean array;
+        final List<Frame> frames;
+        final List<Capture> captures;
+        int nextIndex;
+        String field;
+
+        Container(@NotNull List<State> states, boolean array, @NotNull List<Frame> frames,
+                @NotNull List<Capture> captures) {
+            this.states = states;
+            this.array = array;
+            this.frames = frames;
+            this.captures = captures;
+        }
+    }
+
+    /**
+     * Extraction state of a single response. Fed one token at a time; not
+     * thread-safe.
+     */
+    final class Extraction {
+
+        private final List<List<JsonNode>> matches = new ArrayList<>();
+        private final boolean[] reached = new boolean[rules.size()];
+        private final Deque<Container> stack = new ArrayDeque<>();
+        private final List<Capture> active = new ArrayList<>();
+        private int skipDepth;
+        private boolean started;
+
+        private Extraction() {
+            for (int i = 0; i < rules.size(); i++) {
+                matches.add(new ArrayList<>(1));
+            }
+        }
+
+        /** Processes the parser's current token. */
+        void token(@NotNull JsonParser parser, @NotNull JsonToken token) throws IOException {
+            started = true;
+            if (skipDepth > 0) {
+                if (token.isStructStart()) {
+                    skipDepth++;
+                } else if (token.isStructEnd()) {
+                    skipDepth--;
+                }
+                return;
+            }
+            if (token == JsonToken.FIELD_NAME) {
+                copy(parser);
+                stack.peek().field = parser.currentName();
+                return;
+            }
+            if (token.isStructEnd()) {
+                copy(parser);
+                close(stack.pop());
+                return;
+            }
+            value(parser, token);
+        }
+
+        /** Returns the claims, converted exactly as {@link JsonPathMapper} would. */
+        @NotNull
+        Map<String, Object> result() {
+            Map<String, Object> claims = new HashMap<>();
+            if (!started) {
+                return claims;
+            }
+            for (int i = 0; i < rules.size(); i++) {
+                RulePlan plan = rules.get(i);
+                List<JsonNode> found = matches.get(i);
+                JsonNode last = found.isEmpty() ? null : found.get(found.size() - 1);
+                Object value = switch (plan.kind()) {
+                    case SIMPLE -> last != null ? JsonPathMapper.simpleFieldValue(last) : null;
+                    case DEFINITE -> JsonPathMapper.jsonPathValue(last);
+                    case INDEFINITE -> reached[i]
+                            ? JsonPathMapper.jsonPathValue(JsonNodeFactory.instance.arrayNode().addAll(found))
+                            : null;
+                };
+                if (value != null) {
+                    claims.put(plan.rule().getClaimName(), value);
+                }
+            }
+            return claims;
+        }
+
+        private void value(@NotNull JsonParser parser, @NotNull JsonToken token) throws IOException {
+            Container parent = stack.peek();
+            boolean container = token.isStructStart();
+            JsonNode scalar = container ? null : scalar(parser, token);
+
+            // Feed predicates looking at this field of their candidate object
+            if (parent != null && !parent.array) {
+                for (Frame frame : parent.frames) {
+                    if (frame.filter.references(parent.field)) {
+                        frame.observed.put(parent.field, container ? CONTAINER_MARKER : scalar);
+                    }
+                }
+            }
+            copy(parser);
+
+            List<Frame> frames = new ArrayList<>(0);
+            List<State> states = statesFor(parent, frames);
+            if (token == JsonToken.START_OBJECT) {
+                // A filter applied to an object tests the object itself
+                for (int i = 0; i < states.size(); i++) {
+                    State state = states.get(i);
+                    for (Map.Entry<Filter, Node> e : state.node().filters.entrySet()) {
+                        Frame frame = new Frame(e.getKey(), state.frame());
+                        frames.add(frame);
+                        states.add(new State(e.getValue(), frame));
+                    }
+                }
+            }
+
+            List<Capture> captures = new ArrayList<>(0);
+            for (State state : states) {
+                Node node = state.node();
+                for (int rule : node.prefixEnds) {
+                    reached[rule] = true;
+                }
+                if (token == JsonToken.START_ARRAY) {
+                    for (int rule : node.prefixArrays) {
+                        reached[rule] = true;
+                    }
+                }
+                for (int rule : node.terminals) {
+                    if (container) {
+                        TokenBuffer buffer = new TokenBuffer(parser);
+                        buffer.copyCurrentEvent(parser);
+                        Capture capture = new Capture(rule, state.frame(), buffer);
+                        captures.add(capture);
+                        active.add(capture);
+                    } else {
+                        report(rule, scalar, state.frame());
+                    }
+                }
+            }
+
+            if (!container) {
+                decide(frames);
+            } else if (states.isEmpty() && frames.isEmpty() && active.isEmpty()) {
+                skipDepth = 1; // nothing below here is needed
+            } else {
+                stack.push(new Container(states, token == JsonToken.START_ARRAY, frames, captures));
+            }
+        }
+
+        /** Trie positions of the next value inside {@code parent}; registers element filter frames. */
+        private @NotNull List<State> statesFor(@Nullable Container parent, @NotNull List<Frame> frames) {
+            List<State> states = new ArrayList<>();
+            if (parent == null) {
+                states.add(new State(root, null));
+                return states;
+            }
+            int index = parent.array ? parent.nextIndex++ : -1;
+            for (State state : parent.states) {
+                Node node = state.node();
+                Node next = parent.array ? node.indices.get(index) : node.fields.get(parent.field);
+                if (next != null) {
+                    states.add(new State(next, state.frame()));
+                }
+                if (node.wildcard != null) {
+                    states.add(new State(node.wildcard, state.frame()));
+                }
+                if (parent.array) {
+                    // A filter applied to an array tests each element
+                    for (Map.Entry<Filter, Node> e : node.filters.entrySet()) {
+                        Frame frame = new Frame(e.getKey(), state.frame());
+                        frames.add(frame);
+                        states.add(new State(e.getValue(), frame));
+                    }
+                }
+            }
+            return states;
+        }
+
+        private void close(@NotNull Container container) throws IOException {
+            for (Capture capture : container.captures) {
+                active.remove(capture);
+                try (JsonParser replay = capture.buffer.asParser(MAPPER)) {
+                    report(capture.rule, MAPPER.readTree(replay), capture.frame);
+                }
+            }
+            decide(container.frames);
+        }
+
+        /** Applies the filters of a completed candidate; inner frames first. */
+        private void decide(@NotNull List<Frame> frames) {
+            for (int i = frames.size() - 1; i >= 0; i--) {
+                Frame frame = frames.get(i);
+                if (frame.filter.test(frame.observed)) {
+                    for (Match match : frame.pending) {
+                        report(match.rule(), match.value(), frame.parent);
+                    }
+                }
+            }
+        }
+
+        private void report(int rule, @NotNull JsonNode value, @Nullable Frame frame) {
+            if (frame == null) {
+                matches.get(rule).add(value);
+            } else {
+                frame.pending.add(new Match(rule, value));
+            }
+        }
+
+        private void copy(@NotNull JsonParser parser) throws IOException {
+            for (Capture capture : active) {
+                capture.buffer.copyCurrentEvent(parser);
+            }
+        }
+    }
+
+    /** The node {@link ObjectMapper#readTree} would create for a scalar token. */
+    private static @NotNull JsonNode scalar(@NotNull JsonParser parser, @NotNull JsonToken token) throws IOException {
+        return switch (token) {
+            case VALUE_STRING -> TextNode.valueOf(parser.getText());
+            case VALUE_NUMBER_INT -> switch (parser.getNumberType()) {
+                case INT -> IntNode.valueOf(parser.getIntValue());
+                case LONG -> LongNode.valueOf(parser.getLongValue());
+                default -> BigIntegerNode.valueOf(parser.getBigIntegerValue());
+            };
+            case VALUE_NUMBER_FLOAT -> DoubleNode.valueOf(parser.getDoubleValue());
+            case VALUE_TRUE -> BooleanNode.TRUE;
+            case VALUE_FALSE -> BooleanNode.FALSE;
+            default -> NullNode.getInstance();
+        };
+    }
+}
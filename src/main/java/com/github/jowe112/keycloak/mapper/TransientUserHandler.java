@@ -1,14 +1,22 @@
 package com.github.jowe112.keycloak.mapper;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import org.jboss.logging.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.keycloak.models.UserSessionModel;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -18,78 +26,196 @@ import java.util.concurrent.TimeoutException;
  * <p>
  * Claims are fetched live from the REST APIs on every token issuance. Nothing
  * is persisted — the user has no Keycloak local storage. All endpoints are
- * called in parallel.
+ * called in parallel on the non-blocking HTTP client.
+ * <p>
+ * With {@value RestClaimMapper#CFG_TRANSIENT_SESSION_NOTE} enabled, the
+ * fetched claims are stored on the {@link UserSessionModel} as a note in the
+ * compact cache format ({@link CompactClaimCacheStore#encode}), so refresh
+ * grants and userinfo calls of the same session reuse them until the TTL
+ * expires; the note lives and dies with the session.
+ * <p>
+ * With {@value RestClaimMapper#CFG_TRANSIENT_CACHE} enabled, each endpoint's
+ * mapped claims are kept in a node-local cache keyed by user id, mapper id and
+ * endpoint config hash, for the mapper's
+ * endpoint TTL ({@link MapperPlan#getTtlSeconds(EndpointConfig)}, or the
+ * user's adaptive TTL), shortened per user by {@link CacheFreshness}. Each
+ * write restarts the entry's lifetime, so an early refresh extends it. The
+ * cache is shared by all mappers
+ * and bounded to roughly {@value #CACHE_MAX_WEIGHT} characters of claims;
+ * Caffeine's W-TinyLFU policy decides which users to evict first.
  */
 public final class TransientUserHandler {
 
     private static final Logger LOG = Logger.getLogger(TransientUserHandler.class);
 
-    // Use a fixed thread pool to prevent thread exhaustion if the REST API is slow
-    private static final int MAX_CONCURRENT_REQUESTS = 50;
+    /** Maximum total weight of the local cache, roughly characters of claim names and values. */
+    static final long CACHE_MAX_WEIGHT = 16_000_000;
+
+    /** Weight charged per cached endpoint result on top of its claims. */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /** Key: user, mapper and endpoint configuration. */
+    record CacheKey(@NotNull String userId, @NotNull String mapperId, @NotNull String configHash) {
+    }
+
+    /**
+     * Mapped claims of one endpoint, fetched at {@code fetchedAt}, with the
+     * adaptive TTL to apply ({@link ClaimCacheStore.Entry#ttlSeconds()}) and
+     * the lifetime of the cache entry.
+     */
+    record CachedClaims(@NotNull Map<String, Object> claims, long fetchedAt, long ttlSeconds,
+            @NotNull Duration lifetime) {
+    }
+
+    private static final Cache<CacheKey, CachedClaims> CACHE = newCache(Ticker.systemTicker());
+
+    /** Builds the cache; the lifetime of an entry restarts whenever it is replaced. */
+    static @NotNull Cache<CacheKey, CachedClaims> newCache(@NotNull Ticker ticker) {
+        return Caffeine.newBuilder()
+                .maximumWeight(CACHE_MAX_WEIGHT)
+                .weigher((CacheKey key, CachedClaims value) -> (int) Math.min(Integer.MAX_VALUE,
+                        ENTRY_OVERHEAD + key.userId().length() + ClaimNearCache.weighClaims(value.claims())))
+                .expireAfter(Expiry.writing((CacheKey key, CachedClaims value) -> value.lifetime()))
+                .ticker(ticker)
+                .recordStats()
+                .build();
+    }
 
-    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS, r -> {
-        Thread t = new Thread(r, "rest-claim-mapper-transient-worker");
-        t.setDaemon(true);
-        return t;
-    });
+    /** Point-in-time snapshot of the transient user cache. */
+    public record CacheStatsSnapshot(long size, long weight, long hits, long misses, long evictions) {
+    }
 
     private TransientUserHandler() {
     }
 
+    /** Returns the current state of the transient user cache. */
+    public static @NotNull CacheStatsSnapshot cacheStats() {
+        CacheStats stats = CACHE.stats();
+        long weight = CACHE.policy().eviction().map(e -> e.weightedSize().orElse(0)).orElse(0L);
+        return new CacheStatsSnapshot(CACHE.estimatedSize(), weight, stats.hitCount(), stats.missCount(),
+                stats.evictionCount());
+    }
+
     /**
-     * Fetches REST attributes live for a transient user and returns the merged
-     * claims map. No data is written anywhere.
+     * Fetches REST attributes for a transient user and returns the merged
+     * claims map. Nothing is written to Keycloak's user storage; endpoint
+     * results are only kept if the plan enables
+     * {@value RestClaimMapper#CFG_TRANSIENT_SESSION_NOTE} (on the user session)
+     * or {@value RestClaimMapper#CFG_TRANSIENT_CACHE} (in memory).
      *
-     * @param endpoints   parsed endpoint configurations
+     * @param plan        compiled mapper configuration (endpoints, TTL)
+     * @param userSession the user session the token is issued for
+     * @param userId      id of the transient user
      * @param userContext map of user context fields (sub, email, username, …)
      * @return merged map of claim name → value (String or List&lt;String&gt;)
      */
     public static @NotNull Map<String, Object> fetchLive(
-            @NotNull List<EndpointConfig> endpoints,
+            @NotNull MapperPlan plan,
+            @NotNull UserSessionModel userSession,
+            @NotNull String userId,
             @NotNull Map<String, String> userContext) {
 
         Map<String, Object> claims = new HashMap<>();
-
-        List<CompletableFuture<Map<String, Object>>> futures = endpoints.stream()
-                .filter(EndpointConfig::isConfigured)
-                .map(ep -> CompletableFuture.supplyAsync(
-                        () -> fetchForEndpoint(ep, userContext), EXECUTOR))
-                .toList();
-
-        for (CompletableFuture<Map<String, Object>> future : futures) {
+        long now = Instant.now().getEpochSecond();
+        Map<Integer, ClaimCacheStore.Entry> noted = plan.isTransientSessionNote() && plan.getRetentionSeconds() > 0
+                ? CompactClaimCacheStore.decode(userSession.getNote(plan.sessionNoteKey()))
+                : null;
+        boolean notesChanged = false;
+
+        List<EndpointFetch> fetches = new ArrayList<>();
+        for (EndpointConfig ep : plan.getEndpoints()) {
+            if (!ep.isConfigured()) {
+                continue;
+            }
+            long ttlSeconds = plan.getTtlSeconds(ep);
+            ClaimCacheStore.Entry note = noted != null ? noted.get(ep.getIndex()) : null;
+            if (note != null && ep.getConfigHash().equals(note.configHash()) && CacheFreshness.isFresh(
+                    now - note.cachedAt(), CacheFreshness.ttlSeconds(plan, ep, note), userId, ep)) {
+                claims.putAll(note.claims());
+                continue;
+            }
+            CacheKey key = plan.isTransientCache() && ttlSeconds > 0
+                    ? new CacheKey(userId, plan.getMapperId(), ep.getConfigHash())
+                    : null;
+            CachedClaims hit = key != null ? CACHE.getIfPresent(key) : null;
+            ClaimCacheStore.Entry cached = hit != null
+                    ? new ClaimCacheStore.Entry(hit.fetchedAt(), ep.getConfigHash(), hit.claims(), hit.ttlSeconds())
+                    : null;
+            if (cached != null && CacheFreshness.isFresh(now - cached.cachedAt(),
+                    CacheFreshness.ttlSeconds(plan, ep, cached), userId, ep)) {
+                claims.putAll(cached.claims());
+                if (noted != null) {
+                    noted.put(ep.getIndex(), cached);
+                    notesChanged = true;
+                }
+            } else {
+                fetches.add(new EndpointFetch(ep, key, cached, startFetch(ep, userContext)));
+            }
+        }
+        // Enforce a hard 10-second timeout over all endpoints so token issuance is
+        // never blocked indefinitely
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (EndpointFetch fetch : fetches) {
             try {
-                // Enforce a hard 10-second timeout so token issuance is never blocked
-                // indefinitely
-                claims.putAll(future.get(10, TimeUnit.SECONDS));
+                Map<String, Object> mapped = fetch.response().get(Math.max(0, deadline - System.nanoTime()),
+                        TimeUnit.NANOSECONDS);
+                if (mapped == null) {
+                    LOG.warnf("Transient: endpoint %d returned no data", fetch.endpoint().getIndex());
+                    continue;
+                }
+                claims.putAll(mapped);
+                if (fetch.cacheKey() != null) {
+                    EndpointConfig ep = fetch.endpoint();
+                    ClaimCacheStore.Entry previous = fetch.cached();
+                    long ttl = CacheFreshness.nextTtlSeconds(plan, ep, previous,
+                            previous == null || !previous.claims().equals(mapped));
+                    ClaimCacheStore.Entry entry = new ClaimCacheStore.Entry(now, ep.getConfigHash(), mapped, ttl);
+                    long lifetime = CacheFreshness.jitteredTtl(CacheFreshness.ttlSeconds(plan, ep, entry), userId,
+                            ep.getIndex());
+                    CACHE.put(fetch.cacheKey(),
+                            new CachedClaims(Map.copyOf(mapped), now, ttl, Duration.ofSeconds(lifetime)));
+                }
+                if (noted != null) {
+                    EndpointConfig ep = fetch.endpoint();
+                    ClaimCacheStore.Entry previous = noted.get(ep.getIndex());
+                    boolean changed = previous == null || !previous.configHash().equals(ep.getConfigHash())
+                            || !previous.claims().equals(mapped);
+                    noted.put(ep.getIndex(), new ClaimCacheStore.Entry(now, ep.getConfigHash(), Map.copyOf(mapped),
+                            CacheFreshness.nextTtlSeconds(plan, ep, previous, changed)));
+                    notesChanged = true;
+                }
             } catch (TimeoutException e) {
+                fetch.response().cancel(true);
                 LOG.errorf(e, "Transient: endpoint fetch timed out after 10 seconds");
             } catch (Exception e) {
                 LOG.errorf(e, "Transient: unexpected error collecting endpoint result");
             }
         }
 
+        if (notesChanged) {
+            // Drop endpoints that were removed from the mapper since the note was written
+            noted.keySet().removeIf(index -> plan.getEndpoints().stream().noneMatch(ep -> ep.getIndex() == index));
+            userSession.setNote(plan.sessionNoteKey(), CompactClaimCacheStore.encode(noted));
+        }
         return claims;
     }
 
     // ── Per-endpoint logic ────────────────────────────────────────────────────
 
-    private static @NotNull Map<String, Object> fetchForEndpoint(
+    private record EndpointFetch(@NotNull EndpointConfig endpoint, @Nullable CacheKey cacheKey,
+            @Nullable ClaimCacheStore.Entry cached, @NotNull CompletableFuture<Map<String, Object>> response) {
+    }
+
+    private static @NotNull CompletableFuture<Map<String, Object>> startFetch(
             @NotNull EndpointConfig ep,
             @NotNull Map<String, String> userContext) {
 
-        Map<String, String> scriptVars = new HashMap<>();
-        for (String param : ep.getQueryParams()) {
-            scriptVars.put(param, userContext.getOrDefault(param, ""));
-        }
-
-        String queryString = QueryScriptEvaluator.evaluate(ep.getQueryScript(), scriptVars);
-        String rawJson = RestApiClient.getInstance().fetchJson(ep, queryString);
-
-        if (rawJson == null) {
-            LOG.warnf("Transient: endpoint %d returned no data", ep.getIndex());
-            return Map.of();
+        String queryString = QueryScriptEvaluator.evaluate(ep.getCompiledQueryScript(), userContext);
+        if (queryString == null) {
+            // Never call the endpoint without the user's query: it could return anyone's data
+            LOG.warnf("Transient: skipping endpoint %d: query script failed", ep.getIndex());
+            return CompletableFuture.completedFuture(null);
         }
-
-        return JsonPathMapper.map(rawJson, ep.getMappingRules());
+        return RestApiClient.getInstance().fetchClaims(ep, queryString);
     }
 }
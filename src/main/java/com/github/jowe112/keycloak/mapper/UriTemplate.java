@@ -0,0 +1,268 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * RFC 6570 URI template, used when an endpoint's query mode is
+ * {@code template}.
+ * <p>
+ * All expression operators of level 4 are supported ({@code +}, {@code #},
+ * {@code .}, {@code /}, {@code ;}, {@code ?}, {@code &}) together with the
+ * prefix modifier ({@code {username:3}}). Variables are user context fields,
+ * which are always strings, so the explode modifier ({@code *}) is accepted
+ * but has no effect. Fields missing from the user context are undefined and
+ * expand to nothing, as the RFC requires.
+ * <p>
+ * Example: {@code {?username,email}} expands to
+ * {@code ?username=jdoe&email=jdoe%40example.com}.
+ */
+final class UriTemplate implements QueryTemplate {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final String template;
+
+    /** Literal {@code String}s and {@link Expression}s, in template order. */
+    private final List<Object> parts;
+
+    /** Operator behaviour, see RFC 6570 Appendix A. */
+    private enum Operator {
+        SIMPLE("", ",", false, "", false),
+        RESERVED("", ",", false, "", true),
+        FRAGMENT("#", ",", false, "", true),
+        LABEL(".", ".", false, "", false),
+        PATH("/", "/", false, "", false),
+        PATH_PARAM(";", ";", true, "", false),
+        QUERY("?", "&", true, "=", false),
+        QUERY_CONTINUATION("&", "&", true, "=", false);
+
+        final String first;
+        final String separator;
+        final boolean named;
+        final String ifEmpty;
+        final boolean allowReserved;
+
+        Operator(String first, String separator, boolean named, String ifEmpty, boolean allowReserved) {
+            this.first = first;
+            this.separator = separator;
+            this.named = named;
+            this.ifEmpty = ifEmpty;
+            this.allowReserved = allowReserved;
+        }
+
+        static @NotNull Operator of(char c) {
+            return switch (c) {
+                case '+' -> RESERVED;
+                case '#' -> FRAGMENT;
+                case '.' -> LABEL;
+                case '/' -> PATH;
+                case ';' -> PATH_PARAM;
+                case '?' -> QUERY;
+                case '&' -> QUERY_CONTINUATION;
+                default -> SIMPLE;
+            };
+        }
+    }
+
+    private record VarSpec(String name, int maxLength) {
+    }
+
+    private record Expression(Operator operator, List<VarSpec> variables) {
+    }
+
+    private UriTemplate(@NotNull String template, @NotNull List<Object> parts) {
+        this.template = template;
+        this.parts = List.copyOf(parts);
+    }
+
+    /**
+     * Parses a URI template.
+     *
+     * @throws IllegalArgumentException if the template is malformed
+     */
+    static @NotNull UriTemplate parse(@NotNull String template) {
+        List<Object> parts = new ArrayList<>();
+        int i = 0;
+        while (i < template.length()) {
+            int open = template.indexOf('{', i);
+            if (open < 0) {
+                parts.add(encodeLiteral(template.substring(i)));
+                break;
+            }
+            if (open > i) {
+                parts.add(encodeLiteral(template.substring(i, open)));
+            }
+            int close = template.indexOf('}', open);
+            if (close < 0) {
+                throw new IllegalArgumentException("Unclosed expression at position " + open);
+            }
+            parts.add(parseExpression(template.substring(open + 1, close)));
+            i = close + 1;
+        }
+        return new UriTemplate(template, parts);
+    }
+
+    @Override
+    public @NotNull String expand(@NotNull Map<String, String> userContext) {
+        StringBuilder sb = new StringBuilder(template.length() + 32);
+        for (Object part : parts) {
+            if (part instanceof Expression expression) {
+                expand(expression, userContext, sb);
+            } else {
+                sb.append((String) part);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+
+    // ── Parsing ───────────────────────────────────────────────────────────────
+
+    private static @NotNull Expression parseExpression(@NotNull String body) {
+        if (body.isEmpty()) {
+            throw new IllegalArgumentException("Empty expression");
+        }
+        char c = body.charAt(0);
+        if ("=,!@|".indexOf(c) >= 0) {
+            throw new IllegalArgumentException("Reserved operator '" + c + "'");
+        }
+        Operator operator = Operator.of(c);
+        String list = operator == Operator.SIMPLE ? body : body.substring(1);
+
+        List<VarSpec> variables = new ArrayList<>();
+        for (String spec : list.split(",", -1)) {
+            variables.add(parseVarSpec(spec));
+        }
+        return new Expression(operator, variables);
+    }
+
+    private static @NotNull VarSpec parseVarSpec(@NotNull String spec) {
+        String name = spec;
+        int maxLength = -1;
+        if (spec.endsWith("*")) {
+            name = spec.substring(0, spec.length() - 1);
+        } else {
+            int colon = spec.indexOf(':');
+            if (colon >= 0) {
+                name = spec.substring(0, colon);
+                String length = spec.substring(colon + 1);
+                if (length.isEmpty() || length.length() > 4 || length.charAt(0) == '0'
+                        || !length.chars().allMatch(Character::isDigit)) {
+                    throw new IllegalArgumentException("Invalid prefix modifier in '" + spec + "'");
+                }
+                maxLength = Integer.parseInt(length);
+            }
+        }
+        if (!isValidVarName(name)) {
+            throw new IllegalArgumentException("Invalid variable name '" + name + "'");
+        }
+        return new VarSpec(name, maxLength);
+    }
+
+    private static boolean isValidVarName(@NotNull String name) {
+        if (name.isEmpty() || name.startsWith(".") || name.endsWith(".") || name.contains("..")) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= name.length() || !isHex(name.charAt(i + 1)) || !isHex(name.charAt(i + 2))) {
+                    return false;
+                }
+                i += 2;
+            } else if (!isAlphaNum(c) && c != '_' && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ── Expansion ─────────────────────────────────────────────────────────────
+
+    private static void expand(@NotNull Expression expression, @NotNull Map<String, String> userContext,
+            @NotNull StringBuilder sb) {
+        Operator op = expression.operator();
+        boolean first = true;
+        for (VarSpec var : expression.variables()) {
+            String value = userContext.get(var.name());
+            if (value == null) {
+                continue; // undefined
+            }
+            sb.append(first ? op.first : op.separator);
+            first = false;
+
+            if (var.maxLength() >= 0 && value.codePointCount(0, value.length()) > var.maxLength()) {
+                value = value.substring(0, value.offsetByCodePoints(0, var.maxLength()));
+            }
+            if (op.named) {
+                sb.append(var.name());
+                if (value.isEmpty()) {
+                    sb.append(op.ifEmpty);
+                    continue;
+                }
+                sb.append('=');
+            }
+            encode(value, op.allowReserved, sb);
+        }
+    }
+
+    /** Literal text may contain reserved characters, but nothing outside the URI character set. */
+    private static @NotNull String encodeLiteral(@NotNull String literal) {
+        StringBuilder sb = new StringBuilder(literal.length());
+        encode(literal, true, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Percent-encodes {@code value} as UTF-8, keeping unreserved characters and,
+     * if {@code allowReserved}, reserved characters and existing
+     * pct-encoded triplets.
+     */
+    private static void encode(@NotNull String value, boolean allowReserved, @NotNull StringBuilder sb) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (isUnreserved(c) || (allowReserved && isReserved(c))) {
+                sb.append(c);
+            } else if (allowReserved && c == '%' && i + 2 < value.length()
+                    && isHex(value.charAt(i + 1)) && isHex(value.charAt(i + 2))) {
+                sb.append(value, i, i + 3);
+                i += 2;
+            } else {
+                int end = Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1)) ? i + 2 : i + 1;
+                if (Character.isSurrogate(c) && end == i + 1) {
+                    throw new IllegalArgumentException("Unpaired surrogate in value");
+                }
+                for (byte b : value.substring(i, end).getBytes(StandardCharsets.UTF_8)) {
+                    sb.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+                }
+                i = end - 1;
+            }
+        }
+    }
+
+    private static boolean isUnreserved(char c) {
+        return isAlphaNum(c) || c == '-' || c == '.' || c == '_' || c == '~';
+    }
+
+    private static boolean isReserved(char c) {
+        return ":/?#[]@!$&'()*+,;=".indexOf(c) >= 0;
+    }
+
+    private static boolean isAlphaNum(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'A' && c <= 'F') || (c >= 'a' && c <= 'f');
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ProtocolMapperModel;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CacheFreshnessTest {
+
+    @Test
+    public void testJitterIsStablePerUserAndSpreadAcrossUsers() {
+        Set<Long> ttls = new HashSet<>();
+        for (int i = 0; i < 1_000; i++) {
+            long ttl = CacheFreshness.jitteredTtl(300, "user-" + i, 1);
+            assertTrue(ttl > 270 && ttl <= 300, "ttl " + ttl);
+            assertEquals(ttl, CacheFreshness.jitteredTtl(300, "user-" + i, 1));
+            ttls.add(ttl);
+        }
+        assertTrue(ttls.size() > 20, "only " + ttls.size() + " distinct TTLs");
+        assertEquals(0, CacheFreshness.jitteredTtl(0, "user-1", 1));
+    }
+
+    @Test
+    public void testExpiredPastJitteredTtl() {
+        EndpointConfig ep = ConfigParser.parse(Map.of(
+                "endpoint.1.url", "https://api.example.com/freshness",
+                "endpoint.1.mapping", "role→role")).get(0);
+
+        assertTrue(CacheFreshness.isFresh(0, 300, "user-1", ep));
+        assertFalse(CacheFreshness.isFresh(CacheFreshness.jitteredTtl(300, "user-1", 1), 300, "user-1", ep));
+        assertFalse(CacheFreshness.isFresh(10, 0, "user-1", ep));
+    }
+
+    @Test
+    public void testAdaptiveTtlGrowsWhileUnchangedAndResetsOnChange() {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+        model.setId("m-adaptive");
+        model.setConfig(new HashMap<>(Map.of(
+                RestClaimMapper.CFG_CACHE_TTL, "300",
+                RestClaimMapper.CFG_CACHE_TTL_ADAPTIVE, "true",
+                RestClaimMapper.CFG_CACHE_TTL_MAX, "1000",
+                "endpoint.1.url", "https://api.example.com/adaptive",
+                "endpoint.1.mapping", "role→role")));
+        MapperPlan plan = MapperPlan.of(model);
+        EndpointConfig ep = plan.getEndpoints().get(0);
+
+        assertEquals(300, CacheFreshness.nextTtlSeconds(plan, ep, null, false));
+        ClaimCacheStore.Entry entry = new ClaimCacheStore.Entry(0, ep.getConfigHash(), Map.of(), 300);
+        assertEquals(600, CacheFreshness.nextTtlSeconds(plan, ep, entry, false));
+        entry = new ClaimCacheStore.Entry(0, ep.getConfigHash(), Map.of(), 600);
+        assertEquals(1000, CacheFreshness.nextTtlSeconds(plan, ep, entry, false));
+        assertEquals(600, CacheFreshness.ttlSeconds(plan, ep, entry));
+        assertEquals(300, CacheFreshness.nextTtlSeconds(plan, ep, entry, true));
+        assertEquals(1000, plan.getRetentionSeconds());
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.jowe112.keycloak.mapper;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static com.github.jowe112.keycloak.mapper.CacheWriteBehindTest.fake;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CacheRevalidatorTest {
+
+    private final HttpServer server;
+    private final ExecutorService serverThreads = Executors.newCachedThreadPool();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile int status = 200;
+
+    private final KeycloakSessionFactory factory = fake(KeycloakSessionFactory.class, Map.of());
+    private final KeycloakSession session = fake(KeycloakSession.class,
+            Map.of("getKeycloakSessionFactory", args -> factory));
+    private final RealmModel realm = fake(RealmModel.class, Map.of("getId", args -> "r1"));
+    private final UserModel user = fake(UserModel.class, Map.of("getId", args -> "u1"));
+
+    /** Write-behind queue that is never drained, so refreshed entries stay inspectable. */
+    private final CacheWriteBehind writeBehind = new CacheWriteBehind((f, task) -> {
+    }, false);
+    private final CacheRevalidator revalidator = new CacheRevalidator(writeBehind);
+
+    public CacheRevalidatorTest() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(serverThreads);
+        // Answers once released, so a refresh stays in flight as long as the test needs
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "{\"role\":\"admin\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        release.countDown();
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    private MapperPlan plan(String path) {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+        model.setId("m-revalidate" + path);
+        model.setConfig(new HashMap<>(Map.of(
+                RestClaimMapper.CFG_CACHE_STALE, "60",
+                "endpoint.1.url", "http://127.0.0.1:" + server.getAddress().getPort() + path,
+                "endpoint.1.mapping", "role→role")));
+        return MapperPlan.of(model);
+    }
+
+    private ClaimCacheStore.Entry queued(MapperPlan plan) {
+        ClaimCacheStore.Handle empty = fake(ClaimCacheStore.Handle.class, Map.of("get", args -> null));
+        return writeBehind.wrap(session, realm, user, plan, empty).get(plan.getEndpoints().get(0));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "condition not reached");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testOneRefreshPerEntryAndResultIsQueued() throws Exception {
+        MapperPlan plan = plan("/refresh");
+        EndpointConfig ep = plan.getEndpoints().get(0);
+        ClaimCacheStore.Entry stale = new ClaimCacheStore.Entry(1, ep.getConfigHash(), Map.of("role", "user"));
+
+        revalidator.revalidate(session, realm, user, plan, ep, stale, Map.of());
+        revalidator.revalidate(session, realm, user, plan, ep, stale, Map.of());
+        CacheRevalidator.Stats stats = revalidator.stats();
+        assertEquals(2, stats.staleServed());
+        assertEquals(1, stats.started());
+        assertEquals(1, stats.inFlight());
+
+        release.countDown();
+        await(() -> revalidator.stats().refreshed() == 1 && revalidator.stats().inFlight() == 0);
+        assertEquals(1, requests.get());
+        assertEquals(Map.of("role", "admin"), queued(plan).claims());
+
+        // Once finished, the next stale hit starts a new refresh
+        revalidator.revalidate(session, realm, user, plan, ep, queued(plan), Map.of());
+        assertEquals(2, revalidator.stats().started());
+        await(() -> revalidator.stats().refreshed() == 2 && revalidator.stats().inFlight() == 0);
+    }
+
+    @Test
+    public void testFailedRefreshLeavesEntryAlone() throws Exception {
+        status = 500;
+        release.countDown();
+        MapperPlan plan = plan("/failing");
+        EndpointConfig ep = plan.getEndpoints().get(0);
+        ClaimCacheStore.Entry stale = new ClaimCacheStore.Entry(1, ep.getConfigHash(), Map.of("role", "user"));
+
+        revalidator.revalidate(session, realm, user, plan, ep, stale, Map.of());
+        await(() -> revalidator.stats().failed() == 1 && revalidator.stats().inFlight() == 0);
+        assertEquals(0, revalidator.stats().refreshed());
+        assertNull(queued(plan));
+        assertEquals(0, writeBehind.stats().pending());
+    }
+}
@@ -0,0 +1,168 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class CacheWriteBehindTest {
+
+    /** Proxy of {@code type} answering the named methods; any other call fails. */
+    @SuppressWarnings("unchecked")
+    static <T> T fake(Class<T> type, Map<String, Function<Object[], Object>> answers) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            Function<Object[], Object> answer = answers.get(method.getName());
+            if (answer == null) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            return answer.apply(args);
+        });
+    }
+
+    /** Users by id, each a map of attributes, behind a fake session. */
+    private final Map<String, Map<String, List<String>>> users = new HashMap<>();
+
+    private final KeycloakSessionFactory factory = fake(KeycloakSessionFactory.class, Map.of());
+    private final RealmModel realm = fake(RealmModel.class, Map.of("getId", args -> "r1"));
+
+    @SuppressWarnings("unchecked")
+    private UserModel user(String id) {
+        Map<String, List<String>> attributes = users.computeIfAbsent(id, k -> new HashMap<>());
+        return fake(UserModel.class, Map.of(
+                "getId", args -> id,
+                "getAttributeStream", args -> attributes.getOrDefault((String) args[0], List.of()).stream(),
+                "getFirstAttribute", args -> attributes.getOrDefault((String) args[0], List.of()).stream()
+                        .findFirst().orElse(null),
+                "setSingleAttribute", args -> attributes.put((String) args[0], List.of((String) args[1])),
+                "setAttribute", args -> attributes.put((String) args[0], List.copyOf((List<String>) args[1])),
+                "removeAttribute", args -> attributes.remove((String) args[0])));
+    }
+
+    private KeycloakSession session() {
+        RealmProvider realms = fake(RealmProvider.class, Map.of("getRealm", args -> realm));
+        UserProvider userProvider = fake(UserProvider.class, Map.of("getUserById", args -> user((String) args[1])));
+        KeycloakContext context = fake(KeycloakContext.class, Map.of("setRealm", args -> null));
+        return fake(KeycloakSession.class, Map.of(
+                "realms", args -> realms,
+                "users", args -> userProvider,
+                "getContext", args -> context,
+                "setAttribute", args -> null,
+                "getKeycloakSessionFactory", args -> factory));
+    }
+
+    private static MapperPlan plan() {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+        model.setId("m-write-behind");
+        model.setConfig(new HashMap<>(Map.of(
+                "endpoint.1.url", "https://api.example.com/write-behind",
+                "endpoint.1.mapping", "role→role")));
+        return MapperPlan.of(model);
+    }
+
+    private static ClaimCacheStore.Entry entry(EndpointConfig ep, long cachedAt, String role) {
+        return new ClaimCacheStore.Entry(cachedAt, ep.getConfigHash(), Map.of("role", role));
+    }
+
+    /** The user's entry as a request on this node sees it: queued update over an empty store. */
+    private ClaimCacheStore.Entry visible(CacheWriteBehind writeBehind, MapperPlan plan, String userId) {
+        ClaimCacheStore.Handle empty = fake(ClaimCacheStore.Handle.class, Map.of("get", args -> null));
+        return writeBehind.wrap(session(), realm, user(userId), plan, empty).get(plan.getEndpoints().get(0));
+    }
+
+    @Test
+    public void testQueuedUpdateStaysVisibleUntilCommitted() {
+        MapperPlan plan = plan();
+        EndpointConfig ep = plan.getEndpoints().get(0);
+        List<ClaimCacheStore.Entry> seenDuringTransaction = new ArrayList<>();
+        CacheWriteBehind[] writeBehind = new CacheWriteBehind[1];
+        writeBehind[0] = new CacheWriteBehind((f, task) -> {
+            task.run(session());
+            // Written but not yet committed: readers must still find the queued entry
+            seenDuringTransaction.add(visible(writeBehind[0], plan, "u1"));
+        }, false);
+
+        writeBehind[0].submit(factory, "r1", "u1", plan, ep, entry(ep, 100, "admin"), 100, 0);
+        assertEquals(1, writeBehind[0].stats().pending());
+        writeBehind[0].drain();
+
+        assertEquals(List.of(entry(ep, 100, "admin")), seenDuringTransaction);
+        assertEquals(0, writeBehind[0].stats().pending());
+        assertNull(visible(writeBehind[0], plan, "u1"));
+        assertEquals(List.of("admin"), users.get("u1").get(plan.claimKey("role")));
+        assertEquals(1, writeBehind[0].stats().flushed());
+    }
+
+    @Test
+    public void testUpdateQueuedDuringWriteIsKept() {
+        MapperPlan plan = plan();
+        EndpointConfig ep = plan.getEndpoints().get(0);
+        CacheWriteBehind[] writeBehind = new CacheWriteBehind[1];
+        boolean[] first = { true };
+        writeBehind[0] = new CacheWriteBehind((f, task) -> {
+            task.run(session());
+            if (first[0]) {
+                first[0] = false;
+                writeBehind[0].submit(factory, "r1", "u1", plan, ep, entry(ep, 200, "owner"), 200, 0);
+            }
+        }, false);
+
+        writeBehind[0].submit(factory, "r1", "u1", plan, ep, entry(ep, 100, "admin"), 100, 0);
+        writeBehind[0].drain();
+        assertEquals(1, writeBehind[0].stats().pending());
+        assertEquals(1, writeBehind[0].stats().coalesced());
+        assertEquals(entry(ep, 200, "owner"), visible(writeBehind[0], plan, "u1"));
+
+        writeBehind[0].drain();
+        assertEquals(0, writeBehind[0].stats().pending());
+        assertEquals(List.of("owner"), users.get("u1").get(plan.claimKey("role")));
+    }
+
+    @Test
+    public void testFailedBatchIsRetriedPerUser() {
+        MapperPlan plan = plan();
+        EndpointConfig ep = plan.getEndpoints().get(0);
+        Set<String> conflicting = Set.of("u2");
+        CacheWriteBehind writeBehind = new CacheWriteBehind((f, task) -> {
+            Map<String, Map<String, List<String>>> before = new HashMap<>();
+            users.forEach((id, attributes) -> before.put(id, new HashMap<>(attributes)));
+            task.run(session());
+            boolean conflict = conflicting.stream()
+                    .anyMatch(id -> !users.getOrDefault(id, Map.of()).equals(before.getOrDefault(id, Map.of())));
+            if (conflict) {
+                // Roll back
+                users.clear();
+                users.putAll(before);
+                throw new IllegalStateException("optimistic lock");
+            }
+        }, false);
+
+        writeBehind.submit(factory, "r1", "u1", plan, ep, entry(ep, 100, "admin"), 100, 0);
+        writeBehind.submit(factory, "r1", "u2", plan, ep, entry(ep, 100, "admin"), 100, 0);
+        writeBehind.drain();
+
+        CacheWriteBehind.Stats stats = writeBehind.stats();
+        assertEquals(0, stats.pending());
+        assertEquals(1, stats.flushed());
+        assertEquals(1, stats.failed());
+        assertEquals(1, stats.transactions());
+        assertNotNull(users.get("u1").get(plan.claimKey("role")));
+        assertNull(users.getOrDefault("u2", Map.of()).get(plan.claimKey("role")));
+    }
+}
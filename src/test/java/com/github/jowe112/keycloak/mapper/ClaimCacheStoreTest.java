@@ -0,0 +1,216 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.UserCache;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.jowe112.keycloak.mapper.CacheWriteBehindTest.fake;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ClaimCacheStoreTest {
+
+    /** In-memory user recording the names of the attributes written. */
+    private static final class FakeUser {
+        final Map<String, List<String>> attributes = new HashMap<>();
+        final List<String> writes = new ArrayList<>();
+        int reads;
+
+        @SuppressWarnings("unchecked")
+        UserModel model() {
+            return (UserModel) Proxy.newProxyInstance(UserModel.class.getClassLoader(),
+                    new Class<?>[] { UserModel.class }, (proxy, method, args) -> switch (method.getName()) {
+                        case "getId" -> "u1";
+                        case "getAttributeStream" -> attributes.getOrDefault((String) args[0], List.of()).stream();
+                        case "getFirstAttribute" -> read((String) args[0]);
+                        case "setSingleAttribute" -> write((String) args[0], List.of((String) args[1]));
+                        case "setAttribute" -> write((String) args[0], (List<String>) args[1]);
+                        case "removeAttribute" -> write((String) args[0], null);
+                        default -> throw new UnsupportedOperationException(method.getName());
+                    });
+        }
+
+        private String read(String name) {
+            reads++;
+            return attributes.getOrDefault(name, List.of()).stream().findFirst().orElse(null);
+        }
+
+        private Object write(String name, List<String> values) {
+            writes.add(name);
+            if (values == null || values.isEmpty()) {
+                attributes.remove(name);
+            } else {
+                attributes.put(name, List.copyOf(values));
+            }
+            return null;
+        }
+    }
+
+    private static MapperPlan plan(String store) {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+        model.setId("m-" + store);
+        model.setConfig(new HashMap<>(Map.of(
+                RestClaimMapper.CFG_CACHE_STORE, store,
+                "endpoint.1.url", "https://api.example.com/users",
+                "endpoint.1.mapping", "role→role,groups→groups,dept→dept")));
+        return MapperPlan.of(model);
+    }
+
+    @Test
+    public void testAttributeStoreWritesOnlyChangedValues() {
+        MapperPlan plan = plan(ClaimCacheStore.ATTRIBUTES);
+        EndpointConfig ep = plan.getEndpoints().get(0);
+        FakeUser user = new FakeUser();
+        String hash = ep.getConfigHash();
+
+        ClaimCacheStore.Handle cache = plan.getCacheStore().open(null, null, user.model(), plan);
+        cache.put(ep, new ClaimCacheStore.Entry(100, hash,
+                Map.of("role", "admin", "groups", List.of("a", "b"), "dept", "R&D")));
+        assertEquals(4, user.writes.size());
+
+        // Same role and groups, dept gone: only the removal and the stamp are written
+        user.writes.clear();
+        cache.put(ep, new ClaimCacheStore.Entry(200, hash, Map.of("role", "admin", "groups", List.of("a", "b"))));
+        assertEquals(List.of(plan.claimKey("dept"), plan.cachedAtKey(ep)), user.writes);
+
+        user.writes.clear();
+        cache.touch(ep, 300, 0);
+        cache.flush();
+        assertEquals(List.of(plan.cachedAtKey(ep)), user.writes);
+        assertEquals(new ClaimCacheStore.Entry(300, hash, Map.of("role", "admin", "groups", List.of("a", "b"))),
+                plan.getCacheStore().open(null, null, user.model(), plan).get(ep));
+    }
+
+    @Test
+    public void testAttributeStoreReadsBackMappedClaims() {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+        model.setId("m-round-trip");
+        model.setConfig(new HashMap<>(Map.of(
+                RestClaimMapper.CFG_CACHE_STORE, ClaimCacheStore.ATTRIBUTES,
+                "endpoint.1.url", "https://api.example.com/users",
+                "endpoint.1.mapping", "role→role,$.groups[*].name→groups,$.tags[*]→tags,ids→ids")));
+        MapperPlan plan = MapperPlan.of(model);
+        EndpointConfig ep = plan.getEndpoints().get(0);
+        FakeUser user = new FakeUser();
+
+        // Filters matching nothing and empty arrays must compare equal once cached
+        Map<String, Object> claims = JsonPathMapper.map("{\"role\":\"admin\",\"groups\":[],\"tags\":[\"x\",\"y\"],"
+                + "\"ids\":[]}", ep.getMappingRules());
+        plan.getCacheStore().open(null, null, user.model(), plan)
+                .put(ep, new ClaimCacheStore.Entry(100, ep.getConfigHash(), claims));
+        assertEquals(claims, plan.getCacheStore().open(null, null, user.model(), plan).get(ep).claims());
+    }
+
+    @Test
+    public void testAdaptiveTtlGrowsForUnchangedEmptyMatch() {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+        model.setId("m-adaptive-empty");
+        model.setConfig(new HashMap<>(Map.of(
+                RestClaimMapper.CFG_CACHE_STORE, ClaimCacheStore.ATTRIBUTES,
+                RestClaimMapper.CFG_CACHE_TTL, "300",
+                RestClaimMapper.CFG_CACHE_TTL_ADAPTIVE, "true",
+                RestClaimMapper.CFG_CACHE_TTL_MAX, "1000",
+                "endpoint.1.url", "https://api.example.com/users",
+                "endpoint.1.mapping", "role→role,$.groups[?(@.active == true)].name→groups")));
+        MapperPlan plan = MapperPlan.of(model);
+        EndpointConfig ep = plan.getEndpoints().get(0);
+        FakeUser user = new FakeUser();
+        String body = "{\"role\":\"admin\",\"groups\":[{\"name\":\"a\",\"active\":false}]}";
+
+        // Each refresh returns the same data, decided as PersistentUserHandler does
+        List<Long> ttls = new ArrayList<>();
+        for (long now = 100; now <= 400; now += 100) {
+            ClaimCacheStore.Handle cache = plan.getCacheStore().open(null, null, user.model(), plan);
+            ClaimCacheStore.Entry cached = cache.get(ep);
+            Map<String, Object> claims = JsonPathMapper.map(body, ep.getMappingRules());
+            if (cached != null && cached.claims().equals(claims)) {
+                cache.touch(ep, now, CacheFreshness.nextTtlSeconds(plan, ep, cached, false));
+            } else {
+                cache.put(ep, new ClaimCacheStore.Entry(now, ep.getConfigHash(), claims,
+                        CacheFreshness.nextTtlSeconds(plan, ep, cached, true)));
+            }
+            ttls.add(plan.getCacheStore().open(null, null, user.model(), plan).get(ep).ttlSeconds());
+        }
+        assertEquals(List.of(300L, 600L, 1000L, 1000L), ttls);
+    }
+
+    @Test
+    public void testCompactStoreWritesOnceAndTouchKeepsClaims() {
+        MapperPlan plan = plan(ClaimCacheStore.COMPACT);
+        EndpointConfig ep = plan.getEndpoints().get(0);
+        FakeUser user = new FakeUser();
+        Map<String, Object> claims = Map.of("role", "admin", "groups", List.of("a", "b"));
+
+        ClaimCacheStore.Handle cache = plan.getCacheStore().open(null, null, user.model(), plan);
+        cache.flush();
+        assertEquals(List.of(), user.writes);
+
+        cache.put(ep, new ClaimCacheStore.Entry(100, ep.getConfigHash(), claims));
+        cache.flush();
+        assertEquals(List.of(plan.compactCacheKey()), user.writes);
+
+        ClaimCacheStore.Handle reopened = plan.getCacheStore().open(null, null, user.model(), plan);
+        reopened.touch(ep, 200, 0);
+        reopened.flush();
+        assertEquals(new ClaimCacheStore.Entry(200, ep.getConfigHash(), claims),
+                plan.getCacheStore().open(null, null, user.model(), plan).get(ep));
+        assertEquals(List.of(plan.compactCacheKey(), plan.compactCacheKey()), user.writes);
+    }
+
+    @Test
+    public void testNearCacheServesHitsWithoutReadingUser() {
+        MapperPlan plan = plan(ClaimCacheStore.COMPACT);
+        EndpointConfig ep = plan.getEndpoints().get(0);
+        FakeUser user = new FakeUser();
+        RealmModel realm = (RealmModel) Proxy.newProxyInstance(RealmModel.class.getClassLoader(),
+                new Class<?>[] { RealmModel.class }, (proxy, method, args) -> "r1");
+        ClaimNearCache near = ClaimNearCache.getInstance();
+        ClaimCacheStore.Entry entry = new ClaimCacheStore.Entry(100, ep.getConfigHash(), Map.of("role", "admin"));
+
+        ClaimCacheStore.Handle cache = near.open(plan.getCacheStore(), null, realm, user.model(), plan);
+        cache.get(ep);
+        cache.put(ep, entry);
+        cache.flush();
+        assertEquals(1, user.reads);
+
+        assertEquals(entry, near.open(plan.getCacheStore(), null, realm, user.model(), plan).get(ep));
+        assertEquals(1, user.reads);
+
+        near.invalidate("u1");
+        assertEquals(entry, near.open(plan.getCacheStore(), null, realm, user.model(), plan).get(ep));
+        assertEquals(2, user.reads);
+    }
+
+    @Test
+    public void testNearCacheInvalidationEvictsUserCacheForOtherNodes() {
+        MapperPlan plan = plan(ClaimCacheStore.COMPACT);
+        EndpointConfig ep = plan.getEndpoints().get(0);
+        FakeUser user = new FakeUser();
+        RealmModel realm = (RealmModel) Proxy.newProxyInstance(RealmModel.class.getClassLoader(),
+                new Class<?>[] { RealmModel.class }, (proxy, method, args) -> "r1");
+        List<Object> evicted = new ArrayList<>();
+        UserCache userCache = fake(UserCache.class, Map.of("evict", args -> evicted.add(args[1])));
+        KeycloakSession session = fake(KeycloakSession.class, Map.of("getProvider", args -> userCache));
+        ClaimNearCache near = ClaimNearCache.getInstance();
+
+        ClaimCacheStore.Handle cache = near.open(plan.getCacheStore(), null, realm, user.model(), plan);
+        cache.put(ep, new ClaimCacheStore.Entry(100, ep.getConfigHash(), Map.of("role", "admin")));
+        cache.flush();
+
+        // An admin removes the cache attribute on this node; the user cache event skips this node
+        user.attributes.clear();
+        UserModel model = user.model();
+        near.invalidateEverywhere(session, realm, model);
+        assertEquals(List.of(model), evicted);
+        assertNull(near.open(plan.getCacheStore(), null, realm, user.model(), plan).get(ep));
+    }
+}
@@ -0,0 +1,45 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CompactClaimCacheStoreTest {
+
+    @Test
+    public void testSmallDocumentRoundTripsAsJson() {
+        Map<Integer, ClaimCacheStore.Entry> entries = Map.of(
+                1, new ClaimCacheStore.Entry(1718000000L, "h1", Map.of("role", "admin", "groups", List.of("a", "b"))),
+                2, new ClaimCacheStore.Entry(1718000100L, "h2", Map.of("empty", List.of())));
+        String value = CompactClaimCacheStore.encode(entries);
+        assertTrue(value.startsWith("{"), value);
+        assertEquals(entries, CompactClaimCacheStore.decode(value));
+    }
+
+    @Test
+    public void testLargeDocumentIsCompressed() {
+        List<String> groups = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            groups.add("cn=group-" + i + ",ou=groups,dc=example,dc=com");
+        }
+        Map<Integer, ClaimCacheStore.Entry> entries = Map.of(
+                1, new ClaimCacheStore.Entry(1718000000L, "h1", Map.of("groups", groups, "dept", "Ré&D")));
+        String value = CompactClaimCacheStore.encode(entries);
+        assertTrue(value.startsWith(CompactClaimCacheStore.GZIP_PREFIX), value);
+        assertEquals(entries, CompactClaimCacheStore.decode(value));
+    }
+
+    @Test
+    public void testUnreadableValueIsAMiss() {
+        assertTrue(CompactClaimCacheStore.decode(null).isEmpty());
+        assertTrue(CompactClaimCacheStore.decode("{\"1\":").isEmpty());
+        assertTrue(CompactClaimCacheStore.decode("gz:not-base64!").isEmpty());
+        assertFalse(CompactClaimCacheStore.decode("{\"1\":{\"t\":1,\"h\":\"x\",\"c\":{}}}").isEmpty());
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class JsonPathMapperTest {
+
+    private static final String BODY = "{\"role\":\"admin\",\"level\":3,\"tags\":[\"x\",\"y\"],\"none\":null,"
+            + "\"user\":{\"dept\":\"R&D\",\"ids\":[7],\"empty\":[],\"nil\":null}}";
+
+    @Test
+    public void testDottedPathsMatchBracketNotation() {
+        // Dotted paths take the JsonPointer fast path; bracket notation the JSONPath engine
+        for (String field : List.of("user.dept", "user.ids", "user.empty", "user.nil", "level", "tags", "none")) {
+            String dotted = "$." + field;
+            String bracket = "$['" + field.replace(".", "']['") + "']";
+            MappingRule fast = new MappingRule(dotted, "c");
+            MappingRule full = new MappingRule(bracket, "c");
+            assertNotNull(fast.getPointer(), dotted);
+            assertNull(full.getPointer(), bracket);
+            assertEquals(JsonPathMapper.map(BODY, List.of(full)), JsonPathMapper.map(BODY, List.of(fast)), dotted);
+        }
+        assertEquals(Map.of("c", "R&D"), JsonPathMapper.map(BODY, List.of(new MappingRule("$.user.dept", "c"))));
+        assertEquals(Map.of(), JsonPathMapper.map(BODY, List.of(new MappingRule("$.user.empty", "c"))));
+        assertEquals(Map.of(), JsonPathMapper.map(BODY, List.of(new MappingRule("$.user.missing", "c"))));
+        assertEquals(Map.of(), JsonPathMapper.map(BODY, List.of(new MappingRule("$.tags[?(@ == 'z')]", "c"))));
+    }
+
+    @Test
+    public void testSimpleFields() {
+        Map<String, Object> claims = JsonPathMapper.map(BODY,
+                ConfigParser.parseMappingRules("role→r,level→l,tags→t,none→n,missing→m"));
+        assertEquals(Map.of("r", "admin", "l", "3", "t", List.of("x", "y")), claims);
+    }
+
+    @Test
+    public void testInvalidJsonPathIsSkipped() {
+        List<MappingRule> rules = ConfigParser.parseMappingRules("$.user[?(@.x→bad,role→r");
+        assertEquals(1, rules.size());
+        assertEquals(Map.of("r", "admin"), JsonPathMapper.map(BODY, rules));
+    }
+}
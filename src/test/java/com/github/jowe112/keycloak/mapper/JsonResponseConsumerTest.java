@@ -0,0 +1,124 @@
+package com.github.jowe112.keycloak.mapper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.impl.BasicEntityDetails;
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class JsonResponseConsumerTest {
+
+    private static final String BODY = "{\"role\":\"admin\",\"user\":{\"dept\":\"R\\u00e9D\"},"
+            + "\"groups\":[{\"name\":\"a\",\"active\":true},{\"name\":\"b\",\"active\":false}]}";
+
+    /** Feeds {@code body} to a fresh consumer in chunks of {@code chunkSize} bytes. */
+    private static JsonResponseConsumer.Result<JsonNode> consume(int status, String body, int chunkSize, long maxBytes,
+            boolean sendLength) throws Exception {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        HttpResponse response = new BasicHttpResponse(status);
+        if (sendLength) {
+            response.addHeader("Content-Length", bytes.length);
+        }
+
+        CompletableFuture<JsonResponseConsumer.Result<JsonNode>> result = new CompletableFuture<>();
+        JsonResponseConsumer<JsonNode> consumer = JsonResponseConsumer.tree(maxBytes);
+        consumer.consumeResponse(response, new BasicEntityDetails(-1, ContentType.APPLICATION_JSON), null,
+                new FutureCallback<>() {
+                    @Override
+                    public void completed(JsonResponseConsumer.Result<JsonNode> value) {
+                        result.complete(value);
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        result.completeExceptionally(e);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        result.cancel(false);
+                    }
+                });
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            consumer.consume(ByteBuffer.wrap(bytes, i, Math.min(chunkSize, bytes.length - i)));
+        }
+        consumer.streamEnd(null);
+        return result.join();
+    }
+
+    @Test
+    public void testChunkedBodyParsesLikeString() throws Exception {
+        List<MappingRule> rules = ConfigParser.parseMappingRules(
+                "role→r,$.user.dept→d,$.groups[*].name→g,$.groups[?(@.active == true)].name→a");
+        Map<String, Object> expected = JsonPathMapper.map(BODY, rules);
+
+        // 3-byte chunks split tokens and the multi-byte character
+        JsonResponseConsumer.Result<JsonNode> result = consume(200, BODY, 3, 1024, false);
+        assertTrue(result.isSuccess());
+        assertEquals(expected, JsonPathMapper.map(result.body(), rules));
+        assertEquals("RéD", expected.get("d"));
+        assertEquals(List.of("a", "b"), expected.get("g"));
+        assertEquals("a", expected.get("a"));
+    }
+
+    @Test
+    public void testEmptyBodyYieldsNoClaims() throws Exception {
+        JsonResponseConsumer.Result<JsonNode> result = consume(204, "", 16, 1024, false);
+        assertTrue(result.isSuccess());
+        assertTrue(result.body().isMissingNode());
+        assertTrue(JsonPathMapper.map(result.body(), ConfigParser.parseMappingRules("role→r")).isEmpty());
+    }
+
+    @Test
+    public void testErrorBodyIsNotParsed() throws Exception {
+        JsonResponseConsumer.Result<JsonNode> result = consume(500, "not json", 4, 1024, false);
+        assertNull(result.body());
+        assertEquals("not json", result.errorBody());
+    }
+
+    @Test
+    public void testOversizedBodyIsRejected() {
+        // Advertised length is refused up front, streamed length once it passes the limit
+        assertThrows(IOException.class, () -> consume(200, BODY, 16, 32, true));
+        assertThrows(IOException.class, () -> consume(200, BODY, 16, 32, false));
+    }
+
+    @Test
+    public void testCancelledConsumerFailsOnNextBuffer() throws Exception {
+        JsonResponseConsumer<JsonNode> consumer = JsonResponseConsumer.tree(1024);
+        consumer.consumeResponse(new BasicHttpResponse(200), new BasicEntityDetails(-1, ContentType.APPLICATION_JSON),
+                null, new FutureCallback<>() {
+                    @Override
+                    public void completed(JsonResponseConsumer.Result<JsonNode> value) {
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                    }
+
+                    @Override
+                    public void cancelled() {
+                    }
+                });
+        consumer.consume(ByteBuffer.wrap("[".getBytes(StandardCharsets.UTF_8)));
+
+        consumer.cancel();
+        assertThrows(InterruptedIOException.class,
+                () -> consumer.consume(ByteBuffer.wrap(" ".getBytes(StandardCharsets.UTF_8))));
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ProtocolMapperModel;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class MapperPlanTest {
+
+    private static MapperPlan plan(String id, Map<String, String> config) {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+        model.setId(id);
+        model.setConfig(new HashMap<>(config));
+        return MapperPlan.of(model);
+    }
+
+    @Test
+    public void testRuleTtlOverride() {
+        List<MappingRule> rules = ConfigParser.parseMappingRules(
+                "orgUnit→org_unit@86400,entitlements->entitlements @60,role→role,mail→user@example");
+        assertEquals(List.of(86400L, 60L, MappingRule.NO_TTL, MappingRule.NO_TTL),
+                rules.stream().map(MappingRule::getTtlSeconds).toList());
+        assertEquals(List.of("org_unit", "entitlements", "role", "user@example"),
+                rules.stream().map(MappingRule::getClaimName).toList());
+    }
+
+    @Test
+    public void testEndpointTtlDefaultsToMapperTtl() {
+        MapperPlan plan = plan("m-endpoint-ttl", Map.of(
+                RestClaimMapper.CFG_CACHE_TTL, "300",
+                RestClaimMapper.CFG_CACHE_STALE, "30",
+                "endpoint.1.url", "https://api.example.com/one",
+                "endpoint.1.mapping", "role→role",
+                "endpoint.2.url", "https://api.example.com/two",
+                "endpoint.2.cache.ttl.seconds", "3600",
+                "endpoint.2.mapping", "dept→dept"));
+        assertEquals(300, plan.getTtlSeconds(plan.getEndpoints().get(0)));
+        assertEquals(3600, plan.getTtlSeconds(plan.getEndpoints().get(1)));
+        assertEquals(3600 + 30, plan.getRetentionSeconds());
+    }
+
+    @Test
+    public void testShortestClaimTtlWins() {
+        MapperPlan plan = plan("m-rule-ttl", Map.of(
+                RestClaimMapper.CFG_CACHE_TTL, "300",
+                "endpoint.1.url", "https://api.example.com/one",
+                "endpoint.1.mapping", "role→role,entitlements→entitlements@60",
+                "endpoint.2.url", "https://api.example.com/two",
+                "endpoint.2.mapping", "role→role,orgUnit→org_unit@86400",
+                "endpoint.3.url", "https://api.example.com/three",
+                "endpoint.3.mapping", "orgUnit→org_unit@86400,cost→cost_center@7200"));
+        List<EndpointConfig> endpoints = plan.getEndpoints();
+        assertEquals(60, plan.getTtlSeconds(endpoints.get(0)));
+        // Longer than the endpoint's TTL: logged and ignored
+        assertEquals(300, plan.getTtlSeconds(endpoints.get(1)));
+        // Every claim overrides the TTL: the endpoint's own TTL does not count
+        assertEquals(7200, plan.getTtlSeconds(endpoints.get(2)));
+    }
+}
@@ -0,0 +1,97 @@
+package com.github.jowe112.keycloak.mapper;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.jowe112.keycloak.mapper.CacheWriteBehindTest.fake;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class PersistentUserHandlerTest {
+
+    private final HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final KeycloakSession session = fake(KeycloakSession.class, Map.of());
+    private final RealmModel realm = fake(RealmModel.class, Map.of("getId", args -> "r1"));
+    private final Map<String, List<String>> attributes = new HashMap<>();
+
+    public PersistentUserHandlerTest() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        // The groups filter matches nothing in this body
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            byte[] body = "{\"role\":\"admin\",\"groups\":[]}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private UserModel user() {
+        return fake(UserModel.class, Map.of(
+                "getId", args -> "u1",
+                "getAttributeStream", args -> attributes.getOrDefault((String) args[0], List.of()).stream(),
+                "setSingleAttribute", args -> attributes.put((String) args[0], List.of((String) args[1])),
+                "setAttribute", args -> attributes.put((String) args[0], List.copyOf((List<String>) args[1])),
+                "removeAttribute", args -> attributes.remove((String) args[0])));
+    }
+
+    private MapperPlan plan() {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+        model.setId("m-persistent");
+        model.setConfig(new HashMap<>(Map.of(
+                RestClaimMapper.CFG_CACHE_STORE, ClaimCacheStore.ATTRIBUTES,
+                RestClaimMapper.CFG_CACHE_TTL, "300",
+                RestClaimMapper.CFG_CACHE_TTL_ADAPTIVE, "true",
+                RestClaimMapper.CFG_CACHE_TTL_MAX, "1000",
+                "endpoint.1.url", "http://127.0.0.1:" + server.getAddress().getPort() + "/users",
+                "endpoint.1.mapping", "role→role,$.groups[*].name→groups")));
+        return MapperPlan.of(model);
+    }
+
+    @Test
+    public void testUnchangedEmptyMatchOnlyExtendsStamp() {
+        MapperPlan plan = plan();
+        EndpointConfig ep = plan.getEndpoints().get(0);
+        String stampKey = plan.cachedAtKey(ep);
+
+        Map<String, Object> miss = PersistentUserHandler.fetchAndCache(session, realm, user(), plan, Map.of());
+        assertEquals(Map.of("role", "admin"), miss);
+        assertEquals(Set.of(stampKey, plan.claimKey("role")), attributes.keySet());
+
+        // Expire the entry: the refetch returns the same data, so only the stamp moves on
+        attributes.put(stampKey, List.of("1|" + ep.getConfigHash() + "|300"));
+        assertEquals(miss, PersistentUserHandler.fetchAndCache(session, realm, user(), plan, Map.of()));
+        assertEquals(2, requests.get());
+        assertEquals(600, plan.getCacheStore().open(session, realm, user(), plan).get(ep).ttlSeconds());
+
+        // A cache hit serves exactly what the miss returned
+        assertEquals(miss, PersistentUserHandler.fetchAndCache(session, realm, user(), plan, Map.of()));
+        assertEquals(2, requests.get());
+    }
+}
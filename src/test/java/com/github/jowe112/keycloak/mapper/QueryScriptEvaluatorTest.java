@@ -1,8 +1,13 @@
 package com.github.jowe112.keycloak.mapper;
 
 import org.junit.jupiter.api.Test;
+import java.util.List;
 import java.util.Map;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class QueryScriptEvaluatorTest {
     @Test
@@ -11,4 +16,99 @@ public class QueryScriptEvaluatorTest {
         String result = QueryScriptEvaluator.evaluate(script, Map.of("username", "testuser"));
         assertEquals("?query=query%20%7B%20ldapUser%0A(uid%3A%20%22testuser%22)%0A%20%7B%20givenName%20%7D%20%0A%7D%0A", result);
     }
+
+    @Test
+    public void testDeclarationsDoNotLeakBetweenEvaluations() {
+        assertEquals("?a=1", QueryScriptEvaluator.evaluate("var leaked = \"1\"; \"?a=\" + leaked", Map.of()));
+        assertEquals("undefined", QueryScriptEvaluator.evaluate("typeof leaked", Map.of()));
+
+        // Implicit globals and changes to built-ins are rejected, not carried over
+        assertNull(QueryScriptEvaluator.evaluate("implicit = \"1\"; \"?a=\" + implicit", Map.of()));
+        assertNull(QueryScriptEvaluator.evaluate("encodeURIComponent = s => \"x\"; \"?\"", Map.of()));
+        assertNull(QueryScriptEvaluator.evaluate("String.prototype.foo = \"bar\"; \"?\"", Map.of()));
+        assertNull(QueryScriptEvaluator.evaluate("globalThis.viaGlobal = \"1\"; \"?\"", Map.of()));
+        CompiledQueryScript compiled = CompiledQueryScript.compile(
+                "(Array.prototype.leak = \"1\") + username.toUpperCase()", List.of("username"));
+        assertNull(QueryScriptEvaluator.evaluate(compiled, Map.of("username", "jdoe")));
+        for (int i = 0; i < ScriptContextPool.MAX_POOLED_CONTEXTS; i++) {
+            assertEquals("undefined|undefined|undefined|undefined|%20", QueryScriptEvaluator.evaluate(
+                    "[typeof implicit, typeof \"\".foo, typeof viaGlobal, typeof [].leak].join(\"|\")"
+                            + " + \"|\" + encodeURIComponent(\" \")", Map.of()));
+        }
+    }
+
+    @Test
+    public void testCompiledScriptMatchesAdHocEvaluation() {
+        String script = "\"?query=\" + encodeURIComponent(`query { ldapUser\n(uid: \"${username}\")\n { givenName } \n}\n`)";
+        CompiledQueryScript compiled = CompiledQueryScript.compile(script, List.of("username"));
+        Map<String, String> userContext = Map.of("username", "testuser", "email", "ignored@example.com");
+        assertEquals(QueryScriptEvaluator.evaluate(script, Map.of("username", "testuser")),
+                QueryScriptEvaluator.evaluate(compiled, userContext));
+    }
+
+    @Test
+    public void testCompiledStatementScriptFallsBack() {
+        CompiledQueryScript compiled = CompiledQueryScript.compile(
+                "var q = \"?user=\" + username; q", List.of("username"));
+        assertEquals("?user=jdoe", QueryScriptEvaluator.evaluate(compiled, Map.of("username", "jdoe")));
+        assertEquals("?user=", QueryScriptEvaluator.evaluate(compiled, Map.of()));
+    }
+
+    @Test
+    public void testCompiledScriptEndingInSemicolonStaysCompiled() {
+        for (String script : List.of(
+                "\"?u=\" + username.toUpperCase();",
+                "\"?u=\" + username.toUpperCase() ; // done\n",
+                "`?u=${username.toUpperCase() + '//;'}`.slice(0, -3); /* trailing; */ ;\n")) {
+            CompiledQueryScript compiled = CompiledQueryScript.compile(script, List.of("username"));
+            assertFalse(compiled.isNative(), script);
+            assertEquals("?u=JDOE", QueryScriptEvaluator.evaluate(compiled, Map.of("username", "jdoe")), script);
+            assertNotNull(compiled.getFunctionSource(), script);
+        }
+        assertEquals("'a;' + b", CompiledQueryScript.stripTerminator("'a;' + b"));
+        assertEquals("x // c;", CompiledQueryScript.stripTerminator("x; // c;"));
+    }
+
+    @Test
+    public void testSimpleScriptsRunNativelyWithJsResults() {
+        Map<String, String> vars = Map.of("username", "j döe/😀", "email", "a+b@example.com");
+        List<String> params = List.of("username", "email");
+        for (String script : List.of(
+                "\"?user=\" + username + \"&mail=\" + email",
+                "'?user=' + encodeURIComponent(username) + '&mail=' + encodeURIComponent(email);",
+                "\"?q=\" + encodeURI(`a b ${username} \\u00e9\\x41`) // trailing comment",
+                "(\"?u=\" + (username)) + /* inline */ \"\\t\\\"x\\\"\"")) {
+            CompiledQueryScript compiled = CompiledQueryScript.compile(script, params);
+            assertTrue(compiled.isNative(), script);
+            assertEquals(QueryScriptEvaluator.evaluate(script, vars), QueryScriptEvaluator.evaluate(compiled, vars),
+                    script);
+        }
+        assertFalse(CompiledQueryScript.compile("\"?u=\" + username.toLowerCase()", params).isNative());
+        assertFalse(CompiledQueryScript.compile("\"?limit=\" + 10", params).isNative());
+    }
+
+    @Test
+    public void testResultCacheIsOptInAndHonoursNoCachePragma() {
+        String script = "\"?u=\" + username.toUpperCase()";
+        CompiledQueryScript cached = CompiledQueryScript.compile(script, List.of("username"),
+                CompiledQueryScript.MODE_SCRIPT, true);
+        assertTrue(cached.isResultCacheable());
+        assertFalse(CompiledQueryScript.compile(script, List.of("username")).isResultCacheable());
+        assertFalse(CompiledQueryScript.compile("/* @no-cache */ " + script, List.of("username"),
+                CompiledQueryScript.MODE_SCRIPT, true).isResultCacheable());
+
+        long hits = QueryScriptEvaluator.resultCacheStats().hits();
+        assertEquals("?u=JDOE", QueryScriptEvaluator.evaluate(cached, Map.of("username", "jdoe")));
+        assertEquals("?u=JDOE", QueryScriptEvaluator.evaluate(cached, Map.of("username", "jdoe")));
+        assertEquals(hits + 1, QueryScriptEvaluator.resultCacheStats().hits());
+    }
+
+    @Test
+    public void testRunawayScriptIsStoppedByStatementLimit() {
+        long hits = QueryScriptEvaluator.limitStats().statementLimitHits();
+        assertNull(QueryScriptEvaluator.evaluate("while (true) {}", Map.of()));
+        assertEquals(hits + 1, QueryScriptEvaluator.limitStats().statementLimitHits());
+        // The pool keeps working after the cancelled context was discarded
+        assertEquals("?ok", QueryScriptEvaluator.evaluate("\"?ok\"", Map.of()));
+    }
 }
@@ -0,0 +1,308 @@
+package com.github.jowe112.keycloak.mapper;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RestApiClientTest {
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+
+    @AfterEach
+    public void stopServer() {
+        if (server != null) {
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    /** Starts a local server with the given handler and returns its base URL. */
+    private String serve(String path, HttpHandler handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext(path, handler);
+        server.start();
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private static EndpointConfig endpoint(String url, String mapping) {
+        return ConfigParser.parse(Map.of(
+                "endpoint.1.url", url,
+                "endpoint.1.mapping", mapping)).get(0);
+    }
+
+    /** Responds with a body that never ends; counts down {@code aborted} once the client hangs up. */
+    private static HttpHandler endlessBody(CountDownLatch started, CountDownLatch aborted) {
+        return exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0);
+            started.countDown();
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write('[');
+                while (true) {
+                    out.write(' ');
+                    out.flush();
+                    Thread.sleep(20);
+                }
+            } catch (IOException e) {
+                aborted.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    /** Counts requests and answers {@code status} with {@code body} once {@code release} opens. */
+    private static HttpHandler gated(CountDownLatch release, AtomicInteger requests, int status, String body) {
+        return exchange -> {
+            requests.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        };
+    }
+
+    /**
+     * Token endpoint answering once {@code release} opens: {@code token-1},
+     * {@code token-2}, … valid for {@code expiresIn} seconds, or {@code status}
+     * without a token if that is not 200.
+     */
+    private static HttpHandler tokens(CountDownLatch release, AtomicInteger grants, int status, long expiresIn) {
+        return exchange -> {
+            int grant = grants.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            String body = status == 200
+                    ? "{\"access_token\":\"token-" + grant + "\",\"expires_in\":" + expiresIn + "}"
+                    : "{\"error\":\"invalid_client\"}";
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        };
+    }
+
+    private static void awaitCount(AtomicInteger count, int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (count.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, count.get());
+    }
+
+    @Test
+    public void testConcurrentIdenticalCallsShareOneRequest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger requests = new AtomicInteger();
+        String base = serve("/users", gated(release, requests, 200, "{\"role\":\"admin\"}"));
+        EndpointConfig ep = endpoint(base + "/users", "role→role");
+        RestApiClient client = RestApiClient.getInstance();
+        long coalesced = client.coalescingStats().coalesced();
+
+        CompletableFuture<Map<String, Object>> first = client.fetchClaims(ep, "?user=shared");
+        CompletableFuture<Map<String, Object>> second = client.fetchClaims(ep, "?user=shared");
+        CompletableFuture<Map<String, Object>> other = client.fetchClaims(ep, "?user=other");
+        awaitCount(requests, 2);
+        assertEquals(coalesced + 1, client.coalescingStats().coalesced());
+
+        release.countDown();
+        assertEquals(Map.of("role", "admin"), first.get(5, TimeUnit.SECONDS));
+        assertEquals(Map.of("role", "admin"), second.get(5, TimeUnit.SECONDS));
+        assertEquals(Map.of("role", "admin"), other.get(5, TimeUnit.SECONDS));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testCancelledCallerDoesNotAbortOthers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger requests = new AtomicInteger();
+        String base = serve("/users", gated(release, requests, 200, "{\"role\":\"admin\"}"));
+        EndpointConfig ep = endpoint(base + "/users", "role→role");
+
+        CompletableFuture<Map<String, Object>> first = RestApiClient.getInstance().fetchClaims(ep, "?user=leaving");
+        CompletableFuture<Map<String, Object>> second = RestApiClient.getInstance().fetchClaims(ep, "?user=leaving");
+        awaitCount(requests, 1);
+        first.cancel(true);
+
+        release.countDown();
+        assertEquals(Map.of("role", "admin"), second.get(5, TimeUnit.SECONDS));
+        assertTrue(first.isCancelled());
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testLastCallerLeavingAbortsRequest() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch aborted = new CountDownLatch(1);
+        String base = serve("/endless", endlessBody(started, aborted));
+        EndpointConfig ep = endpoint(base + "/endless", "role→role");
+
+        CompletableFuture<Map<String, Object>> first = RestApiClient.getInstance().fetchClaims(ep, "?user=gone");
+        CompletableFuture<Map<String, Object>> second = RestApiClient.getInstance().fetchClaims(ep, "?user=gone");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        first.cancel(true);
+        assertFalse(aborted.await(200, TimeUnit.MILLISECONDS), "aborted while a caller was still waiting");
+        second.cancel(true);
+        assertTrue(aborted.await(5, TimeUnit.SECONDS), "exchange still running after the last caller left");
+    }
+
+    @Test
+    public void testFailureReachesAllCallersAndIsNotShared() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger requests = new AtomicInteger();
+        String base = serve("/users", gated(release, requests, 500, "{\"error\":\"boom\"}"));
+        EndpointConfig ep = endpoint(base + "/users", "role→role");
+        RestApiClient client = RestApiClient.getInstance();
+
+        CompletableFuture<Map<String, Object>> first = client.fetchClaims(ep, "?user=failing");
+        CompletableFuture<Map<String, Object>> second = client.fetchClaims(ep, "?user=failing");
+        awaitCount(requests, 1);
+        release.countDown();
+        assertNull(first.get(5, TimeUnit.SECONDS));
+        assertNull(second.get(5, TimeUnit.SECONDS));
+
+        // The failed flight is gone; the next call starts a request of its own
+        assertNull(client.fetchClaims(ep, "?user=failing").get(5, TimeUnit.SECONDS));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testMalformedUrlCompletesWithNull() throws Exception {
+        // An unencoded space, as produced by "?user=" + username
+        EndpointConfig ep = endpoint("http://127.0.0.1:1/users", "role→role");
+        assertNull(RestApiClient.getInstance().fetchJson(ep, "?user=j doe").get(1, TimeUnit.SECONDS));
+        assertNull(RestApiClient.getInstance().fetchClaims(ep, "?user=j doe").get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCancellingJsonPathFetchAbortsExchange() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch aborted = new CountDownLatch(1);
+        String base = serve("/endless", endlessBody(started, aborted));
+        // A deep scan is not streamable, so the body is parsed into a tree
+        EndpointConfig ep = endpoint(base + "/endless", "$..name→name");
+        assertNull(ep.getStreamingExtractor());
+
+        CompletableFuture<Map<String, Object>> claims = RestApiClient.getInstance().fetchClaims(ep, "?u=jsonpath");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        claims.cancel(true);
+        assertTrue(aborted.await(5, TimeUnit.SECONDS), "exchange still running after cancel");
+    }
+
+    @Test
+    public void testConcurrentTokenRequestsShareOneGrant() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger grants = new AtomicInteger();
+        String base = serve("/token", tokens(release, grants, 200, 3600));
+        String auth = "shared-client:secret:" + base + "/token";
+        RestApiClient client = RestApiClient.getInstance();
+        long coalesced = client.tokenStats().coalesced();
+
+        CompletableFuture<String> first = client.resolveOAuth2Token(auth);
+        CompletableFuture<String> second = client.resolveOAuth2Token(auth);
+        awaitCount(grants, 1);
+        assertEquals(coalesced + 1, client.tokenStats().coalesced());
+
+        release.countDown();
+        assertEquals("token-1", first.get(5, TimeUnit.SECONDS));
+        assertEquals("token-1", second.get(5, TimeUnit.SECONDS));
+        // Cached from now on
+        assertEquals("token-1", client.resolveOAuth2Token(auth).getNow(null));
+        assertEquals(1, grants.get());
+    }
+
+    @Test
+    public void testFailedGrantReachesAllWaitersAndIsNotShared() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger grants = new AtomicInteger();
+        String base = serve("/token", tokens(release, grants, 401, 3600));
+        String auth = "failing-client:secret:" + base + "/token";
+        RestApiClient client = RestApiClient.getInstance();
+
+        CompletableFuture<String> first = client.resolveOAuth2Token(auth);
+        CompletableFuture<String> second = client.resolveOAuth2Token(auth);
+        awaitCount(grants, 1);
+        release.countDown();
+        assertNull(first.get(5, TimeUnit.SECONDS));
+        assertNull(second.get(5, TimeUnit.SECONDS));
+
+        // Nothing is cached or left pending; the next request sends a grant of its own
+        assertNull(client.resolveOAuth2Token(auth).get(5, TimeUnit.SECONDS));
+        assertEquals(2, grants.get());
+    }
+
+    @Test
+    public void testMalformedTokenUrlCompletesWithNull() throws Exception {
+        String auth = "malformed-client:secret:http://127.0.0.1:1/to ken";
+        RestApiClient client = RestApiClient.getInstance();
+        assertNull(client.resolveOAuth2Token(auth).get(1, TimeUnit.SECONDS));
+
+        // The failed acquisition is gone; the next request does not join it
+        long coalesced = client.tokenStats().coalesced();
+        assertNull(client.resolveOAuth2Token(auth).get(1, TimeUnit.SECONDS));
+        assertEquals(coalesced, client.tokenStats().coalesced());
+    }
+
+    @Test
+    public void testRefreshedTokenOutlivesOriginalExpiry() throws Exception {
+        AtomicInteger grants = new AtomicInteger();
+        // Renewed after 1.6 s, unusable after 2 s
+        String base = serve("/token", tokens(new CountDownLatch(0), grants, 200, 2));
+        String auth = "refreshing-client:secret:" + base + "/token";
+        RestApiClient client = RestApiClient.getInstance();
+
+        assertEquals("token-1", client.resolveOAuth2Token(auth).get(5, TimeUnit.SECONDS));
+        long firstExpiry = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        // Used after it was obtained, so the refresher renews it
+        assertEquals("token-1", client.resolveOAuth2Token(auth).getNow(null));
+        awaitCount(grants, 2);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!"token-2".equals(client.resolveOAuth2Token(auth).getNow(null))) {
+            assertTrue(System.nanoTime() < deadline, "renewed token not cached");
+            Thread.sleep(10);
+        }
+
+        // Past the first token's expiry the renewed one is still served without waiting
+        TimeUnit.NANOSECONDS.sleep(firstExpiry - System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300));
+        long waits = client.tokenStats().waits();
+        CompletableFuture<String> later = client.resolveOAuth2Token(auth);
+        assertTrue(later.isDone(), "waited for a new token");
+        assertEquals("token-2", later.join());
+        assertEquals(waits, client.tokenStats().waits());
+        assertEquals(2, grants.get());
+    }
+}
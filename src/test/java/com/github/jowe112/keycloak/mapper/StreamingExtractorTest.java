@@ -0,0 +1,110 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.impl.BasicEntityDetails;
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class StreamingExtractorTest {
+
+    private static final String BODY = "{\"role\":\"admin\",\"num\":1.50,\"big\":12345678901234,\"nul\":null,"
+            + "\"tags\":[\"x\",\"y\"],\"e\":[],\"o\":{\"on\":true,\"n\":\"obj\",\"z\":{\"q\":1}},"
+            + "\"g\":[{\"n\":\"a\",\"on\":true,\"k\":1,\"r\":[\"x\",\"y\"]},{\"k\":2.50,\"n\":\"b\",\"on\":false},"
+            + "{\"on\":true,\"n\":null,\"k\":\"2\"},{\"x\":1},\"s\",[1],null,{\"r\":{\"z\":1},\"on\":true}]}";
+
+    private static final List<String> PATHS = List.of(
+            // simple fields and definite paths
+            "role", "num", "big", "nul", "tags", "e", "o", "missing",
+            "$.role", "$.num", "$.tags", "$.e", "$.o", "$.o.z", "$.o.z.q", "$['o']['n']", "$.g[0]", "$.g[0].r",
+            "$.g[0].r[1]", "$.g[9]", "$.g[5][0]", "$.nul.x", "$.a.b", "$.g.n", "$.role[0]",
+            // wildcards
+            "$.*", "$.o.*", "$.o[*]", "$.g[*]", "$.g[*].n", "$.g[*].r", "$.g[*].r[*]", "$.g[*].r.z", "$.g[*][0]",
+            "$.e[*]", "$.nul[*]", "$.num[*]", "$.missing[*].n", "$.g[9][*]", "$.g[9].x[*]", "$.g.n[*]", "$[*]",
+            // filters
+            "$.g[?(@.on == true)].n", "$.g[?(@.on)].n", "$.g[?(@.k != 1)].n", "$.g[?(@.k > 1)].n",
+            "$.g[?(@.k == '2')].n", "$.g[?(@.n == null)].on", "$.g[?(@.n != 'a')].k", "$.g[?(@.k >= 2)].k",
+            "$.g[?(@.on == true && @.k == 1)].n", "$.g[?(@.zz != 1)]", "$.g[?(@.zz == null)]", "$.g[?(@.n > 'a')].n",
+            "$.g[?(@.r != 'x')].on", "$.g[?(@.k == 2.5)].k", "$.g[?(@.on == true)].r[*]", "$.g[?(@.x)]",
+            "$.o[?(@.on == true)].n", "$.o[?(@.on == false)].n", "$.g[?(@.on == true)][?(@.k)].n");
+
+    private static Map<String, Object> stream(String body, List<MappingRule> rules, int chunkSize) throws Exception {
+        StreamingExtractor extractor = StreamingExtractor.compile(rules);
+        assertNotNull(extractor, rules.toString());
+
+        CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+        JsonResponseConsumer<Map<String, Object>> consumer = JsonResponseConsumer.claims(1 << 20, extractor);
+        consumer.consumeResponse(new BasicHttpResponse(200), new BasicEntityDetails(-1, ContentType.APPLICATION_JSON),
+                null, new FutureCallback<>() {
+                    @Override
+                    public void completed(JsonResponseConsumer.Result<Map<String, Object>> value) {
+                        result.complete(value.body());
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        result.completeExceptionally(e);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        result.cancel(false);
+                    }
+                });
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            consumer.consume(ByteBuffer.wrap(bytes, i, Math.min(chunkSize, bytes.length - i)));
+        }
+        consumer.streamEnd(null);
+        return result.join();
+    }
+
+    @Test
+    public void testEachPathMatchesTreeMapper() throws Exception {
+        for (String path : PATHS) {
+            List<MappingRule> rules = List.of(new MappingRule(path, "c"));
+            assertEquals(JsonPathMapper.map(BODY, rules), stream(BODY, rules, 7), path);
+        }
+    }
+
+    @Test
+    public void testAllPathsInOneTrie() throws Exception {
+        StringBuilder mapping = new StringBuilder();
+        for (int i = 0; i < PATHS.size(); i++) {
+            mapping.append(i > 0 ? "," : "").append(PATHS.get(i)).append("→c").append(i);
+        }
+        List<MappingRule> rules = ConfigParser.parseMappingRules(mapping.toString());
+        assertEquals(PATHS.size(), rules.size());
+        assertEquals(JsonPathMapper.map(BODY, rules), stream(BODY, rules, 1));
+    }
+
+    @Test
+    public void testSkippedSubtreesAndEmptyBody() throws Exception {
+        List<MappingRule> rules = ConfigParser.parseMappingRules("$.wanted[?(@.id > 2)].name→n");
+        StringBuilder body = new StringBuilder("{\"noise\":[");
+        for (int i = 0; i < 1000; i++) {
+            body.append(i > 0 ? "," : "").append("{\"id\":").append(i).append(",\"deep\":{\"a\":[1,2,3]}}");
+        }
+        body.append("],\"wanted\":[{\"name\":\"one\",\"id\":1},{\"name\":\"three\",\"id\":3}]}");
+        assertEquals(Map.of("n", "three"), stream(body.toString(), rules, 64));
+        assertEquals(Map.of(), stream("", rules, 64));
+    }
+
+    @Test
+    public void testUnsupportedPathsFallBack() {
+        for (String path : List.of("$..name", "$.g[0:2]", "$.g.length()", "$.g[?(@.n =~ /a/)]", "$.g[-1]",
+                "$.g[?(@.a || @.b)]", "$")) {
+            assertNull(StreamingExtractor.compile(List.of(new MappingRule(path, "c"))), path);
+        }
+    }
+}
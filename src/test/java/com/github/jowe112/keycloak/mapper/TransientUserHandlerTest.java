@@ -0,0 +1,37 @@
+package com.github.jowe112.keycloak.mapper;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class TransientUserHandlerTest {
+
+    @Test
+    public void testRefreshedEntryOutlivesOriginalDeadline() {
+        AtomicLong nanos = new AtomicLong();
+        Cache<TransientUserHandler.CacheKey, TransientUserHandler.CachedClaims> cache =
+                TransientUserHandler.newCache(nanos::get);
+        TransientUserHandler.CacheKey key = new TransientUserHandler.CacheKey("u1", "m1", "hash");
+
+        cache.put(key, new TransientUserHandler.CachedClaims(Map.of("role", "user"), 0, 0, Duration.ofSeconds(10)));
+        // Refreshed early, 8 s into its 10 s lifetime
+        nanos.addAndGet(Duration.ofSeconds(8).toNanos());
+        cache.put(key, new TransientUserHandler.CachedClaims(Map.of("role", "admin"), 8, 0, Duration.ofSeconds(10)));
+
+        // Past the first entry's deadline, within the refreshed one's
+        nanos.addAndGet(Duration.ofSeconds(9).toNanos());
+        TransientUserHandler.CachedClaims hit = cache.getIfPresent(key);
+        assertNotNull(hit);
+        assertEquals(Map.of("role", "admin"), hit.claims());
+
+        nanos.addAndGet(Duration.ofSeconds(2).toNanos());
+        assertNull(cache.getIfPresent(key));
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.jowe112.keycloak.mapper;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class UriTemplateTest {
+
+    // Examples from RFC 6570, section 3.2
+    private static final Map<String, String> VARS = Map.of(
+            "var", "value",
+            "hello", "Hello World!",
+            "path", "/foo/bar",
+            "empty", "",
+            "x", "1024",
+            "y", "768");
+
+    private static String expand(String template) {
+        return UriTemplate.parse(template).expand(VARS);
+    }
+
+    @Test
+    public void testRfcExamples() {
+        assertEquals("value", expand("{var}"));
+        assertEquals("Hello%20World%21", expand("{hello}"));
+        assertEquals("Hello%20World!", expand("{+hello}"));
+        assertEquals("/foo/bar/here", expand("{+path}/here"));
+        assertEquals("#/foo/bar", expand("{#path}"));
+        assertEquals("1024,768", expand("{x,y}"));
+        assertEquals("X.value", expand("X{.var}"));
+        assertEquals("/value/1024/here", expand("{/var,x}/here"));
+        assertEquals(";x=1024;y=768;empty", expand("{;x,y,empty}"));
+        assertEquals("?x=1024&y=768&empty=", expand("{?x,y,empty}"));
+        assertEquals("?fixed=yes&x=1024", expand("?fixed=yes{&x}"));
+        assertEquals("val", expand("{var:3}"));
+        assertEquals("?x=1024", expand("{?x,undef}"));
+    }
+
+    @Test
+    public void testMalformedTemplates() {
+        assertThrows(IllegalArgumentException.class, () -> UriTemplate.parse("{?x"));
+        assertThrows(IllegalArgumentException.class, () -> UriTemplate.parse("{=x}"));
+        assertThrows(IllegalArgumentException.class, () -> UriTemplate.parse("{x:0}"));
+    }
+}